@@ -0,0 +1,95 @@
+package org.brunovandekerkhove.benchmark;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.brunovandekerkhove.http.HeaderParser;
+import org.brunovandekerkhove.http.MessageInputStream;
+import org.brunovandekerkhove.utils.ClosedSocketException;
+
+/**
+ * A benchmark of the rate at which a running server appends small POST bodies to a single file.
+ * 	Every client has a keep-alive connection of its own, and sends its next append as soon as
+ * 	the previous one has been acknowledged. Every body is a line naming its client and its
+ * 	sequence number, so the file can be checked for lost or torn appends afterwards.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public class AppendBenchmark {
+
+	/**
+	 * Run the benchmark.
+	 *
+	 * @param 	args
+	 * 			The host and port of the server, optionally followed by the path of the file
+	 * 			(/appends.log by default), the number of clients (16 by default) and the number
+	 * 			of appends per client (1000 by default).
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Invalid arguments. Format should be <host> <port> [path] [clients] [count].");
+			return;
+		}
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		String path = (args.length > 2 ? args[2] : "/appends.log");
+		int clients = (args.length > 3 ? Integer.parseInt(args[3]) : 16);
+		int count = (args.length > 4 ? Integer.parseInt(args[4]) : 1000);
+		Thread[] threads = new Thread[clients];
+		Exception[] failures = new Exception[clients];
+		long start = System.nanoTime();
+		for (int i=0 ; i<clients ; i++) {
+			int client = i;
+			threads[i] = new Thread(() -> {
+				try {
+					append(host, port, path, client, count);
+				} catch (Exception e) {
+					failures[client] = e;
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		long time = System.nanoTime() - start;
+		for (Exception failure : failures) {
+			if (failure != null) {
+				System.out.println(failure.getLocalizedMessage());
+				return;
+			}
+		}
+		System.out.printf("%d appends by %d clients to %s : %.0f appends/s%n", clients * count, clients, path,
+				clients * count / (time / 1e9));
+	}
+
+	/**
+	 * Send the given number of appends on a single connection, one at a time.
+	 */
+	private static void append(String host, int port, String path, int client, int count) throws IOException, ClosedSocketException {
+		try (Socket socket = new Socket(host, port)) {
+			socket.setTcpNoDelay(true);
+			OutputStream output = socket.getOutputStream();
+			InputStream input = new MessageInputStream(socket.getInputStream());
+			for (int i=0 ; i<count ; i++) {
+				byte[] body = ("client " + client + " append " + i + "\n").getBytes(StandardCharsets.ISO_8859_1);
+				String header = "POST " + path + " HTTP/1.1\r\nHost: " + host + "\r\nContent-Length: " + body.length + "\r\n\r\n";
+				output.write(header.getBytes(StandardCharsets.ISO_8859_1));
+				output.write(body);
+				output.flush();
+				HeaderParser response = HeaderParser.read(input);
+				int index = response.lastIndexOf("Content-Length");
+				long remaining = (index < 0 ? 0 : Long.parseLong(response.getValue(index)));
+				while (remaining-- > 0) {
+					if (input.read() < 0)
+						throw new EOFException("The connection ended in the middle of a response.");
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+package org.brunovandekerkhove.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.brunovandekerkhove.http.HTTPRequestHeader;
+import org.brunovandekerkhove.http.HeaderParser;
+import org.brunovandekerkhove.http.MessageInputStream;
+
+/**
+ * A microbenchmark of the parsing of request headers, reporting the time and the
+ * 	heap allocation per parsed request. A typical browser request is parsed over
+ * 	and over, after which the fields a server looks at are read from it. It is parsed
+ * 	from a (direct) buffer as event loops do, from a message input stream as connection
+ * 	handlers do, and from a plain stream that can only be read byte by byte. The cost of
+ * 	the parser by itself (without building the request header) is measured as well.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public class HeaderParserBenchmark {
+
+	/**
+	 * Run the benchmark.
+	 *
+	 * @param 	args
+	 * 			Optionally the number of requests to parse per round (1000000 by default).
+	 */
+	public static void main(String[] args) throws Exception {
+		int count = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+		byte[] request = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(request.length).put(request); // As an event loop receives it
+		InputStream connection = new MessageInputStream(new RepeatingInputStream(request)); // As a connection handler reads it
+		for (int round=1 ; round<=ROUNDS ; round++) { // The first rounds warm up the JIT
+			measure("parser only", round, count, () -> {
+				HeaderParser parser = new HeaderParser();
+				parser.parse(buffer, 0, buffer.position());
+				sink += parser.getValue(parser.lastIndexOf("Host")).length() + parser.lastIndexOf("Content-Length");
+			});
+			measure("buffer", round, count, () -> {
+				HeaderParser parser = new HeaderParser();
+				parser.parse(buffer, 0, buffer.position());
+				use(new HTTPRequestHeader(parser));
+			});
+			measure("stream", round, count, () -> use(new HTTPRequestHeader(connection)));
+			measure("byte by byte", round, count, () -> use(new HTTPRequestHeader(new ByteArrayInputStream(request))));
+		}
+		if (sink == 42) // Keep the results alive
+			System.out.println();
+	}
+
+	/**
+	 * Parse the given number of requests and print the time and allocation per request.
+	 *
+	 * @param 	name
+	 * 			The name of the way the requests are parsed.
+	 * @param 	round
+	 * 			The number of the round.
+	 * @param 	count
+	 * 			The number of requests to parse.
+	 * @param 	parse
+	 * 			The parsing of a single request.
+	 */
+	private static void measure(String name, int round, int count, Parse parse) throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long allocated = threads.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i=0 ; i<count ; i++)
+			parse.run();
+		long time = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+		System.out.printf("Round %d, %-12s : %6.0f ns/request, %5d bytes allocated/request%n",
+				round, name, (double)time / count, allocated / count);
+	}
+
+	/**
+	 * Read the fields a server looks at from the given header.
+	 */
+	private static void use(HTTPRequestHeader header) {
+		sink += header.getHeaderField("Host").length();
+		if (header.getHeaderField("Content-Length") != null || header.getHeaderField("Connection") == null)
+			sink++;
+	}
+
+	/**
+	 * An interface for the parsing of a single request.
+	 */
+	private interface Parse {
+		void run() throws Exception;
+	}
+
+	/**
+	 * A class of input streams endlessly repeating the same bytes, like a client sending the same request over and over.
+	 */
+	private static class RepeatingInputStream extends InputStream {
+
+		private RepeatingInputStream(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		private final byte[] bytes;
+
+		private int position = 0;
+
+		@Override
+		public int read() {
+			int current = bytes[position] & 0xFF;
+			position = (position + 1) % bytes.length;
+			return current;
+		}
+
+		@Override
+		public int read(byte[] target, int offset, int length) {
+			int count = Math.min(length, bytes.length - position);
+			System.arraycopy(bytes, position, target, offset, count);
+			position = (position + count) % bytes.length;
+			return count;
+		}
+
+	}
+
+	/**
+	 * The number of rounds.
+	 */
+	private static final int ROUNDS = 5;
+
+	/**
+	 * A sink for the results of the benchmark, so they aren't optimized away.
+	 */
+	private static long sink = 0;
+
+	/**
+	 * The request that is parsed, as sent by a browser.
+	 */
+	private static final String REQUEST = "GET /img/kul.gif HTTP/1.1\r\n"
+			+ "Host: localhost:8080\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+			+ "Accept: image/avif,image/webp,image/apng,image/svg+xml,image/*,*/*;q=0.8\r\n"
+			+ "Sec-Fetch-Site: same-origin\r\n"
+			+ "Sec-Fetch-Mode: no-cors\r\n"
+			+ "Sec-Fetch-Dest: image\r\n"
+			+ "Referer: http://localhost:8080/\r\n"
+			+ "Accept-Encoding: gzip, deflate, br\r\n"
+			+ "Accept-Language: en-US,en;q=0.9,nl;q=0.8\r\n"
+			+ "If-Modified-Since: Thu, 15 Mar 2018 23:17:49 GMT\r\n"
+			+ "\r\n";
+
+}
@@ -0,0 +1,85 @@
+package org.brunovandekerkhove.benchmark;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.brunovandekerkhove.http.HeaderParser;
+import org.brunovandekerkhove.http.MessageInputStream;
+
+/**
+ * A benchmark of the latency of a running server, as seen by a client.
+ * 	The same resource is requested over and over on a single keep-alive connection,
+ * 	waiting for every response before sending the next request, and the percentiles
+ * 	of the time between sending a request and receiving the last byte of its response
+ * 	are reported. The client disables Nagle's algorithm itself, so any stalls are the
+ * 	server's doing.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public class LatencyBenchmark {
+
+	/**
+	 * Run the benchmark.
+	 *
+	 * @param 	args
+	 * 			The host and port of the server, optionally followed by the path of the
+	 * 			resource (/index.html by default) and the number of requests (2000 by default).
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Invalid arguments. Format should be <host> <port> [path] [count].");
+			return;
+		}
+		String path = (args.length > 2 ? args[2] : "/index.html");
+		int count = (args.length > 3 ? Integer.parseInt(args[3]) : 2000);
+		byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: " + args[0] + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+			socket.setTcpNoDelay(true);
+			OutputStream output = socket.getOutputStream();
+			InputStream input = new MessageInputStream(socket.getInputStream());
+			for (int i=0 ; i<count/10 ; i++) // Warm up
+				exchange(request, output, input);
+			long[] latencies = new long[count];
+			for (int i=0 ; i<count ; i++) {
+				long start = System.nanoTime();
+				exchange(request, output, input);
+				latencies[i] = System.nanoTime() - start;
+			}
+			Arrays.sort(latencies);
+			System.out.printf("%d requests for %s : p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n", count, path,
+					percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99), latencies[count - 1] / 1e6);
+		}
+	}
+
+	/**
+	 * Send the given request and read its response completely.
+	 */
+	private static void exchange(byte[] request, OutputStream output, InputStream input) throws Exception {
+		output.write(request);
+		output.flush();
+		HeaderParser header = HeaderParser.read(input);
+		int index = header.lastIndexOf("Content-Length");
+		long remaining = (index < 0 ? 0 : Long.parseLong(header.getValue(index)));
+		byte[] bytes = new byte[8192];
+		while (remaining > 0) {
+			int length = input.read(bytes, 0, (int)Math.min(bytes.length, remaining));
+			if (length < 0)
+				throw new EOFException("The connection ended in the middle of a response.");
+			remaining -= length;
+		}
+	}
+
+	/**
+	 * Returns the given percentile of the given sorted latencies, in milliseconds.
+	 */
+	private static double percentile(long[] latencies, int percentile) {
+		int index = (int)Math.ceil(percentile / 100.0 * latencies.length) - 1;
+		return latencies[Math.max(0, index)] / 1e6;
+	}
+
+}
@@ -0,0 +1,109 @@
+package org.brunovandekerkhove.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.brunovandekerkhove.http.ContentRegion;
+import org.brunovandekerkhove.http.HTTPResponse;
+import org.brunovandekerkhove.http.HTTPVersion;
+
+/**
+ * A microbenchmark of the generation of responses, reporting the time and the heap
+ * 	allocation per response. A response to a small file is built with the header fields
+ * 	the server sends along with files, and is then serialized into the regions that a
+ * 	connection writes (for the header this is a pooled buffer). Building the response
+ * 	and reading a few fields from it is measured by itself as well.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public class ResponseEncodingBenchmark {
+
+	/**
+	 * Run the benchmark.
+	 *
+	 * @param 	args
+	 * 			Optionally the number of responses to generate per round (1000000 by default).
+	 */
+	public static void main(String[] args) throws Exception {
+		int count = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+		for (int round=1 ; round<=ROUNDS ; round++) { // The first rounds warm up the JIT
+			measure("build", round, count, () -> {
+				HTTPResponse response = build();
+				sink += response.header.getHeaderField("content-length").length();
+				if (response.header.getHeaderField("Transfer-Encoding") == null)
+					sink++;
+			});
+			measure("build+encode", round, count, () -> {
+				List<ContentRegion> regions = build().toRegions();
+				for (ContentRegion region : regions) {
+					sink += region.getLength();
+					region.close();
+				}
+			});
+		}
+		if (sink == 42) // Keep the results alive
+			System.out.println();
+	}
+
+	/**
+	 * Build a response to a small file, as the server does.
+	 */
+	private static HTTPResponse build() {
+		HTTPResponse response = new HTTPResponse(HTTPVersion.HTTP_11, 200, "OK", BODY, "text/html");
+		response.header.addHeaderField("Accept-Ranges", "bytes");
+		response.header.addHeaderField("ETag", "\"3q2-7bNqvXg3cS1Gk8b6Wg\"");
+		response.header.addHeaderField("Vary", "Accept-Encoding");
+		response.header.addHeaderField("Last-Modified", "Thu, 15 Mar 2018 23:17:49 GMT");
+		return response;
+	}
+
+	/**
+	 * Generate the given number of responses and print the time and allocation per response.
+	 *
+	 * @param 	name
+	 * 			The name of what is measured.
+	 * @param 	round
+	 * 			The number of the round.
+	 * @param 	count
+	 * 			The number of responses to generate.
+	 * @param 	generate
+	 * 			The generation of a single response.
+	 */
+	private static void measure(String name, int round, int count, Generate generate) throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long allocated = threads.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i=0 ; i<count ; i++)
+			generate.run();
+		long time = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+		System.out.printf("Round %d, %-12s : %6.0f ns/response, %5d bytes allocated/response%n",
+				round, name, (double)time / count, allocated / count);
+	}
+
+	/**
+	 * An interface for the generation of a single response.
+	 */
+	private interface Generate {
+		void run() throws Exception;
+	}
+
+	/**
+	 * The number of rounds.
+	 */
+	private static final int ROUNDS = 5;
+
+	/**
+	 * A sink for the results of the benchmark, so they aren't optimized away.
+	 */
+	private static long sink = 0;
+
+	/**
+	 * The body of the responses.
+	 */
+	private static final byte[] BODY = "<html><body><p>Hello world</p></body></html>".getBytes(StandardCharsets.ISO_8859_1);
+
+}
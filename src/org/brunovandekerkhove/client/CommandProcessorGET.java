@@ -1,12 +1,10 @@
 package org.brunovandekerkhove.client;
 
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.TimeZone;
 
 import org.brunovandekerkhove.http.HTTPCommand;
+import org.brunovandekerkhove.http.HTTPDate;
 import org.brunovandekerkhove.http.HTTPRequest;
 import org.brunovandekerkhove.http.HTTPSocket;
 import org.brunovandekerkhove.http.HTTPVersion;
@@ -27,9 +25,7 @@ public class CommandProcessorGET extends CommandProcessor {
 		HTTPRequest request = new HTTPRequest(command, version, "");
         Date modifiedDate = LocalFileManager.getDefaultManager().getLastModifiedDate(command.getURI());
         if (modifiedDate != null) {
-            DateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
-            dateFormat.setTimeZone(TimeZone.getTimeZone("GMT")); // Greenwich Mean Time
-            request.header.addHeaderField("If-Modified-Since", dateFormat.format(modifiedDate));
+            request.header.addHeaderField("If-Modified-Since", HTTPDate.format(modifiedDate.getTime()));
         }
         
         // Add host to header and send the request
@@ -0,0 +1,135 @@
+package org.brunovandekerkhove.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class of byte ranges, being the parts of a representation asked for with a Range header.
+ * 	Ranges are resolved against the length of the representation, so suffix ranges
+ * 	('-500') and open ranges ('100-') become plain first/last byte positions.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://tools.ietf.org/html/rfc7233#section-2.1
+ */
+public class ByteRange {
+
+	/**
+	 * Initialize this new byte range with given first and last byte position.
+	 *
+	 * @param 	first
+	 * 			The position of the first byte in the range.
+	 * @param 	last
+	 * 			The position of the last byte in the range (inclusive).
+	 */
+	public ByteRange(long first, long last) {
+		if (first < 0 || last < first)
+			throw new IllegalArgumentException("Invalid byte range.");
+		this.first = first;
+		this.last = last;
+	}
+
+	/**
+	 * Returns the position of the first byte in this range.
+	 */
+	public long getFirst() {
+		return this.first;
+	}
+
+	/**
+	 * The position of the first byte in this range.
+	 */
+	private final long first;
+
+	/**
+	 * Returns the position of the last byte in this range (inclusive).
+	 */
+	public long getLast() {
+		return this.last;
+	}
+
+	/**
+	 * The position of the last byte in this range.
+	 */
+	private final long last;
+
+	/**
+	 * Returns the amount of bytes in this range.
+	 */
+	public long getLength() {
+		return this.last - this.first + 1;
+	}
+
+	/**
+	 * Returns the value of the Content-Range field for this range of a representation with given length.
+	 *
+	 * @param 	length
+	 * 			The length of the complete representation.
+	 */
+	public String toContentRange(long length) {
+		return "bytes " + first + "-" + last + "/" + length;
+	}
+
+	/**
+	 * Parse the given value of a Range field for a representation with given length.
+	 * 	Ranges that lie beyond the end of the representation are left out, and ranges
+	 * 	that extend beyond it are cut off.
+	 *
+	 * @param 	field
+	 * 			The value of the Range field.
+	 * @param 	length
+	 * 			The length of the representation.
+	 * @return	The satisfiable ranges in the given field, in the order in which they appear.
+	 * 			The list is empty if none of them is satisfiable.
+	 * 			Null is returned if the field is invalid or asks for too many ranges,
+	 * 			in which case it is to be ignored.
+	 */
+	public static List<ByteRange> parse(String field, long length) {
+		field = field.trim();
+		if (!field.regionMatches(true, 0, "bytes=", 0, 6))
+			return null; // Other units aren't supported
+		String[] specs = field.substring(6).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+		List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0)
+				return null;
+			try {
+				String firstString = spec.substring(0, dash).trim(), lastString = spec.substring(dash+1).trim();
+				long first, last;
+				if (firstString.isEmpty()) { // Suffix range, the final bytes
+					long suffix = Long.parseLong(lastString);
+					if (suffix < 0)
+						return null;
+					if (suffix == 0 || length == 0)
+						continue;
+					first = Math.max(0, length - suffix);
+					last = length - 1;
+				}
+				else {
+					first = Long.parseLong(firstString);
+					last = (lastString.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastString));
+					if (first < 0 || last < first)
+						return null;
+					if (first >= length)
+						continue;
+					last = Math.min(last, length - 1);
+				}
+				ranges.add(new ByteRange(first, last));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * The maximum number of ranges in a single Range field.
+	 * 	Clients asking for more (possibly overlapping) ranges get the whole representation instead.
+	 */
+	private static final int MAX_RANGES = 32;
+
+}
@@ -0,0 +1,167 @@
+package org.brunovandekerkhove.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.brunovandekerkhove.utils.ClosedSocketException;
+import org.brunovandekerkhove.utils.SocketUtils;
+
+/**
+ * A class of input streams decoding a message body sent with the chunked transfer coding.
+ * 	The chunks are read from the underlying stream as the body is read, so the body
+ * 	never has to be held in memory as a whole. The trailer fields that follow the
+ * 	last chunk are available once the body has been read completely.
+ * 	Closing this stream doesn't close the underlying one.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://tools.ietf.org/html/rfc7230#section-4.1
+ */
+public class ChunkedInputStream extends InputStream {
+
+	/**
+	 * Initialize this new chunked input stream with given underlying stream.
+	 *
+	 * @param 	inputStream
+	 * 			The stream to read the chunks from, positioned at the first chunk.
+	 */
+	public ChunkedInputStream(InputStream inputStream) {
+		this.inputStream = inputStream;
+	}
+
+	/**
+	 * The stream the chunks are read from.
+	 */
+	private final InputStream inputStream;
+
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+		int count = read(single, 0, 1);
+		return (count < 0 ? -1 : single[0] & 0xFF);
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if (length == 0)
+			return 0;
+		if (remaining == 0 && !nextChunk())
+			return -1;
+		int count = inputStream.read(bytes, offset, (int)Math.min(length, remaining));
+		if (count < 0)
+			throw new EOFException("The body ended in the middle of a chunk.");
+		remaining -= count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int)Math.min(remaining, inputStream.available());
+	}
+
+	/**
+	 * Move on to the next chunk, reading the trailer if there is none.
+	 *
+	 * @return	True if and only if there is a next chunk.
+	 * @throws 	IOException
+	 * 			An I/O error occurred, or the chunks are malformed.
+	 */
+	private boolean nextChunk() throws IOException {
+		if (finished)
+			return false;
+		if (broken)
+			throw new IOException("Malformed chunked body.");
+		broken = true; // Until the chunk header (or trailer) has been read
+		if (started && !readLine().isEmpty()) // The data of a chunk is followed by a line break
+			throw new IOException("Missing line break after chunk.");
+		started = true;
+		String sizeLine = readLine();
+		int extension = sizeLine.indexOf(';');
+		if (extension >= 0) // Chunk extensions are ignored
+			sizeLine = sizeLine.substring(0, extension);
+		try {
+			remaining = Long.parseLong(sizeLine.trim(), 16);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid chunk size.");
+		}
+		if (remaining < 0)
+			throw new IOException("Invalid chunk size.");
+		if (remaining > 0) {
+			broken = false;
+			return true;
+		}
+		String line;
+		while (!(line = readLine()).isEmpty()) { // Trailer fields
+			int colon = line.indexOf(':');
+			if (colon > 0)
+				trailers.put(line.substring(0, colon).trim(), line.substring(colon+1).trim());
+		}
+		finished = true;
+		broken = false;
+		return false;
+	}
+
+	/**
+	 * Read the next line from the underlying stream.
+	 *
+	 * @throws 	IOException
+	 * 			An I/O error occurred, or the stream ended.
+	 */
+	private String readLine() throws IOException {
+		try {
+			return SocketUtils.nextLine(inputStream);
+		} catch (ClosedSocketException e) {
+			throw new EOFException("The body ended before its last chunk.");
+		}
+	}
+
+	/**
+	 * The amount of bytes left in the current chunk.
+	 */
+	private long remaining = 0;
+
+	/**
+	 * Whether the first chunk has been started.
+	 */
+	private boolean started = false;
+
+	/**
+	 * Whether reading a chunk header failed, after which the body can't be read any further.
+	 */
+	private boolean broken = false;
+
+	/**
+	 * Whether the last chunk and the trailer have been read.
+	 */
+	private boolean finished = false;
+
+	/**
+	 * Returns whether the body has been read completely, including the trailer.
+	 */
+	public boolean isFinished() {
+		return this.finished;
+	}
+
+	/**
+	 * Returns the trailer fields that followed the last chunk.
+	 * 	They are only known once the body has been read completely.
+	 */
+	public Map<String, String> getTrailers() {
+		return Collections.unmodifiableMap(this.trailers);
+	}
+
+	/**
+	 * The trailer fields that followed the last chunk.
+	 */
+	private final Map<String, String> trailers = new LinkedHashMap<String, String>();
+
+	@Override
+	public void close() {
+		// The underlying stream belongs to the connection
+	}
+
+}
@@ -0,0 +1,209 @@
+package org.brunovandekerkhove.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A class of channels compressing the bytes read from another channel on the fly,
+ * 	in the gzip or deflate (zlib) format. Only a few buffers' worth of data is held
+ * 	at any time, so bodies of any size (or of unknown size) can be compressed while
+ * 	they are being sent.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://tools.ietf.org/html/rfc1952
+ */
+public class CompressingChannel implements ReadableByteChannel {
+
+	/**
+	 * Initialize this new compressing channel with given source, encoding and level.
+	 *
+	 * @param 	source
+	 * 			The channel the uncompressed bytes are read from. It is closed along with this channel.
+	 * @param 	encoding
+	 * 			The encoding to compress with (gzip or deflate).
+	 * @param 	level
+	 * 			The compression level, from 1 (fastest) to 9 (smallest).
+	 */
+	public CompressingChannel(ReadableByteChannel source, ContentEncoding encoding, int level) {
+		if (encoding == ContentEncoding.IDENTITY)
+			throw new IllegalArgumentException("Identity is no compression.");
+		this.source = source;
+		this.gzip = (encoding == ContentEncoding.GZIP);
+		this.deflater = new Deflater(level, gzip); // Gzip has a header and trailer of its own instead of zlib's
+		this.output.flip();
+	}
+
+	/**
+	 * The channel the uncompressed bytes are read from.
+	 */
+	private final ReadableByteChannel source;
+
+	/**
+	 * Whether the bytes are compressed in the gzip format rather than the deflate one.
+	 */
+	private final boolean gzip;
+
+	/**
+	 * The deflater compressing the bytes.
+	 */
+	private final Deflater deflater;
+
+	/**
+	 * The checksum of the uncompressed bytes, which ends a gzip stream.
+	 */
+	private final CRC32 checksum = new CRC32();
+
+	/**
+	 * The uncompressed bytes that are being compressed.
+	 */
+	private final byte[] input = new byte[BUFFER_SIZE];
+
+	/**
+	 * The compressed bytes that haven't been read yet, in read mode.
+	 */
+	private final ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+
+	@Override
+	public int read(ByteBuffer target) throws IOException {
+		int count = 0;
+		while (target.hasRemaining()) {
+			if (output.hasRemaining()) {
+				int length = Math.min(output.remaining(), target.remaining());
+				target.put(output.array(), output.position(), length);
+				output.position(output.position() + length);
+				count += length;
+			}
+			else if (!fill())
+				break;
+		}
+		return (count == 0 && ended ? -1 : count);
+	}
+
+	/**
+	 * Fill the output buffer of this channel with the next compressed bytes.
+	 *
+	 * @return	False if no more bytes can be produced for now (or ever), true otherwise.
+	 * @throws 	IOException
+	 * 			The source could not be read.
+	 */
+	private boolean fill() throws IOException {
+		output.clear();
+		if (gzip && !headerWritten) {
+			output.put(GZIP_HEADER).flip();
+			headerWritten = true;
+			return true;
+		}
+		if (deflater.finished()) {
+			if (gzip && !trailerWritten) { // The checksum and length of the uncompressed bytes, little-endian
+				putLittleEndian((int)checksum.getValue());
+				putLittleEndian((int)deflater.getBytesRead());
+				output.flip();
+				trailerWritten = true;
+				return true;
+			}
+			output.flip();
+			ended = true;
+			return false;
+		}
+		if (deflater.needsInput() && !inputEnded) {
+			int length = source.read(ByteBuffer.wrap(input));
+			if (length < 0) {
+				deflater.finish();
+				inputEnded = true;
+			}
+			else if (length == 0) { // Nothing available right now
+				output.flip();
+				return false;
+			}
+			else {
+				checksum.update(input, 0, length);
+				deflater.setInput(input, 0, length);
+			}
+		}
+		int length = deflater.deflate(output.array(), 0, output.capacity());
+		output.position(0).limit(length);
+		return true;
+	}
+
+	/**
+	 * Put the given integer in the output buffer, least significant byte first.
+	 */
+	private void putLittleEndian(int value) {
+		for (int i=0 ; i<4 ; i++)
+			output.put((byte)(value >>> (8 * i)));
+	}
+
+	/**
+	 * Whether the source has ended.
+	 */
+	private boolean inputEnded = false;
+
+	/**
+	 * Whether the gzip header has been produced.
+	 */
+	private boolean headerWritten = false;
+
+	/**
+	 * Whether the gzip trailer has been produced.
+	 */
+	private boolean trailerWritten = false;
+
+	/**
+	 * Whether all compressed bytes have been produced.
+	 */
+	private boolean ended = false;
+
+	@Override
+	public boolean isOpen() {
+		return source.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		deflater.end();
+		source.close();
+	}
+
+	/**
+	 * Compress the given bytes all at once.
+	 *
+	 * @param 	bytes
+	 * 			The bytes that are to be compressed.
+	 * @param 	encoding
+	 * 			The encoding to compress with (gzip or deflate).
+	 * @param 	level
+	 * 			The compression level, from 1 (fastest) to 9 (smallest).
+	 * @return	The compressed bytes.
+	 */
+	public static byte[] compress(byte[] bytes, ContentEncoding encoding, int level) {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 3 + 64);
+		try (CompressingChannel channel = new CompressingChannel(Channels.newChannel(new ByteArrayInputStream(bytes)), encoding, level)) {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			while (channel.read(buffer) >= 0) {
+				compressed.write(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+		} catch (IOException e) { // Can't happen with bytes in memory
+			throw new IllegalStateException(e);
+		}
+		return compressed.toByteArray();
+	}
+
+	/**
+	 * The size of the buffers of compressing channels.
+	 */
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * The header of a gzip stream : magic number, deflate method, no flags, no time, unknown OS.
+	 */
+	private static final byte[] GZIP_HEADER = {0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff};
+
+}
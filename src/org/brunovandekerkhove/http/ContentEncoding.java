@@ -0,0 +1,80 @@
+package org.brunovandekerkhove.http;
+
+/**
+ * An enumeration of the content codings a server can apply to a response body.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://tools.ietf.org/html/rfc7231#section-5.3.4
+ */
+public enum ContentEncoding {
+
+	IDENTITY("identity"),
+	GZIP("gzip"),
+	DEFLATE("deflate");
+
+	/**
+	 * Initialize this new content encoding with given name.
+	 */
+	private ContentEncoding(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns the name of this encoding, as it appears in the Content-Encoding field.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * The name of this encoding.
+	 */
+	private final String name;
+
+	/**
+	 * Choose the encoding for a response to a request with the given Accept-Encoding field.
+	 * 	Gzip is preferred over deflate when the client likes them equally.
+	 *
+	 * @param 	acceptEncoding
+	 * 			The Accept-Encoding field of the request, or null if it has none.
+	 * @return	The compressing encoding with the highest (non-zero) quality,
+	 * 			or identity if the client accepts neither.
+	 */
+	public static ContentEncoding negotiate(String acceptEncoding) {
+		if (acceptEncoding == null)
+			return IDENTITY;
+		double gzipQuality = -1, deflateQuality = -1, anyQuality = -1;
+		for (String element : acceptEncoding.split(",")) {
+			String[] parts = element.split(";");
+			String coding = parts[0].trim();
+			double quality = 1;
+			for (int i=1 ; i<parts.length ; i++) {
+				String parameter = parts[i].trim();
+				if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+					try {
+						quality = Double.parseDouble(parameter.substring(2).trim());
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+			if (coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip"))
+				gzipQuality = quality;
+			else if (coding.equalsIgnoreCase("deflate"))
+				deflateQuality = quality;
+			else if (coding.equals("*"))
+				anyQuality = quality;
+		}
+		if (gzipQuality < 0)
+			gzipQuality = anyQuality;
+		if (deflateQuality < 0)
+			deflateQuality = anyQuality;
+		if (gzipQuality > 0 && gzipQuality >= deflateQuality)
+			return GZIP;
+		if (deflateQuality > 0)
+			return DEFLATE;
+		return IDENTITY;
+	}
+
+}
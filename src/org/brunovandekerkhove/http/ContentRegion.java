@@ -0,0 +1,478 @@
+package org.brunovandekerkhove.http;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Deque;
+
+import org.brunovandekerkhove.utils.BufferPool;
+
+/**
+ * A class of content regions, being parts of a message body that are written
+ * 	without passing through a byte array on the heap. A region is either a range of
+ * 	a file, which is sent with FileChannel.transferTo (sendfile), or a buffer.
+ * 	Regions keep track of how much of them has been written, so they can be written
+ * 	to non-blocking channels bit by bit.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://developer.ibm.com/articles/j-zerocopy/
+ */
+public class ContentRegion {
+
+	/**
+	 * Initialize this new content region with given file channel, offset and length.
+	 * 	The region takes ownership of the channel and closes it when it is closed itself.
+	 *
+	 * @param 	channel
+	 * 			The channel of the file this region is part of.
+	 * @param 	offset
+	 * 			The offset in the file at which this region starts.
+	 * @param 	length
+	 * 			The amount of bytes in this region.
+	 */
+	public ContentRegion(FileChannel channel, long offset, long length) {
+		this(channel, offset, length, true);
+	}
+
+	/**
+	 * Initialize this new content region with given file channel, offset and length.
+	 * 	Several regions of the same file can share its channel, in which case only
+	 * 	one of them (typically the last one to be written) should own it.
+	 *
+	 * @param 	channel
+	 * 			The channel of the file this region is part of.
+	 * @param 	offset
+	 * 			The offset in the file at which this region starts.
+	 * @param 	length
+	 * 			The amount of bytes in this region.
+	 * @param 	ownsChannel
+	 * 			Whether this region closes the channel when it is closed itself.
+	 */
+	public ContentRegion(FileChannel channel, long offset, long length, boolean ownsChannel) {
+		if (offset < 0 || length < 0)
+			throw new IllegalArgumentException("Invalid file region.");
+		this.channel = channel;
+		this.ownsChannel = ownsChannel;
+		this.source = null;
+		this.chunked = false;
+		this.buffer = null;
+		this.pool = null;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Initialize this new content region with the remaining bytes of the given buffer.
+	 *
+	 * @param 	buffer
+	 * 			The buffer holding the bytes of this region. This may be a mapped buffer.
+	 */
+	public ContentRegion(ByteBuffer buffer) {
+		this(buffer, null);
+	}
+
+	/**
+	 * Initialize this new content region with the remaining bytes of the given buffer,
+	 * 	which is returned to the given pool once this region is closed.
+	 *
+	 * @param 	buffer
+	 * 			The buffer holding the bytes of this region.
+	 * @param 	pool
+	 * 			The pool the buffer was leased from, or null if it wasn't.
+	 */
+	public ContentRegion(ByteBuffer buffer, BufferPool pool) {
+		this.channel = null;
+		this.ownsChannel = false;
+		this.source = null;
+		this.chunked = false;
+		this.buffer = buffer;
+		this.pool = pool;
+		this.offset = 0;
+		this.length = buffer.remaining();
+	}
+
+	/**
+	 * Initialize this new content region with the bytes that can be read from the given source.
+	 * 	The amount of bytes isn't known in advance : the source is read as the region is written,
+	 * 	one pooled buffer at a time. The region closes the source when it is closed itself.
+	 *
+	 * @param 	source
+	 * 			The channel to read the bytes of this region from. It is read until it ends.
+	 * @param 	chunked
+	 * 			Whether the bytes are to be sent with the chunked transfer coding.
+	 */
+	public ContentRegion(ReadableByteChannel source, boolean chunked) {
+		this.channel = null;
+		this.ownsChannel = false;
+		this.buffer = null;
+		this.pool = BufferPool.getDefaultPool();
+		this.source = source;
+		this.chunked = chunked;
+		this.offset = 0;
+		this.length = -1;
+	}
+
+	/**
+	 * The channel of the file this region is part of, or null if the region is a buffer.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * Whether this region closes its channel when it is closed itself.
+	 */
+	private final boolean ownsChannel;
+
+	/**
+	 * The buffer holding the bytes of this region, or null if the region is part of a file.
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * The source the bytes of this region are read from, or null if the region is a file or a buffer.
+	 */
+	private final ReadableByteChannel source;
+
+	/**
+	 * Whether the bytes from the source are sent with the chunked transfer coding.
+	 */
+	private final boolean chunked;
+
+	/**
+	 * The pool the buffer of this region was leased from, or null if it wasn't.
+	 */
+	private BufferPool pool;
+
+	/**
+	 * The offset in the file at which this region starts.
+	 */
+	private final long offset;
+
+	/**
+	 * Returns the amount of bytes in this region, or -1 if it is read from a source and isn't known.
+	 */
+	public long getLength() {
+		return this.length;
+	}
+
+	/**
+	 * The amount of bytes in this region.
+	 */
+	private final long length;
+
+	/**
+	 * Returns whether or not all bytes of this region have been transferred.
+	 */
+	public boolean isComplete() {
+		if (source != null)
+			return this.sourceEnded && !this.chunk.hasRemaining();
+		return this.transferred >= this.length;
+	}
+
+	/**
+	 * The amount of bytes of this region that have been transferred so far.
+	 */
+	private long transferred = 0;
+
+	/**
+	 * Transfer as many of the remaining bytes of this region to the given channel
+	 * 	as the channel accepts without blocking.
+	 *
+	 * @param 	target
+	 * 			The channel to transfer to.
+	 * @return	The amount of bytes that were transferred.
+	 * @throws 	IOException
+	 * 			An I/O error occurred, or the file was truncated while it was being sent.
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		long count;
+		if (source != null)
+			count = transferSourceTo(target);
+		else if (buffer != null)
+			count = target.write(buffer);
+		else {
+			count = channel.transferTo(offset + transferred, Math.min(length - transferred, MAX_FILE_TRANSFER), target); // Blocking targets return in between
+			if (count == 0 && offset + transferred >= channel.size())
+				throw new IOException("The file was truncated while being sent.");
+		}
+		transferred += count;
+		return count;
+	}
+
+	/**
+	 * Copy the remaining bytes of this region into the given buffer, after which the region is complete.
+	 * 	Only regions of a known length (files and buffers) can be copied.
+	 *
+	 * @param 	target
+	 * 			The buffer to copy into. It must have room for the remaining bytes of this region.
+	 * @throws 	IOException
+	 * 			The file could not be read, or it was truncated. Nothing of this region has been transferred then.
+	 */
+	public void copyTo(ByteBuffer target) throws IOException {
+		if (source != null)
+			throw new IllegalStateException("Regions read from a source can't be copied.");
+		if (buffer != null)
+			target.put(buffer);
+		else {
+			int limit = target.limit();
+			target.limit(target.position() + (int)(length - transferred)); // Read no further than this region
+			try {
+				long position = offset + transferred;
+				while (target.hasRemaining()) {
+					int count = channel.read(target, position);
+					if (count < 0)
+						throw new IOException("The file was truncated while being sent.");
+					position += count;
+				}
+			} finally {
+				target.limit(limit);
+			}
+		}
+		transferred = length;
+	}
+
+	/**
+	 * Transfer as many bytes from the source of this region to the given channel
+	 * 	as the channel accepts without blocking.
+	 *
+	 * @param 	target
+	 * 			The channel to transfer to.
+	 * @return	The amount of bytes that were transferred.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	private long transferSourceTo(WritableByteChannel target) throws IOException {
+		long count = 0;
+		while (true) {
+			if (chunk != null && chunk.hasRemaining()) {
+				count += target.write(chunk);
+				if (chunk.hasRemaining())
+					return count; // The target is full
+			}
+			if (sourceEnded || !nextChunk())
+				return count;
+		}
+	}
+
+	/**
+	 * Read the next bytes from the source of this region into its chunk buffer,
+	 * 	framed as a chunk if the chunked transfer coding is used.
+	 *
+	 * @return	True if and only if the chunk buffer holds new bytes to write.
+	 * @throws 	IOException
+	 * 			The source could not be read.
+	 */
+	private boolean nextChunk() throws IOException {
+		if (chunk == null)
+			chunk = pool.lease(CHUNK_SIZE);
+		chunk.clear();
+		int start = (chunked ? CHUNK_HEADER_SIZE : 0);
+		chunk.position(start);
+		if (chunked)
+			chunk.limit(chunk.capacity() - 2); // Room for the line break after the data
+		int count = 0;
+		while (chunk.hasRemaining() && (count = source.read(chunk)) > 0);
+		int dataLength = chunk.position() - start;
+		if (count < 0)
+			sourceEnded = true;
+		if (dataLength == 0) {
+			chunk.clear();
+			if (sourceEnded && chunked)
+				chunk.put(LAST_CHUNK);
+			chunk.flip();
+			return chunk.hasRemaining();
+		}
+		if (chunked) {
+			byte[] header = (Integer.toHexString(dataLength) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			chunk.limit(chunk.capacity());
+			chunk.put((byte)'\r').put((byte)'\n');
+			if (sourceEnded) { // Append the last chunk right away if it fits
+				if (chunk.remaining() >= LAST_CHUNK.length)
+					chunk.put(LAST_CHUNK);
+				else
+					sourceEnded = false; // It goes in a chunk of its own
+			}
+			int end = chunk.position();
+			start -= header.length;
+			chunk.position(start);
+			chunk.put(header);
+			chunk.limit(end).position(start);
+		}
+		else
+			chunk.flip().position(start);
+		return true;
+	}
+
+	/**
+	 * The buffer holding the bytes from the source that are being written.
+	 */
+	private ByteBuffer chunk;
+
+	/**
+	 * Whether everything there is to read from the source has been put in the chunk buffer.
+	 */
+	private boolean sourceEnded = false;
+
+	/**
+	 * The size of the buffers holding the chunks read from sources.
+	 */
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	/**
+	 * The room left at the start of a chunk buffer for the size of the chunk (8 hex digits and a line break).
+	 */
+	private static final int CHUNK_HEADER_SIZE = 10;
+
+	/**
+	 * The last chunk of a chunked body, followed by an empty trailer.
+	 */
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	/**
+	 * Write all remaining bytes of this region through the given (blocking) socket.
+	 *
+	 * @param 	socket
+	 * 			The socket to write to.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	public void writeTo(Socket socket) throws IOException {
+		WritableByteChannel target = socket.getChannel();
+		if (target == null) // Sockets that weren't opened through a channel can't use sendfile
+			target = Channels.newChannel(socket.getOutputStream());
+		while (!isComplete())
+			transferTo(target);
+	}
+
+	/**
+	 * Write the given regions, in order, to the given channel, as far as the channel accepts
+	 * 	without blocking (blocking channels accept everything). Consecutive buffer regions
+	 * 	are written with a single gathering write, so a batch of small (pipelined) responses
+	 * 	goes out in a single system call. Regions are removed from the queue and closed once
+	 * 	they have been written completely.
+	 *
+	 * @param 	regions
+	 * 			The regions that are to be written.
+	 * @param 	target
+	 * 			The channel to write to.
+	 * @return	True if and only if all regions have been written.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	public static boolean transferAll(Deque<ContentRegion> regions, GatheringByteChannel target) throws IOException {
+		while (!regions.isEmpty()) {
+			ContentRegion first = regions.peek();
+			if (first.buffer == null) { // Files and sources go on their own
+				first.transferTo(target);
+				if (!first.isComplete())
+					return false;
+				regions.poll().close();
+				continue;
+			}
+			ByteBuffer[] buffers = new ByteBuffer[Math.min(regions.size(), MAX_GATHERED)];
+			int count = 0;
+			for (ContentRegion region : regions) {
+				if (region.buffer == null || count == buffers.length)
+					break;
+				buffers[count++] = region.buffer;
+			}
+			target.write(buffers, 0, count);
+			for (int i=0 ; i<count ; i++) {
+				ContentRegion region = regions.peek();
+				region.transferred = region.length - region.buffer.remaining();
+				if (!region.isComplete())
+					return false; // The target is full
+				regions.poll().close();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write all of the given regions, in order, through the given (blocking) socket.
+	 * 	The regions are removed from the queue and closed once they have been written.
+	 *
+	 * @param 	regions
+	 * 			The regions that are to be written.
+	 * @param 	socket
+	 * 			The socket to write to.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	public static void writeAll(Deque<ContentRegion> regions, Socket socket) throws IOException {
+		writeAll(regions, socket, null);
+	}
+
+	/**
+	 * Write all of the given regions, in order, through the given (blocking) socket, reporting progress as they are written.
+	 * 	The regions are removed from the queue and closed once they have been written.
+	 *
+	 * @param 	regions
+	 * 			The regions that are to be written.
+	 * @param 	socket
+	 * 			The socket to write to.
+	 * @param 	progress
+	 * 			The task to run whenever part of the regions has been written, or null.
+	 * 			Files are sent at most a few megabytes at a time, so it runs regularly while a large file is sent.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	public static void writeAll(Deque<ContentRegion> regions, Socket socket, Runnable progress) throws IOException {
+		SocketChannel channel = socket.getChannel();
+		if (channel != null) {
+			while (!transferAll(regions, channel)) { // Only a non-blocking channel, or a large file, returns early
+				if (progress != null)
+					progress.run();
+			}
+			return;
+		}
+		while (!regions.isEmpty()) { // Sockets that weren't opened through a channel can't gather
+			regions.peek().writeTo(socket);
+			regions.poll().close();
+			if (progress != null)
+				progress.run();
+		}
+	}
+
+	/**
+	 * The maximum number of buffers written with a single gathering write.
+	 */
+	private static final int MAX_GATHERED = 64;
+
+	/**
+	 * The maximum amount of bytes of a file sent with a single system call.
+	 */
+	private static final long MAX_FILE_TRANSFER = 4 * 1024 * 1024;
+
+	/**
+	 * Close this region, releasing the file it is part of or the buffer it leased (if any).
+	 */
+	public void close() {
+		if (pool != null) {
+			pool.release(source != null ? chunk : buffer);
+			pool = null; // Release only once
+		}
+		if (source != null) {
+			try {
+				source.close();
+			} catch (IOException e) {
+				System.out.println(e.getLocalizedMessage());
+			}
+		}
+		if (channel == null || !ownsChannel)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.out.println(e.getLocalizedMessage());
+		}
+	}
+
+}
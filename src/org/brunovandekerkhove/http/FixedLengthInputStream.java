@@ -0,0 +1,72 @@
+package org.brunovandekerkhove.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A class of input streams reading a message body with a known length (Content-Length)
+ * 	from a connection, without reading past its end.
+ * 	Closing this stream doesn't close the underlying one.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public class FixedLengthInputStream extends InputStream {
+
+	/**
+	 * Initialize this new input stream with given underlying stream and length.
+	 *
+	 * @param 	inputStream
+	 * 			The stream to read the body from, positioned at its start.
+	 * @param 	length
+	 * 			The length of the body.
+	 */
+	public FixedLengthInputStream(InputStream inputStream, long length) {
+		if (length < 0)
+			throw new IllegalArgumentException("Invalid body length.");
+		this.inputStream = inputStream;
+		this.remaining = length;
+	}
+
+	/**
+	 * The stream the body is read from.
+	 */
+	private final InputStream inputStream;
+
+	/**
+	 * The amount of bytes left in the body.
+	 */
+	private long remaining;
+
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+		int count = read(single, 0, 1);
+		return (count < 0 ? -1 : single[0] & 0xFF);
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if (remaining == 0)
+			return -1;
+		if (length == 0)
+			return 0;
+		int count = inputStream.read(bytes, offset, (int)Math.min(length, remaining));
+		if (count < 0)
+			throw new EOFException("The body ended before all of its bytes were received.");
+		remaining -= count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int)Math.min(remaining, inputStream.available());
+	}
+
+	@Override
+	public void close() {
+		// The underlying stream belongs to the connection
+	}
+
+}
@@ -1,6 +1,7 @@
 package org.brunovandekerkhove.http;
 
 import java.net.URI;
+import java.net.URISyntaxException;
 
 /**
  * A class representing HTTP commands, having a command type (represented by a string), a uri 
@@ -24,13 +25,68 @@ public class HTTPCommand {
 		setPort(port);
 	}
 	
+	/**
+	 * Initialize this new HTTP command with given request target, host, port number and command type.
+	 * 	The URI of the command is only created when it is asked for.
+	 * 	
+	 * @param 	target
+	 * 			The request target this command should be initialised with.
+	 * @param 	host
+	 * 			The host this command should be initialised with.
+	 * @param	port
+	 * 			The port number this command should be initialised with.
+	 * @param 	type
+	 * 			The command type this command should be initialised with.
+	 */
+	public HTTPCommand(RequestTarget target, String host, int port, String type) {
+		setType(type);
+		this.target = target;
+		this.host = host;
+		setPort(port);
+	}
+	
 	/**
 	 * Returns the URI for this HTTP command.
+	 * 
+	 * @throws	IllegalArgumentException
+	 * 			The command has a host that can't be part of a URI.
 	 */
 	public URI getURI() {
+		if (this.uri == null && this.target != null) {
+			try {
+				this.uri = new URI("http", null, host, port, target.getPath(), target.getQuery(), null);
+			} catch (URISyntaxException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
 		return this.uri;
 	}
 	
+	/**
+	 * Returns the path of the resource this HTTP command is for.
+	 * 
+	 * @return	The (decoded) path of the URI of this command.
+	 */
+	public String getPath() {
+		if (this.target != null)
+			return this.target.getPath();
+		return this.uri.getPath();
+	}
+	
+	/**
+	 * Returns the query of this HTTP command, or null if it has none.
+	 */
+	public String getQuery() {
+		if (this.target != null)
+			return this.target.getQuery();
+		return this.uri.getRawQuery();
+	}
+	
+	/**
+	 * The request target of this HTTP command, or null if it was created with a URI.
+	 */
+	private RequestTarget target;
+	
 	/**
 	 * Set the URI for this HTTP command.
 	 * 
@@ -39,6 +95,8 @@ public class HTTPCommand {
 	 */
 	public void setURI(URI uri) {
 		this.uri = uri;
+		this.target = null;
+		this.host = null;
 	}
 	
 	/**
@@ -47,9 +105,16 @@ public class HTTPCommand {
 	 * @return The host name of the URI associated with this command.
 	 */
 	public String getHost() {
+		if (this.host != null)
+			return this.host;
 		return this.uri.getHost();
 	}
 	
+	/**
+	 * The host of this HTTP command, or null if it is the host of its URI.
+	 */
+	private String host;
+	
 	/**
 	 * The URI for this HTTP command.
 	 */
@@ -99,4 +164,32 @@ public class HTTPCommand {
 	 */
 	private String type;
 	
+	/**
+	 * Get the command type with given name, the name being the start of the given line.
+	 * 	The types of the standard methods are shared constants, so parsing them allocates nothing.
+	 * 
+	 * @param 	line
+	 * 			A line starting with the name of a command type (typically a request line).
+	 * @param 	length
+	 * 			The length of the name.
+	 * @return	The command type with the given name.
+	 */
+	public static String typeFor(String line, int length) {
+		for (String type : TYPES)
+			if (type.length() == length && line.startsWith(type))
+				return type;
+		return line.substring(0, length);
+	}
+	
+	/**
+	 * The types of the standard HTTP methods.
+	 */
+	public static final String GET = "GET", HEAD = "HEAD", POST = "POST", PUT = "PUT",
+			DELETE = "DELETE", OPTIONS = "OPTIONS", TRACE = "TRACE", CONNECT = "CONNECT", PATCH = "PATCH";
+	
+	/**
+	 * The types of the standard HTTP methods, the most common ones first.
+	 */
+	private static final String[] TYPES = {GET, HEAD, POST, PUT, DELETE, OPTIONS, TRACE, CONNECT, PATCH};
+	
 }
\ No newline at end of file
@@ -0,0 +1,307 @@
+package org.brunovandekerkhove.http;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A class of utilities for the dates in HTTP messages, which are always in GMT.
+ * 	Dates are formatted in the preferred format (IMF-fixdate) and parsed in any of
+ * 	the three formats a recipient has to accept, without calendars or date formats.
+ * 	The current date is formatted only once per second, by a ticker thread, so
+ * 	stamping a Date field on a response costs nothing. Recently parsed dates are
+ * 	cached, as clients tend to send the same If-Modified-Since dates over and over.
+ * 	All methods are thread-safe.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://tools.ietf.org/html/rfc7231#section-7.1.1.1
+ * @note	http://howardhinnant.github.io/date_algorithms.html
+ */
+public final class HTTPDate {
+
+	/**
+	 * This class has no instances.
+	 */
+	private HTTPDate() {
+	}
+
+	/**
+	 * Format the given time as an HTTP date ('Sun, 06 Nov 1994 08:49:37 GMT').
+	 *
+	 * @param 	time
+	 * 			The time in milliseconds since the epoch. The milliseconds are dropped.
+	 * @return	The time in the IMF-fixdate format.
+	 */
+	public static String format(long time) {
+		byte[] bytes = new byte[LENGTH];
+		format(time, bytes);
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Format the given time as an HTTP date into the given bytes.
+	 */
+	private static void format(long time, byte[] bytes) {
+		long days = Math.floorDiv(time, MILLIS_PER_DAY);
+		int seconds = (int)(Math.floorMod(time, MILLIS_PER_DAY) / 1000);
+		int weekday = Math.floorMod(days + 4, 7); // The epoch was a thursday
+		long dayOfEra = days + 719468; // Days since 0000-03-01, years starting in march
+		long era = Math.floorDiv(dayOfEra, 146097);
+		int dayOfCycle = (int)(dayOfEra - era * 146097);
+		int yearOfCycle = (dayOfCycle - dayOfCycle / 1460 + dayOfCycle / 36524 - dayOfCycle / 146096) / 365;
+		int dayOfYear = dayOfCycle - (365 * yearOfCycle + yearOfCycle / 4 - yearOfCycle / 100);
+		int shiftedMonth = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+		int month = (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+		long year = yearOfCycle + era * 400 + (month <= 2 ? 1 : 0);
+		put(bytes, 0, DAY_NAMES[weekday]);
+		bytes[3] = ',';
+		bytes[4] = ' ';
+		putDigits(bytes, 5, day);
+		bytes[7] = ' ';
+		put(bytes, 8, MONTH_NAMES[month - 1]);
+		bytes[11] = ' ';
+		putDigits(bytes, 12, (int)(year / 100 % 100));
+		putDigits(bytes, 14, (int)(year % 100));
+		bytes[16] = ' ';
+		putDigits(bytes, 17, seconds / 3600);
+		bytes[19] = ':';
+		putDigits(bytes, 20, seconds / 60 % 60);
+		bytes[22] = ':';
+		putDigits(bytes, 23, seconds % 60);
+		put(bytes, 25, " GMT");
+	}
+
+	/**
+	 * Put the given string in the given bytes at the given index.
+	 */
+	private static void put(byte[] bytes, int index, String string) {
+		for (int i=0 ; i<string.length() ; i++)
+			bytes[index + i] = (byte)string.charAt(i);
+	}
+
+	/**
+	 * Put the two digits of the given number in the given bytes at the given index.
+	 */
+	private static void putDigits(byte[] bytes, int index, int number) {
+		bytes[index] = (byte)('0' + number / 10);
+		bytes[index + 1] = (byte)('0' + number % 10);
+	}
+
+	/**
+	 * Parse the given HTTP date, in the IMF-fixdate ('Sun, 06 Nov 1994 08:49:37 GMT'),
+	 * 	RFC 850 ('Sunday, 06-Nov-94 08:49:37 GMT') or asctime ('Sun Nov  6 08:49:37 1994') format.
+	 * 	No objects are created, except to cache the date once it has been parsed.
+	 *
+	 * @param 	date
+	 * 			The date that is to be parsed.
+	 * @return	The date in milliseconds since the epoch, or INVALID if it isn't a valid HTTP date.
+	 */
+	public static long parse(String date) {
+		int slot = date.hashCode() & (parsed.length - 1);
+		ParsedDate recent = parsed[slot];
+		if (recent != null && recent.date.equals(date))
+			return recent.time;
+		long time = parseFormat(date);
+		if (time != INVALID)
+			parsed[slot] = new ParsedDate(date, time); // Racing threads at worst overwrite each other
+		return time;
+	}
+
+	/**
+	 * Parse the given HTTP date, in whichever of the three formats it is in.
+	 */
+	private static long parseFormat(String date) {
+		int length = date.length();
+		if (length == LENGTH && date.charAt(3) == ',') { // IMF-fixdate
+			if (date.charAt(4) != ' ' || date.charAt(7) != ' ' || date.charAt(11) != ' ' || !date.startsWith(" GMT", 25))
+				return INVALID;
+			int year = parseNumber(date, 12, 4);
+			return (year < 0 ? INVALID : toTime(year, parseMonth(date, 8), parseNumber(date, 5, 2), date, 17));
+		}
+		if (length == 24 && date.charAt(3) == ' ') { // asctime
+			if (date.charAt(7) != ' ' || date.charAt(10) != ' ' || date.charAt(19) != ' ')
+				return INVALID;
+			int day = (date.charAt(8) == ' ' ? parseNumber(date, 9, 1) : parseNumber(date, 8, 2));
+			int year = parseNumber(date, 20, 4);
+			return (year < 0 ? INVALID : toTime(year, parseMonth(date, 4), day, date, 11));
+		}
+		int comma = date.indexOf(',');
+		if (comma > 3 && length == comma + 24) { // RFC 850, with the full name of the day
+			int start = comma + 2;
+			if (date.charAt(comma + 1) != ' ' || date.charAt(start + 2) != '-' || date.charAt(start + 6) != '-'
+					|| date.charAt(start + 9) != ' ' || !date.startsWith(" GMT", start + 18))
+				return INVALID;
+			int year = parseNumber(date, start + 7, 2);
+			if (year < 0)
+				return INVALID;
+			int currentYear = current().year; // Two digits are the latest year that isn't over 50 years ahead
+			year += currentYear / 100 * 100;
+			if (year > currentYear + 50)
+				year -= 100;
+			return toTime(year, parseMonth(date, start + 3), parseNumber(date, start, 2), date, start + 10);
+		}
+		return INVALID;
+	}
+
+	/**
+	 * Returns the time at the given day, and at the time of day ('08:49:37') at the given index in the given date.
+	 *
+	 * @return	The time in milliseconds since the epoch, or INVALID if the day or time of day is invalid.
+	 */
+	private static long toTime(int year, int month, int day, String date, int index) {
+		if (month < 1 || day < 1 || day > 31 || date.charAt(index + 2) != ':' || date.charAt(index + 5) != ':')
+			return INVALID;
+		int hours = parseNumber(date, index, 2), minutes = parseNumber(date, index + 3, 2), seconds = parseNumber(date, index + 6, 2);
+		if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59 || seconds < 0 || seconds > 60) // A leap second is 60
+			return INVALID;
+		int shiftedYear = (month <= 2 ? year - 1 : year); // Years starting in march
+		int era = Math.floorDiv(shiftedYear, 400);
+		int yearOfCycle = shiftedYear - era * 400;
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfCycle = yearOfCycle * 365 + yearOfCycle / 4 - yearOfCycle / 100 + dayOfYear;
+		long days = era * 146097L + dayOfCycle - 719468;
+		return days * MILLIS_PER_DAY + (hours * 3600 + minutes * 60 + seconds) * 1000L;
+	}
+
+	/**
+	 * Returns the number with given number of digits at the given index in the given string, or -1 if they aren't all digits.
+	 */
+	private static int parseNumber(String string, int index, int digits) {
+		int number = 0;
+		for (int i=index ; i<index+digits ; i++) {
+			char current = string.charAt(i);
+			if (current < '0' || current > '9')
+				return -1;
+			number = number * 10 + (current - '0');
+		}
+		return number;
+	}
+
+	/**
+	 * Returns the number (1 to 12) of the month whose name is at the given index in the given string, or -1 if there is none.
+	 */
+	private static int parseMonth(String string, int index) {
+		for (int month=0 ; month<MONTH_NAMES.length ; month++)
+			if (string.startsWith(MONTH_NAMES[month], index))
+				return month + 1;
+		return -1;
+	}
+
+	/**
+	 * The dates that were parsed recently, by the hash code of their string.
+	 */
+	private static final ParsedDate[] parsed = new ParsedDate[64];
+
+	/**
+	 * A class of dates that were parsed.
+	 */
+	private static final class ParsedDate {
+
+		private ParsedDate(String date, long time) {
+			this.date = date;
+			this.time = time;
+		}
+
+		private final String date;
+
+		private final long time;
+
+	}
+
+	/**
+	 * Returns the current date, as it appears in a Date field.
+	 * 	It is at most a second behind.
+	 */
+	public static String now() {
+		return current().value;
+	}
+
+	/**
+	 * Returns the bytes of the current date, as it appears in a Date field.
+	 * 	They are shared, so they should not be modified.
+	 */
+	static byte[] nowBytes() {
+		return current().bytes;
+	}
+
+	/**
+	 * Returns the current stamp.
+	 */
+	private static Stamp current() {
+		return Ticker.stamp;
+	}
+
+	/**
+	 * A class of stamps, holding a second formatted as an HTTP date.
+	 */
+	private static final class Stamp {
+
+		private Stamp(long time) {
+			this.bytes = new byte[LENGTH];
+			format(time, bytes);
+			this.value = new String(bytes, StandardCharsets.ISO_8859_1);
+			this.year = parseNumber(value, 12, 4);
+		}
+
+		private final byte[] bytes;
+
+		private final String value;
+
+		private final int year;
+
+	}
+
+	/**
+	 * A class holding the ticker, which replaces the current stamp every second.
+	 * 	It is only started once the current date is first asked for.
+	 */
+	private static final class Ticker implements Runnable {
+
+		private static volatile Stamp stamp = new Stamp(System.currentTimeMillis());
+
+		static {
+			Thread thread = new Thread(new Ticker(), "http-date-ticker");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Thread.sleep(1000 - System.currentTimeMillis() % 1000); // Right after the next second starts
+					stamp = new Stamp(System.currentTimeMillis());
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+
+	}
+
+	/**
+	 * The length of an HTTP date in the IMF-fixdate format.
+	 */
+	public static final int LENGTH = 29;
+
+	/**
+	 * The value returned for dates that can't be parsed.
+	 */
+	public static final long INVALID = Long.MIN_VALUE;
+
+	/**
+	 * The number of milliseconds in a day.
+	 */
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	/**
+	 * The abbreviated names of the days of the week, starting with sunday.
+	 */
+	private static final String[] DAY_NAMES = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
+
+	/**
+	 * The abbreviated names of the months.
+	 */
+	private static final String[] MONTH_NAMES = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+}
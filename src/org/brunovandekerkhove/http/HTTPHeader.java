@@ -1,12 +1,11 @@
 package org.brunovandekerkhove.http;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 import org.brunovandekerkhove.utils.ClosedSocketException;
-import org.brunovandekerkhove.utils.SocketUtils;
 
 /**
  * A class of HTTP headers.
@@ -44,64 +43,53 @@ public abstract class HTTPHeader {
      * 			The given socket was closed while it was being read from.
      */
     public HTTPHeader(Socket socket) throws IOException, ClosedSocketException {
-    		parseStatusLine(socket);
-    		parseHeaders(socket);
+    		this(socket.getInputStream());
     }
     
-    /** 
-     * Parse the status line by reading from the given socket.
+    /**
+     * Initialize this new header by reading from the given input stream.
      * 
-     * @param	socket
-     * 			The socket to read from.
+     * @param	inputStream
+     * 			The input stream to initialize this new HTTP header with.
      * @throws 	IOException
      * 			An I/O error occurred.
+	 * @throws	ClosedSocketException 
+     * 			The given stream ended before the header could be read.
      */
-    protected abstract void parseStatusLine(Socket socket) throws IOException, ClosedSocketException;
+    public HTTPHeader(InputStream inputStream) throws IOException, ClosedSocketException {
+    		this(HeaderParser.read(inputStream));
+    }
     
-    /** 
-     * Get the status line in this HTTP header.
+    /**
+     * Initialize this new header with the given parsed header.
+     *  The header fields are only turned into strings when they are asked for.
      * 
-     * @return A string representing the status line in this HTTP header.
+     * @param	parsed
+     * 			A parser holding a complete header.
+     * @throws 	IOException
+     * 			The status line is malformed.
      */
-    public abstract String getStatusLine();
+    public HTTPHeader(HeaderParser parsed) throws IOException {
+    		this.parsed = parsed;
+    		parseStatusLine(parsed.getStartLine());
+    }
     
-    /**
-     * Read all the headers by reading from the given socket.
+    /** 
+     * Parse the given status line.
      * 
-     * @param 	socket
-     * 			The socket to read from.
+     * @param	statusLine
+     * 			The status line of this header.
      * @throws 	IOException
-     * 			An I/O error occurred.
-     * @throws	ClosedSocketException 
-     * 			The given socket was closed while it was being read from.
+     * 			The status line is malformed.
      */
-    private void parseHeaders(Socket socket) throws IOException, ClosedSocketException {
-    	
-    		// Pre-processing
-    		StringBuilder stringBuilder = new StringBuilder(); // For building values
-    		String currentLine, key = null;
-    		boolean focus = true;
-    		
-    		// Fetch all key/value pairs
-    		while (true) {
-    			currentLine = SocketUtils.nextLine(socket);
-    			if (currentLine == null || currentLine.length() == 0)
-    				break;
-    			else if (focus) {
-    				int colonIndex = currentLine.indexOf(":");
-    				key = currentLine.substring(0, colonIndex);
-    				currentLine = currentLine.substring(colonIndex + ":".length());
-    				focus = false;
-    				stringBuilder = new StringBuilder();
-    			}
-    			stringBuilder.append(currentLine.trim());
-    			if (!currentLine.endsWith(",")) {
-    				this.addHeaderField(key, stringBuilder.toString());
-    				focus = true;
-    			}
-    		}
-        
-    }
+    protected abstract void parseStatusLine(String statusLine) throws IOException;
+    
+    /** 
+     * Get the status line in this HTTP header.
+     * 
+     * @return A string representing the status line in this HTTP header.
+     */
+    public abstract String getStatusLine();
     
     /**
      * The version for this HTTP header.
@@ -109,40 +97,87 @@ public abstract class HTTPHeader {
     public HTTPVersion version;
     
     /**
-     * Add the given key/value pair to the hashmap kept by this header.
+     * Set the header field with given key to the given value, replacing any field with that key.
      * 
      * @param 	key
-     * 			The key that is to be added.
+     * 			The key that is to be added (in any case).
      * @param 	value
      * 			The value that is to be associated with the given key.
+     * @throws	IllegalArgumentException
+     * 			The key or value holds a line break.
      */
     public void addHeaderField(String key, String value) {
     		if (key != null)
-    			this.headers.put(key, value);
+    			getHeaders().set(key, value);
+    }
+    
+    /**
+     * Returns whether or not the body of the message with this header is sent with the chunked transfer coding.
+     * 
+     * @return	True if and only if chunked is the final coding in the Transfer-Encoding field.
+     * @note		https://tools.ietf.org/html/rfc7230#section-3.3.3
+     */
+    public boolean isChunked() {
+    		String field = getHeaderField("Transfer-Encoding");
+    		if (field == null)
+    			return false;
+    		String[] codings = field.split(",");
+    		return codings[codings.length - 1].trim().equalsIgnoreCase("chunked");
     }
     
     /**
      * Get the value associated with the given key in this header.
      * 
      * @param 	key
-     * 			The key whose value is desired.
+     * 			The key whose value is desired, in any case.
      * @return	The value associated with the given key, or null if there is none.
      */
     public String getHeaderField(String key) {
-    		return headers.get(key);
+    		if (parsed != null) { // Only the asked for value becomes a string
+    			int index = parsed.lastIndexOf(key);
+    			return (index < 0 ? null : parsed.getValue(index));
+    		}
+    		return getHeaders().get(key);
+    }
+    
+    /**
+     * Returns whether this header has a header field with given key.
+     * 
+     * @param 	key
+     * 			The key of the header field, in any case.
+     */
+    public boolean hasHeaderField(String key) {
+    		if (parsed != null)
+    			return parsed.lastIndexOf(key) >= 0;
+    		return getHeaders().lastIndexOf(key) >= 0;
     }
     
     /**
-     * Returns this header's hashmap with key-value pairs corresponding to the header fields.
+     * Returns the header fields of this header.
      */
-    public Map<String, String> getHeaders() {
+    public HeaderFields getHeaders() {
+    		if (headers == null)
+    			headers = new HeaderFields();
+    		if (parsed != null) { // All fields become strings now
+    			for (int i=0 ; i<parsed.getFieldCount() ; i++)
+    				headers.add(parsed.getName(i), parsed.getValue(i));
+    			parsed = null;
+    		}
     		return headers;
     }
     
     /**
-     * A map representing key/value pairs for this HTTP header.
+     * The header fields of this HTTP header.
+     *  The fields of a header that was read aren't in it until they're all asked for,
+     *  so a header that is only read from doesn't have them.
      */
-    protected final Map<String, String> headers = new LinkedHashMap<String, String>();
+    private HeaderFields headers;
+    
+    /**
+     * The parser holding the fields of this header as they were read,
+     *  or null if they're all in the map of this header.
+     */
+    private HeaderParser parsed;
     
     /**
      * Returns the textual representation of this header.
@@ -152,10 +187,46 @@ public abstract class HTTPHeader {
      * @note https://stackoverflow.com/questions/10673684/send-http-request-manually-via-socket
      */
     public String toString() {
-    		String string = getStatusLine() + "\r\n";
-        for (String key : headers.keySet())
-        		string += key + ": " + headers.get(key) + "\r\n";
-        return string;
+    		return getStatusLine() + "\r\n" + getHeaders().toString();
+    }
+    
+    /**
+     * Returns the amount of bytes this header takes up when it is sent,
+     *  including the empty line that ends it.
+     */
+    public int getEncodedLength() {
+    		return getStatusLineLength() + 2 + getHeaders().getEncodedLength() + 2;
+    }
+    
+    /**
+     * Put this header in the given buffer as it is sent : the status line, the header fields,
+     *  and the empty line that ends the header. The header fields are copied as they were encoded.
+     * 
+     * @param	buffer
+     * 			The buffer to put this header in. It must have room for the encoded length of this header.
+     */
+    public void encode(ByteBuffer buffer) {
+    		encodeStatusLine(buffer);
+    		buffer.put((byte)'\r').put((byte)'\n');
+    		getHeaders().encode(buffer);
+    		buffer.put((byte)'\r').put((byte)'\n');
+    }
+    
+    /**
+     * Returns the length of the status line of this header, without its line break.
+     */
+    protected int getStatusLineLength() {
+    		return getStatusLine().length();
+    }
+    
+    /**
+     * Put the status line of this header in the given buffer, without its line break.
+     * 
+     * @param	buffer
+     * 			The buffer to put the status line in.
+     */
+    protected void encodeStatusLine(ByteBuffer buffer) {
+    		HeaderFields.put(buffer, getStatusLine());
     }
 	
 }
\ No newline at end of file
@@ -24,7 +24,7 @@ public class HTTPMessage {
      * Get a string representing this message's contents.
      */
     public String getContentString() {
-    		return new String(this.contents);
+    		return new String(getContents());
     }
     
 	/**
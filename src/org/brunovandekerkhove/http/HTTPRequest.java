@@ -1,15 +1,18 @@
 package org.brunovandekerkhove.http;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.Socket;
 import java.net.URI;
-import java.net.URISyntaxException;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Map;
 
 import org.brunovandekerkhove.utils.ClosedSocketException;
 
@@ -31,17 +34,264 @@ public class HTTPRequest extends HTTPMessage {
 	 * @throws	ClosedSocketException 
      * 			The given socket was closed while it was being read from.
 	 */
-	public HTTPRequest(Socket socket) throws IOException, URISyntaxException, ClosedSocketException {
-		this.header = new HTTPRequestHeader(socket);
-		if (this.header.getHeaders().containsKey("Content-Length")) {
-            int length = Integer.parseInt(this.header.getHeaders().get("Content-Length"));
-            this.contents = new byte[length];
-            InputStream inputStream = socket.getInputStream();
-            for (int i = 0; i < length; ++i)
-            		this.contents[i] = (byte)(inputStream.read());        
+	public HTTPRequest(Socket socket) throws IOException, ClosedSocketException {
+		this(socket.getInputStream());
+	}
+	
+	/**
+	 * Initializes this HTTP request with the given input stream.
+	 * 	The body is read from the stream lazily, right after the header.
+	 * 
+	 * @param 	inputStream
+	 * 			The stream to read from when generating this HTTP request
+	 * 			(typically a buffered stream of a connection's socket).
+	 * @throws 	IOException 
+	 * 			An I/O error occurred.
+	 * @throws	ClosedSocketException 
+     * 			The given stream ended before the request could be read.
+	 */
+	public HTTPRequest(InputStream inputStream) throws IOException, ClosedSocketException {
+		HTTPRequestHeader header = new HTTPRequestHeader(inputStream);
+		this.header = header;
+		long length = header.getContentLength(); // Checked before anything is read of the body
+		if (header.isChunked())
+			this.bodyStream = new ChunkedInputStream(inputStream);
+		else if (length >= 0) {
+            this.bodyStream = new FixedLengthInputStream(inputStream, length);
         } else { // No Content-Length specified
         		this.contents = new byte[0];
         }
+		this.streamed = (bodyStream != null);
+	}
+	
+	/**
+	 * Initializes this HTTP request with the given header and body.
+	 * 	This is used when the request was read by other means than a blocking socket.
+	 * 
+	 * @param 	header
+	 * 			The header of this new HTTP request.
+	 * @param 	body
+	 * 			The body of this new HTTP request, as it was received
+	 * 			(ie. still chunked if it was sent that way).
+	 */
+	public HTTPRequest(HTTPRequestHeader header, byte[] body) {
+		this.header = header;
+		if (body == null)
+			this.contents = new byte[0];
+		else if (header.isChunked())
+			this.bodyStream = new ChunkedInputStream(new ByteArrayInputStream(body));
+		else
+			this.contents = body;
+	}
+	
+	/**
+	 * Initializes this HTTP request with the given header and a body that was stored in the given file.
+	 * 	This is used for large bodies that were received by other means than a blocking socket.
+	 * 
+	 * @param 	header
+	 * 			The header of this new HTTP request.
+	 * @param 	body
+	 * 			A channel for the file holding the body of this new HTTP request, decoded if it was chunked.
+	 * 			It is read from its start, and isn't closed by this request.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	public HTTPRequest(HTTPRequestHeader header, FileChannel body) throws IOException {
+		this.header = header;
+		this.bodyChannel = body.position(0);
+		this.bodyStream = new FixedLengthInputStream(Channels.newInputStream(body), body.size());
+	}
+	
+	/**
+	 * The channel of the file holding the body of this request, or null if it wasn't stored in a file.
+	 */
+	private FileChannel bodyChannel;
+	
+	/**
+	 * The stream the body of this request is still to be read from,
+	 * 	or null if the body is held in the contents of this request.
+	 */
+	private InputStream bodyStream;
+	
+	/**
+	 * Whether the body of this request is still to be read from the connection it was sent on.
+	 */
+	private boolean streamed;
+	
+	/**
+	 * Returns whether the body of this request was received completely before this request was made,
+	 * 	in which case reading it never waits for the client.
+	 */
+	public boolean isBodyReceived() {
+		return !streamed;
+	}
+	
+	/**
+	 * Whether reading the body of this request failed.
+	 */
+	private volatile boolean bodyFailed;
+	
+	/**
+	 * Returns whether reading the body of this request failed (because the client sent too little of it,
+	 * 	or sent it malformed), as opposed to whatever the body was written to.
+	 */
+	public boolean hasBodyFailed() {
+		return bodyFailed;
+	}
+	
+	/**
+	 * Returns a stream with the body of this request.
+	 * 	The body is read from the connection as the stream is read, so a large body
+	 * 	never has to be held in memory. The stream can only be read once.
+	 * 
+	 * @return	A stream with the (decoded) body of this request.
+	 */
+	public InputStream getBodyStream() {
+		if (bodyStream == null)
+			return new ByteArrayInputStream(this.contents);
+		InputStream stream = bodyStream;
+		bodyStream = null;
+		this.contents = new byte[0]; // Consumed by whoever reads the stream
+		unread = stream;
+		return new BodyInputStream(stream);
+	}
+	
+	/**
+	 * A class of streams that remember whether reading the body of this request failed.
+	 */
+	private class BodyInputStream extends FilterInputStream {
+		
+		private BodyInputStream(InputStream stream) {
+			super(stream);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			try {
+				return in.read();
+			} catch (IOException e) {
+				bodyFailed = true;
+				throw e;
+			}
+		}
+		
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			try {
+				return in.read(bytes, offset, length);
+			} catch (IOException e) {
+				bodyFailed = true;
+				throw e;
+			}
+		}
+		
+		@Override
+		public long skip(long count) throws IOException {
+			try {
+				return in.skip(count);
+			} catch (IOException e) {
+				bodyFailed = true;
+				throw e;
+			}
+		}
+		
+	}
+	
+	/**
+	 * Write the (decoded) body of this request to the given channel, at its current position.
+	 * 	The body is copied in large chunks as it is read from the connection, so it never
+	 * 	has to be held in memory. A body that was stored in a file is copied between the
+	 * 	files by the kernel. Like the body stream, the body can only be read once.
+	 * 
+	 * @param 	target
+	 * 			The channel to write the body to.
+	 * @return	The length of the body.
+	 * @throws 	IOException
+	 * 			An I/O error occurred while reading the body or writing it.
+	 */
+	public long transferBodyTo(FileChannel target) throws IOException {
+		if (bodyChannel != null && bodyStream != null) {
+			getBodyStream();
+			unread = null; // Nothing is left to be read
+			long length = bodyChannel.size();
+			for (long position=0 ; position<length ; )
+				position += bodyChannel.transferTo(position, length - position, target);
+			return length;
+		}
+		InputStream stream = getBodyStream();
+		byte[] bytes = new byte[TRANSFER_CHUNK_SIZE];
+		long length = 0;
+		int count;
+		while ((count = stream.read(bytes)) >= 0) {
+			ByteBuffer chunk = ByteBuffer.wrap(bytes, 0, count);
+			while (chunk.hasRemaining())
+				target.write(chunk);
+			length += count;
+		}
+		return length;
+	}
+	
+	/**
+	 * The size of the chunks in which bodies are copied to files.
+	 * 	Reads of this size go straight from the socket, bypassing the connection's buffer.
+	 */
+	private static final int TRANSFER_CHUNK_SIZE = 64 * 1024;
+	
+	/**
+	 * The body stream that was handed out, but may not have been read completely.
+	 */
+	private InputStream unread;
+	
+	/**
+	 * Returns the contents of this request, reading the rest of the body first if needed.
+	 * 
+	 * @throws	UncheckedIOException
+	 * 			The body could not be read.
+	 */
+	@Override
+	public byte[] getContents() {
+		if (bodyStream != null) {
+			try {
+				this.contents = bodyStream.readAllBytes();
+			} catch (IOException e) {
+				bodyFailed = true;
+				throw new UncheckedIOException(e);
+			}
+			unread = bodyStream;
+			bodyStream = null;
+		}
+		return this.contents;
+	}
+	
+	/**
+	 * Read and drop whatever is left of the body of this request, so that the
+	 * 	next request can be read from the same connection.
+	 * 
+	 * @throws	IOException
+	 * 			The body could not be read.
+	 */
+	public void finishBody() throws IOException {
+		InputStream stream = (bodyStream != null ? bodyStream : unread);
+		if (stream != null)
+			stream.transferTo(OutputStream.nullOutputStream());
+		if (bodyStream != null) {
+			unread = bodyStream;
+			bodyStream = null;
+			this.contents = new byte[0];
+		}
+	}
+	
+	/**
+	 * Returns the trailer fields that followed a chunked body.
+	 * 	They are only known once the body has been read completely.
+	 * 
+	 * @return	The trailer fields of this request, which are empty if its body wasn't chunked.
+	 */
+	public Map<String, String> getTrailers() {
+		InputStream stream = (bodyStream != null ? bodyStream : unread);
+		if (stream instanceof ChunkedInputStream)
+			return ((ChunkedInputStream)stream).getTrailers();
+		return Collections.emptyMap();
 	}
 	
     /**
@@ -88,6 +338,24 @@ public class HTTPRequest extends HTTPMessage {
     		return ((HTTPRequestHeader)this.header).getCommand().getType();
     }
     
+    /**
+     * Returns the path of the resource this request is for.
+     * 
+     * @return The decoded path of the URI of this request, without dot segments.
+     */
+    public String getPath() {
+    		return ((HTTPRequestHeader)this.header).getCommand().getPath();
+    }
+    
+    /**
+     * Returns the query of this request.
+     * 
+     * @return The (encoded) query of the URI of this request, or null if it has none.
+     */
+    public String getQuery() {
+    		return ((HTTPRequestHeader)this.header).getCommand().getQuery();
+    }
+    
     /**
      * Returns the URI for this request.
      * 
@@ -103,7 +371,7 @@ public class HTTPRequest extends HTTPMessage {
      * @return 	The contents of this HTTP request, represented as a string.
      */
     public String toString() {
-    		return this.header.toString() + "\r\n" + new String(this.contents);
+    		return this.header.toString() + "\r\n" + (bodyStream == null ? new String(this.contents) : ""); // An unread body stays unread
     }
     
     /**
@@ -115,6 +383,15 @@ public class HTTPRequest extends HTTPMessage {
     		return ((HTTPRequestHeader)this.header).hasHostField();
     }
     
+    /**
+     * Returns whether or not the client expects something of the server before it sends the body of this request.
+     * 
+     * @return	True if and only if this is an HTTP/1.1 request with an expect header field.
+     */
+    public boolean hasExpectation() {
+    		return ((HTTPRequestHeader)this.header).hasExpectation();
+    }
+    
     /**
      * Returns whether or not this request asks for closing the connection.
      * 
@@ -127,21 +404,84 @@ public class HTTPRequest extends HTTPMessage {
     }
     
     /**
-	 * Returns the If-Modified-Since field, formatted as a date.
+	 * Returns the time in the If-Modified-Since field.
 	 * 
-	 * @return The if-modified-since field as a date, or null if 
-	 * 			there is no such field.
+	 * @return The if-modified-since field in milliseconds since the epoch, or HTTPDate.INVALID
+	 * 			if there is no such field or if it isn't a valid date.
 	 */
-	public Date getIfModifiedSinceDate() {
-		String headerField = header.getHeaderField("If-Modified-Since");
-		if (headerField != null) {
-			try {
-				DateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
-				dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-				return dateFormat.parse(headerField);
-			} catch (ParseException e) {System.out.println(e.getLocalizedMessage());}
+	public long getIfModifiedSince() {
+		return getDateField("If-Modified-Since");
+	}
+	
+	/**
+	 * Returns the time in the If-Range field.
+	 * 
+	 * @return The if-range field in milliseconds since the epoch, or HTTPDate.INVALID if there is no
+	 * 			such field, if it holds an entity tag rather than a date or if it isn't a valid date.
+	 */
+	public long getIfRange() {
+		String headerField = header.getHeaderField("If-Range");
+		if (headerField == null || headerField.startsWith("\"") || headerField.startsWith("W/"))
+			return HTTPDate.INVALID;
+		return HTTPDate.parse(headerField);
+	}
+	
+	/**
+	 * Returns the entity tag in the If-Range field.
+	 * 
+	 * @return The strong entity tag in the if-range field (quotes included), or null if
+	 * 			there is no such field or if it holds a date (or a weak tag) instead.
+	 */
+	public String getIfRangeEntityTag() {
+		String headerField = header.getHeaderField("If-Range");
+		if (headerField == null || !headerField.startsWith("\""))
+			return null;
+		return headerField.trim();
+	}
+	
+	/**
+	 * Check whether the If-None-Match field of this request matches the given entity tag.
+	 * 	The weak comparison is used, so weak tags match their strong counterparts.
+	 * 
+	 * @param 	entityTag
+	 * 			The entity tag of the selected representation (quotes included), or null if it has none.
+	 * @return True if and only if this request has an If-None-Match field that is '*'
+	 * 			or that lists the given entity tag.
+	 * @note https://tools.ietf.org/html/rfc7232#section-3.2
+	 */
+	public boolean matchesIfNoneMatch(String entityTag) {
+		String headerField = header.getHeaderField("If-None-Match");
+		if (headerField == null)
+			return false;
+		if (headerField.trim().equals("*"))
+			return true;
+		if (entityTag == null)
+			return false;
+		if (entityTag.startsWith("W/"))
+			entityTag = entityTag.substring(2); // Compared by their opaque part
+		int index = 0;
+		while ((index = headerField.indexOf('"', index)) >= 0) { // Every quoted tag, with or without W/
+			int end = headerField.indexOf('"', index + 1);
+			if (end < 0)
+				return false;
+			if (headerField.regionMatches(index, entityTag, 0, entityTag.length()) && entityTag.length() == end - index + 1)
+				return true;
+			index = end + 1;
 		}
-		return null;
+		return false;
+	}
+	
+	/**
+	 * Returns the time in the header field with given name.
+	 * 
+	 * @param 	name
+	 * 			The name of the header field.
+	 * @return The header field in milliseconds since the epoch, or HTTPDate.INVALID
+	 * 			if there is no such field or if it isn't a valid date.
+	 */
+	private long getDateField(String name) {
+		String headerField = header.getHeaderField(name);
+		return (headerField == null ? HTTPDate.INVALID : HTTPDate.parse(headerField));
 	}
 	
 }
\ No newline at end of file
@@ -1,13 +1,12 @@
 package org.brunovandekerkhove.http;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.net.URI;
-import java.net.URISyntaxException;
 
 import org.brunovandekerkhove.http.HTTPHeader;
 import org.brunovandekerkhove.utils.ClosedSocketException;
-import org.brunovandekerkhove.utils.SocketUtils;
 
 /**
  * A class of HTTP request headers.
@@ -25,22 +24,71 @@ public class HTTPRequestHeader extends HTTPHeader {
 	 * @throws	ClosedSocketException 
      * 			The given socket was closed while it was being read from. 
 	 */
-	public HTTPRequestHeader(Socket socket) throws IOException, URISyntaxException, ClosedSocketException {
-		super(socket);
+	public HTTPRequestHeader(Socket socket) throws IOException, ClosedSocketException {
+		this(socket.getInputStream());
+	}
+	
+	/**
+	 * Initialize this new HTTP request header by reading from the given input stream.
+	 * 
+	 * @param 	inputStream
+	 * 			The input stream to read from.
+	 * @throws	ClosedSocketException 
+     * 			The given stream ended before the header could be read. 
+	 */
+	public HTTPRequestHeader(InputStream inputStream) throws IOException, ClosedSocketException {
+		this(HeaderParser.read(inputStream));
+	}
+	
+	/**
+	 * Initialize this new HTTP request header with the given parsed header.
+	 * 
+	 * @param 	parsed
+	 * 			A parser holding a complete request header.
+	 * @throws	ProtocolException
+	 * 			The request line or the Host field is malformed.
+	 * @throws	IOException
+	 * 			An I/O error occurred.
+	 */
+	public HTTPRequestHeader(HeaderParser parsed) throws IOException {
+		super(parsed);
 		String host = "localhost";
 		int port = 80;
-		if (headers.containsKey("Host")) {
-			host = headers.get("Host");
-			if (host.contains(":")) {
-				int index = host.indexOf(":");
-				port = Integer.parseInt(host.substring(index+1));
-				host = host.substring(0, index);
+		String hostField = (target.getAuthority() != null ? target.getAuthority() : getHeaderField("Host")); // An absolute target wins
+		if (hostField != null) {
+			host = hostField;
+			int colon = hostField.lastIndexOf(':');
+			if (colon >= 0 && colon > hostField.lastIndexOf(']')) { // Not part of an IPv6 address
+				port = parsePort(hostField, colon + 1);
+				host = hostField.substring(0, colon);
 			}
 		}
-		URI currentURI = this.command.getURI();
-		System.out.println(currentURI);
-		URI newURI = new URI("http", null, host, port, currentURI.getPath(), null, null);
-		this.command = new HTTPCommand(newURI, port, this.command.getType());
+		this.command = new HTTPCommand(target, host, port, type);
+		this.target = null;
+		this.type = null;
+	}
+	
+	/**
+	 * Parse the port number at the end of the given Host field.
+	 * 
+	 * @param 	hostField
+	 * 			The Host field.
+	 * @param 	start
+	 * 			The index at which the port number starts.
+	 * @return	The port number, or 80 if it is empty.
+	 * @throws	ProtocolException
+	 * 			The port number is invalid.
+	 */
+	private static int parsePort(String hostField, int start) throws ProtocolException {
+		if (start == hostField.length())
+			return 80;
+		int port = 0;
+		for (int i=start ; i<hostField.length() ; i++) {
+			int digit = hostField.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || (port = port * 10 + digit) > 65535)
+				throw new ProtocolException("Invalid port in Host field.");
+		}
+		return port;
 	}
 
 	/**
@@ -61,30 +109,49 @@ public class HTTPRequestHeader extends HTTPHeader {
 	}
 
 	@Override
-	protected void parseStatusLine(Socket socket) throws IOException, ClosedSocketException {
-
-		// Get first line
-		String statusLine = SocketUtils.nextLine(socket);
-		int firstSpace = statusLine.indexOf(" ");
-		String commandString = statusLine.substring(0, firstSpace);
-		int secondSpace = statusLine.indexOf(" ", firstSpace + " ".length());
-		String resourceString = statusLine.substring(firstSpace + " ".length(), secondSpace);
-		String versionString = statusLine.substring(secondSpace + " ".length());
-
-		// Parse line (can't really use splitting of string at spaces)
-		this.version = HTTPVersion.versionForString(versionString);
-		try {
-			System.out.println(resourceString);
-			this.command = new HTTPCommand(new URI("http", "localhost", resourceString, null), 80, commandString);
-		} catch (URISyntaxException e) {
-			System.out.println(e.getLocalizedMessage());
+	protected void parseStatusLine(String statusLine) throws IOException {
+
+		// Split the request line
+		int firstSpace = statusLine.indexOf(' ');
+		int secondSpace = statusLine.lastIndexOf(' ');
+		if (firstSpace <= 0 || secondSpace <= firstSpace + 1)
+			throw new ProtocolException("Malformed request line.");
+
+		// Parse its parts, the command is completed once the Host field is known
+		this.type = HTTPCommand.typeFor(statusLine, firstSpace);
+		this.target = RequestTarget.parse(statusLine, firstSpace + 1, secondSpace);
+		this.version = HTTPVersion.versionForString(statusLine, secondSpace + 1);
+		if (this.version == null) {
+			String version = statusLine.substring(secondSpace + 1);
+			if (isVersion(version))
+				throw new UnsupportedVersionException(version);
+			throw new ProtocolException("Malformed HTTP version.");
 		}
 
 	}
 
+	/**
+	 * Returns whether the given string is a well-formed HTTP version ('HTTP/' followed by a major and minor version number).
+	 */
+	private static boolean isVersion(String version) {
+		if (version.length() != 8 || !version.startsWith("HTTP/") || version.charAt(6) != '.')
+			return false;
+		return (Character.isDigit(version.charAt(5)) && Character.isDigit(version.charAt(7)));
+	}
+	
+	/**
+	 * The command type in the request line, while the header is being initialized.
+	 */
+	private String type;
+	
+	/**
+	 * The request target in the request line, while the header is being initialized.
+	 */
+	private RequestTarget target;
+
 	@Override
 	public String getStatusLine() {
-		String path = getCommand().getURI().getPath();
+		String path = getCommand().getPath();
 		if (path == null || path.length() < 1)
 			path = "/";
 		return command.getType() + " " + path + " " + version.toString();
@@ -108,7 +175,46 @@ public class HTTPRequestHeader extends HTTPHeader {
 	 * @return	True if and only if this header has a host header field.
 	 */
 	public boolean hasHostField() {
-		return headers.containsKey("Host");
+		return hasHeaderField("Host");
+	}
+
+	/**
+	 * Returns the length of the body of the request as given by its Content-Length field.
+	 * 	The field is ignored for chunked requests, whose body ends with its last chunk.
+	 * 
+	 * @return	The length of the body, or -1 if the header has no (applicable) Content-Length field.
+	 * @throws 	ProtocolException
+	 * 			The Content-Length field isn't a non-negative decimal number, so there's no telling where the body ends.
+	 * @note	https://tools.ietf.org/html/rfc7230#section-3.3.3
+	 */
+	public long getContentLength() throws ProtocolException {
+		String lengthField = getHeaderField("Content-Length");
+		if (lengthField == null || isChunked())
+			return -1;
+		String length = lengthField.trim();
+		if (length.isEmpty() || length.length() > MAX_CONTENT_LENGTH_DIGITS)
+			throw new ProtocolException("Invalid Content-Length.");
+		for (int i=0 ; i<length.length() ; i++) {
+			if (length.charAt(i) < '0' || length.charAt(i) > '9') // No signs, no lists of lengths
+				throw new ProtocolException("Invalid Content-Length.");
+		}
+		return Long.parseLong(length);
+	}
+
+	/**
+	 * The maximum number of digits in a Content-Length field, which keeps it within a long.
+	 */
+	private static final int MAX_CONTENT_LENGTH_DIGITS = 18;
+
+	/**
+	 * Returns whether or not the client expects something of the server before it sends the body.
+	 * 	Expectations are ignored in HTTP/1.0 requests.
+	 * 
+	 * @return	True if and only if this is an HTTP/1.1 request header with an expect header field.
+	 * @note	https://tools.ietf.org/html/rfc7231#section-5.1.1
+	 */
+	public boolean hasExpectation() {
+		return (version == HTTPVersion.HTTP_11 && hasHeaderField("Expect"));
 	}
 
 }
\ No newline at end of file
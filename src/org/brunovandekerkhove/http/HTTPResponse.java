@@ -3,7 +3,14 @@ package org.brunovandekerkhove.http;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+import org.brunovandekerkhove.utils.BufferPool;
 import org.brunovandekerkhove.utils.ClosedSocketException;
 import org.brunovandekerkhove.utils.SocketUtils;
 
@@ -27,8 +34,10 @@ public class HTTPResponse extends HTTPMessage {
 	 */
 	public HTTPResponse(Socket socket) throws IOException, ClosedSocketException {
 		this.header = new HTTPResponseHeader(socket);
-		if (this.header.getHeaders().containsKey("Content-Length")) {
-            int length = Integer.parseInt(this.header.getHeaders().get("Content-Length"));
+		if (this.header.isChunked())
+			this.contents = new ChunkedInputStream(socket.getInputStream()).readAllBytes();
+		else if (this.header.hasHeaderField("Content-Length")) {
+            int length = Integer.parseInt(this.header.getHeaderField("Content-Length"));
             this.contents = SocketUtils.getBytes(socket, length);
         } else { // No Content-Length specified
         		this.contents = new byte[0];
@@ -46,7 +55,7 @@ public class HTTPResponse extends HTTPMessage {
 	 * 			The message in the response.
 	 */
 	public HTTPResponse(HTTPVersion version, int status, String message) {
-		this(version, status, message, null, null);
+		this(version, status, message, (byte[])null, null);
 	}
 	
 	/**
@@ -66,8 +75,11 @@ public class HTTPResponse extends HTTPMessage {
 	 */
 	public HTTPResponse(HTTPVersion version, int status, String message, byte[] contents, String contentType) {
         header = new HTTPResponseHeader(message, status, version);
-        if (contents == null)
+        if (contents == null) {
         		this.contents = new byte[0];
+        		if (status >= 200 && status != 204 && status != 304) // Otherwise clients read until the connection closes
+        			header.addHeaderField("Content-Length", "0");
+        }
         else  {
         		this.contents = contents;
         		header.addHeaderField("Content-Type", contentType);
@@ -75,6 +87,251 @@ public class HTTPResponse extends HTTPMessage {
         }
     }
 	
+	/**
+	 * Initialize this new HTTP response with given HTTP version, status code, status message,
+	 *  content region and content type. The body of the response is not held in memory
+	 *  but written straight from the given region.
+	 *  
+	 * @param 	version
+	 * 			The HTTP version for this response.
+	 * @param 	status
+	 * 			The status code in this response.
+	 * @param 	message
+	 * 			The status message in this response.
+	 * @param 	region
+	 * 			The region holding the body of this response.
+	 * @param 	contentType
+	 * 			The content type of the body.
+	 */
+	public HTTPResponse(HTTPVersion version, int status, String message, ContentRegion region, String contentType) {
+		this(version, status, message, Collections.singletonList(region), contentType);
+	}
+	
+	/**
+	 * Initialize this new HTTP response with given HTTP version, status code, status message,
+	 *  content regions and content type. The body of the response is made up of the
+	 *  given regions, in order.
+	 *  
+	 * @param 	version
+	 * 			The HTTP version for this response.
+	 * @param 	status
+	 * 			The status code in this response.
+	 * @param 	message
+	 * 			The status message in this response.
+	 * @param 	regions
+	 * 			The regions holding the body of this response.
+	 * @param 	contentType
+	 * 			The content type of the body.
+	 */
+	public HTTPResponse(HTTPVersion version, int status, String message, List<ContentRegion> regions, String contentType) {
+		header = new HTTPResponseHeader(message, status, version);
+		this.contents = new byte[0];
+		long length = 0;
+		for (ContentRegion region : regions) {
+			this.regions.add(region);
+			length += region.getLength();
+		}
+		header.addHeaderField("Content-Type", contentType);
+		header.addHeaderField("Content-Length", Long.toString(length));
+	}
+	
+	/**
+	 * Initialize this new HTTP response with given HTTP version, status code, status message,
+	 *  body source and content type. The length of the body doesn't need to be known : it is
+	 *  read from the source as it is being sent, with the chunked transfer coding for HTTP/1.1
+	 *  (HTTP/1.0 clients read it until the connection is closed).
+	 *  
+	 * @param 	version
+	 * 			The HTTP version for this response.
+	 * @param 	status
+	 * 			The status code in this response.
+	 * @param 	message
+	 * 			The status message in this response.
+	 * @param 	source
+	 * 			The channel the body of this response is read from. It is closed once it has been sent.
+	 * @param 	contentType
+	 * 			The content type of the body.
+	 */
+	public HTTPResponse(HTTPVersion version, int status, String message, ReadableByteChannel source, String contentType) {
+		header = new HTTPResponseHeader(message, status, version);
+		this.contents = new byte[0];
+		boolean chunked = (version != HTTPVersion.HTTP_10);
+		this.regions.add(new ContentRegion(source, chunked));
+		header.addHeaderField("Content-Type", contentType);
+		if (chunked)
+			header.addHeaderField("Transfer-Encoding", "chunked");
+	}
+	
+	/**
+	 * Initialize this new HTTP response with given header and serialized form.
+	 * 	This is used for responses that were serialized before, eg. by a cache.
+	 *  
+	 * @param 	header
+	 * 			The header of this response, which is shared and thus never changed by it.
+	 * @param 	serialized
+	 * 			The complete response (header and body) as it is to be written.
+	 */
+	public HTTPResponse(HTTPHeader header, ByteBuffer serialized) {
+		this.header = header;
+		this.contents = new byte[0];
+		this.serialized = serialized;
+		this.sharedHeader = true;
+	}
+	
+	/**
+	 * The complete response as it is to be written, or null if it is to be serialized.
+	 */
+	private ByteBuffer serialized;
+	
+	/**
+	 * Whether the header of this response is shared with other responses (eg. by a cache).
+	 */
+	private boolean sharedHeader = false;
+	
+	/**
+	 * Have the connection this response is sent on closed once it has been sent, by adding
+	 * 	a 'Connection: close' field to its header. A response whose header is shared gets a
+	 * 	copy of the header first, and is serialized again rather than sent as it was.
+	 */
+	public void addConnectionClose() {
+		if (sharedHeader) {
+			if (serialized != null) { // The body follows the header
+				ByteBuffer body = serialized.duplicate();
+				body.position(body.position() + header.getEncodedLength());
+				this.contents = new byte[body.remaining()];
+				body.get(this.contents);
+				this.serialized = null;
+			}
+			this.header = ((HTTPResponseHeader)header).copy();
+			this.sharedHeader = false;
+		}
+		header.addHeaderField("Connection", "close");
+	}
+	
+	/**
+	 * Serialize the header of this response, followed by its contents.
+	 * 
+	 * @return	A buffer holding the header and contents, ready to be written.
+	 */
+	public ByteBuffer encode() {
+		ByteBuffer buffer = ByteBuffer.allocate(header.getEncodedLength() + contents.length);
+		header.encode(buffer);
+		buffer.put(contents).flip();
+		return buffer;
+	}
+	
+	/**
+	 * Returns the regions to write in order to send this response.
+	 * 	The first one holds the header and contents, the others the rest of the body.
+	 * 	The header and contents are serialized into a pooled direct buffer when they fit,
+	 * 	so the regions should be closed once they have been written.
+	 */
+	public List<ContentRegion> toRegions() {
+		return toRegions(0);
+	}
+	
+	/**
+	 * Returns the regions to write in order to send this response, copying the first regions
+	 * 	of its body (files or buffers) in after the header as long as the whole stays within the
+	 * 	given size. A small response then goes out with a single write (in a single segment)
+	 * 	instead of a write for its header followed by a sendfile for its body.
+	 * 	The regions should be closed once they have been written.
+	 * 
+	 * @param 	coalesceLimit
+	 * 			The size up to which the body is copied into the buffer of the header, or 0 to never copy it.
+	 */
+	public List<ContentRegion> toRegions(int coalesceLimit) {
+		List<ContentRegion> list = new ArrayList<ContentRegion>(regions.size() + 1);
+		int first = 0; // The first region that isn't copied
+		if (serialized != null) {
+			int dateOffset = (header instanceof HTTPResponseHeader ? ((HTTPResponseHeader)header).getDateOffset() : -1);
+			if (dateOffset < 0)
+				list.add(new ContentRegion(serialized));
+			else { // The date it was serialized at is replaced by the current one, the buffers are written together
+				int start = serialized.position();
+				ByteBuffer before = serialized.duplicate(), after = serialized.duplicate();
+				before.limit(start + dateOffset);
+				after.position(start + dateOffset + HTTPDate.LENGTH);
+				list.add(new ContentRegion(before));
+				list.add(new ContentRegion(ByteBuffer.wrap(HTTPDate.nowBytes())));
+				list.add(new ContentRegion(after));
+			}
+		}
+		else {
+			int size = header.getEncodedLength() + contents.length;
+			long limit = Math.min(coalesceLimit, MAX_POOLED_SIZE), coalescedSize = size;
+			while (first < regions.size() && regions.get(first).getLength() >= 0 && coalescedSize + regions.get(first).getLength() <= limit)
+				coalescedSize += regions.get(first++).getLength();
+			BufferPool pool = BufferPool.getDefaultPool();
+			if (coalescedSize <= MAX_POOLED_SIZE) { // The header is encoded right into the buffer
+				ByteBuffer buffer = pool.lease((int)coalescedSize);
+				header.encode(buffer);
+				buffer.put(contents);
+				for (int i=0 ; i<first ; i++) {
+					int position = buffer.position();
+					try {
+						regions.get(i).copyTo(buffer);
+						regions.get(i).close();
+					} catch (IOException e) { // The region is written as it is, where the error will show
+						buffer.position(position);
+						first = i;
+					}
+				}
+				buffer.flip();
+				list.add(new ContentRegion(buffer, pool));
+			}
+			else
+				list.add(new ContentRegion(encode()));
+		}
+		regions.subList(0, first).clear(); // They're part of the first region now
+		list.addAll(regions);
+		return list;
+	}
+	
+	/**
+	 * The size of the largest header and contents that are serialized into a pooled buffer.
+	 */
+	private static final int MAX_POOLED_SIZE = 64 * 1024;
+	
+	/**
+	 * Returns a region holding an interim '100 Continue' response, which tells a client
+	 * 	that expects it to go on sending the body of its request.
+	 * 
+	 * @note	https://tools.ietf.org/html/rfc7231#section-6.2.1
+	 */
+	public static ContentRegion continueRegion() {
+		return new ContentRegion(ByteBuffer.wrap(CONTINUE).asReadOnlyBuffer());
+	}
+	
+	/**
+	 * An interim '100 Continue' response, as it is written.
+	 */
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	
+	/**
+	 * Returns the regions that make up the body of this response, after its contents.
+	 */
+	public List<ContentRegion> getRegions() {
+		return this.regions;
+	}
+	
+	/**
+	 * Discard the body of this response while keeping its header intact.
+	 * 	This is what a response to a HEAD request looks like.
+	 */
+	public void discardBody() {
+		this.contents = new byte[0];
+		this.serialized = null;
+		for (ContentRegion region : regions)
+			region.close();
+		regions.clear();
+	}
+	
+	/**
+	 * The regions that make up the body of this response, after its contents.
+	 */
+	private final List<ContentRegion> regions = new ArrayList<ContentRegion>();
+	
 	/**
      * Returns the status code for this HTTP message.
      */
@@ -98,7 +355,7 @@ public class HTTPResponse extends HTTPMessage {
      */
     public URI getLocation() {
     		try {
-    			if (header.getHeaders().containsKey("Location")) {
+    			if (header.hasHeaderField("Location")) {
     	            String location = header.getHeaderField("Location");
     	            URI uri = new URI(location);
     	            return uri;
@@ -2,9 +2,9 @@ package org.brunovandekerkhove.http;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 import org.brunovandekerkhove.utils.ClosedSocketException;
-import org.brunovandekerkhove.utils.SocketUtils;
 
 /**
  * A class representing the headers of a response
@@ -28,6 +28,7 @@ public class HTTPResponseHeader extends HTTPHeader {
 	
 	/**
 	 * Initialize this new HTTP response header with given message, status and HTTP version.
+	 * 	The header starts with a Date field holding the current date.
 	 * 
 	 * @param 	message
 	 * 			The message for this new HTTP response header.
@@ -40,13 +41,39 @@ public class HTTPResponseHeader extends HTTPHeader {
         super(version);
         this.message = message;
         this.status = status;
+        addHeaderField("Date", HTTPDate.now()); // https://tools.ietf.org/html/rfc7231#section-7.1.1.2
+    }
+    
+    /**
+     * Returns a copy of this header, which can be changed without affecting this header.
+     *  The copy is dated now.
+     */
+    public HTTPResponseHeader copy() {
+    		HTTPResponseHeader copy = new HTTPResponseHeader(message, status, version);
+    		HeaderFields fields = getHeaders();
+    		for (int i=0 ; i<fields.size() ; i++) {
+    			if (!fields.getName(i).equals("Date"))
+    				copy.getHeaders().add(fields.getName(i), fields.getValue(i));
+    		}
+    		return copy;
+    }
+    
+    /**
+     * Returns the index of the value of the Date field in this header as it is encoded,
+     *  or -1 if this header doesn't start with a Date field. Encoded headers can then have
+     *  their date replaced by the current one (see HTTPDate), as it always has the same length.
+     */
+    public int getDateOffset() {
+    		HeaderFields fields = getHeaders();
+    		if (fields.size() == 0 || !fields.getName(0).equals("Date") || fields.getValue(0).length() != HTTPDate.LENGTH)
+    			return -1;
+    		return getStatusLineLength() + 2 + "Date: ".length();
     }
     
     @Override
-    protected void parseStatusLine(Socket socket) throws IOException, ClosedSocketException {
+    protected void parseStatusLine(String statusLine) throws IOException {
     		
-    		// Get status line and get its parts
-    		String statusLine = SocketUtils.nextLine(socket);
+    		// Get the parts of the status line
         int firstSpace = statusLine.indexOf(" ");
         if (firstSpace > 0) {
         	
@@ -74,6 +101,39 @@ public class HTTPResponseHeader extends HTTPHeader {
         return this.version + " " + this.status + " " + this.message;
     }
     
+    @Override
+    protected int getStatusLineLength() {
+    		if (!hasCommonStatusLine())
+    			return super.getStatusLineLength();
+    		return 8 + 1 + 3 + 1 + message.length();
+    }
+    
+    @Override
+    protected void encodeStatusLine(ByteBuffer buffer) {
+    		if (!hasCommonStatusLine()) {
+    			super.encodeStatusLine(buffer);
+    			return;
+    		}
+    		buffer.put(version == HTTPVersion.HTTP_10 ? HTTP_10 : HTTP_11).put((byte)' ');
+    		buffer.put((byte)('0' + status / 100)).put((byte)('0' + status / 10 % 10)).put((byte)('0' + status % 10));
+    		buffer.put((byte)' ');
+    		HeaderFields.put(buffer, message);
+    }
+    
+    /**
+     * Returns whether the status line of this header has a version, a three digit status and a message,
+     *  so it can be encoded without creating it.
+     */
+    private boolean hasCommonStatusLine() {
+    		return (version != null && status >= 100 && status <= 999 && message != null);
+    }
+    
+    /**
+     * The versions as they appear in a status line.
+     */
+    private static final byte[] HTTP_10 = {'H', 'T', 'T', 'P', '/', '1', '.', '0'},
+    		HTTP_11 = {'H', 'T', 'T', 'P', '/', '1', '.', '1'};
+    
     /**
      * The message for this response header.
      */
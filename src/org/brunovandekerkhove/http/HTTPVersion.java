@@ -26,6 +26,26 @@ public enum HTTPVersion {
 		else return null;
 	}
 	
+	/**
+	 * Returns the HTTP version at the end of the given string, starting at the given index.
+	 * 	The common versions are recognized without creating any strings.
+	 * 
+	 * @param 	string
+	 * 			The string ending with a version (typically a request line).
+	 * @param 	start
+	 * 			The index at which the version starts.
+	 * @return	The HTTP version, or null if it isn't supported.
+	 */
+	public static HTTPVersion versionForString(String string, int start) {
+		if (string.length() - start == 8) {
+			if (string.regionMatches(true, start, "HTTP/1.1", 0, 8))
+				return HTTP_11;
+			if (string.regionMatches(true, start, "HTTP/1.0", 0, 8))
+				return HTTP_10;
+		}
+		return versionForString(string.substring(start));
+	}
+	
 	/**
 	 * Returns a textual representation of the given HTTP version.
 	 * 
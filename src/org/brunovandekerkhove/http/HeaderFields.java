@@ -0,0 +1,381 @@
+package org.brunovandekerkhove.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A class of compact containers for the fields of an HTTP header.
+ * 	Fields are kept in flat arrays, and are encoded as they are added : the wire form
+ * 	of all fields ('Name: value\r\n' each) sits in a single byte array, so a header is
+ * 	serialized with a single copy. Names are case-insensitive. Well-known names are
+ * 	replaced by an interned constant, are encoded in advance, and are looked up in
+ * 	constant time regardless of the number of fields.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://tools.ietf.org/html/rfc7230#section-3.2
+ */
+public class HeaderFields {
+
+	/**
+	 * Initialize this new container without any fields.
+	 */
+	public HeaderFields() {
+	}
+
+	/**
+	 * Returns the number of fields in this container.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * The number of fields in this container.
+	 */
+	private int size = 0;
+
+	/**
+	 * Returns the name of the field with given index.
+	 */
+	public String getName(int index) {
+		return this.names[index];
+	}
+
+	/**
+	 * The names of the fields in this container, in order.
+	 */
+	private String[] names = new String[INITIAL_CAPACITY];
+
+	/**
+	 * Returns the value of the field with given index.
+	 */
+	public String getValue(int index) {
+		return this.values[index];
+	}
+
+	/**
+	 * The values of the fields in this container, in order.
+	 */
+	private String[] values = new String[INITIAL_CAPACITY];
+
+	/**
+	 * Find the last field with given name.
+	 *
+	 * @param 	name
+	 * 			The name of the field, in any case.
+	 * @return	The index of the last field with given name, or -1 if there is none.
+	 */
+	public int lastIndexOf(String name) {
+		return lastIndexOf(name, knownIndex(name));
+	}
+
+	/**
+	 * Find the last field with given name, which is the well-known name with given index (or -1 if it isn't well-known).
+	 */
+	private int lastIndexOf(String name, int known) {
+		if (known >= 0)
+			return lastKnown[known] - 1;
+		for (int index=size-1 ; index>=0 ; index--)
+			if (names[index].equalsIgnoreCase(name))
+				return index;
+		return -1;
+	}
+
+	/**
+	 * For every well-known name, one more than the index of the last field with that name (0 if there is none).
+	 */
+	private short[] lastKnown = new short[KNOWN_NAMES.length];
+
+	/**
+	 * Returns the value of the last field with given name, or null if there is none.
+	 *
+	 * @param 	name
+	 * 			The name of the field, in any case.
+	 */
+	public String get(String name) {
+		int index = lastIndexOf(name);
+		return (index < 0 ? null : values[index]);
+	}
+
+	/**
+	 * Set the field with given name to the given value, replacing the fields with that name.
+	 *
+	 * @param 	name
+	 * 			The name of the field.
+	 * @param 	value
+	 * 			The value of the field.
+	 * @throws 	IllegalArgumentException
+	 * 			The name or value holds a line break.
+	 */
+	public void set(String name, String value) {
+		int known = knownIndex(name), index;
+		while ((index = lastIndexOf(name, known)) >= 0)
+			remove(index);
+		add(name, value, known);
+	}
+
+	/**
+	 * Add a field with given name and value, after the fields in this container.
+	 * 	Fields with the same name that were added before are kept (as they are when
+	 * 	a header holds a field more than once), but lookups find the new one.
+	 *
+	 * @param 	name
+	 * 			The name of the field.
+	 * @param 	value
+	 * 			The value of the field.
+	 * @throws 	IllegalArgumentException
+	 * 			The name or value holds a line break.
+	 */
+	public void add(String name, String value) {
+		add(name, value, knownIndex(name));
+	}
+
+	/**
+	 * Add a field with given name and value, the name being the well-known name with given index (or -1 if it isn't well-known).
+	 */
+	private void add(String name, String value, int known) {
+		if (value == null)
+			value = "";
+		if (size == names.length) {
+			names = Arrays.copyOf(names, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+			ends = Arrays.copyOf(ends, size * 2);
+		}
+		int required = length + name.length() + value.length() + 4;
+		if (required > data.length)
+			data = Arrays.copyOf(data, Math.max(required, data.length * 2));
+		int end = length;
+		if (known >= 0) {
+			name = KNOWN_NAMES[known];
+			System.arraycopy(ENCODED_NAMES[known], 0, data, end, name.length() + 2);
+			end += name.length() + 2;
+		}
+		else {
+			end = encode(name, data, end);
+			data[end++] = ':';
+			data[end++] = ' ';
+		}
+		end = encode(value, data, end);
+		data[end++] = '\r';
+		data[end++] = '\n';
+		names[size] = name;
+		values[size] = value;
+		ends[size] = end;
+		length = end;
+		size++;
+		if (known >= 0)
+			lastKnown[known] = (short)size;
+	}
+
+	/**
+	 * Remove the field with given index.
+	 */
+	private void remove(int index) {
+		int start = (index == 0 ? 0 : ends[index - 1]), fieldLength = ends[index] - start;
+		System.arraycopy(data, ends[index], data, start, length - ends[index]);
+		length -= fieldLength;
+		for (int i=index ; i<size-1 ; i++) {
+			names[i] = names[i + 1];
+			values[i] = values[i + 1];
+			ends[i] = ends[i + 1] - fieldLength;
+		}
+		size--;
+		names[size] = null;
+		values[size] = null;
+		Arrays.fill(lastKnown, (short)0);
+		for (int i=0 ; i<size ; i++) {
+			int known = knownIndex(names[i]);
+			if (known >= 0)
+				lastKnown[known] = (short)(i + 1);
+		}
+	}
+
+	/**
+	 * The wire form of the fields in this container, from the start up to its length.
+	 */
+	private byte[] data = new byte[INITIAL_CAPACITY * 32];
+
+	/**
+	 * The length of the wire form of the fields in this container.
+	 */
+	private int length = 0;
+
+	/**
+	 * For every field, the index in the wire form right after its line break.
+	 */
+	private int[] ends = new int[INITIAL_CAPACITY];
+
+	/**
+	 * Returns the amount of bytes the fields in this container take up when they're sent.
+	 */
+	public int getEncodedLength() {
+		return this.length;
+	}
+
+	/**
+	 * Put the fields in this container in the given buffer, as they are sent.
+	 *
+	 * @param 	buffer
+	 * 			The buffer to put the fields in. It must have room for them.
+	 */
+	public void encode(ByteBuffer buffer) {
+		buffer.put(data, 0, length);
+	}
+
+	@Override
+	public String toString() {
+		return new String(data, 0, length, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Encode the given string into the given array at the given index, as ISO-8859-1.
+	 * 	Characters that don't fit in a byte are replaced by a question mark.
+	 *
+	 * @return	The index in the array right after the encoded string.
+	 * @throws 	IllegalArgumentException
+	 * 			The string holds a line break.
+	 */
+	private static int encode(String string, byte[] bytes, int index) {
+		for (int i=0 ; i<string.length() ; i++) {
+			char current = string.charAt(i);
+			if (current < ' ' || current > 0xFF) { // Rare, so checked apart
+				if (current == '\r' || current == '\n') // A line break would end the field (or the header)
+					throw new IllegalArgumentException("Line break in header field.");
+				if (current > 0xFF)
+					current = '?';
+			}
+			bytes[index++] = (byte)current;
+		}
+		return index;
+	}
+
+	/**
+	 * Put the given string in the given buffer, as ISO-8859-1.
+	 *
+	 * @param 	buffer
+	 * 			The buffer to put the string in. It must have room for it.
+	 * @param 	string
+	 * 			A string without characters that don't fit in a byte.
+	 */
+	static void put(ByteBuffer buffer, String string) {
+		for (int i=0 ; i<string.length() ; i++)
+			buffer.put((byte)string.charAt(i));
+	}
+
+	/**
+	 * Returns the index of the well-known name equal to the given name (in any case), or -1 if it isn't well-known.
+	 */
+	private static int knownIndex(String name) {
+		int exact = EXACT_TABLE[name.hashCode() & (EXACT_TABLE.length - 1)]; // Names are mostly given in their usual case
+		if (exact != 0 && KNOWN_NAMES[exact - 1].equals(name))
+			return exact - 1;
+		int hash = 0;
+		for (int i=0 ; i<name.length() ; i++)
+			hash = 31 * hash + (name.charAt(i) | 0x20);
+		for (int slot=hash & (TABLE.length - 1) ; TABLE[slot] != 0 ; slot=(slot + 1) & (TABLE.length - 1)) {
+			String known = KNOWN_NAMES[TABLE[slot] - 1];
+			if (known == name || known.equalsIgnoreCase(name))
+				return TABLE[slot] - 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the well-known name that is equal (in any case) to the name in the given part of
+	 * 	the given bytes, or null if the name isn't well-known. No strings are created.
+	 *
+	 * @param 	bytes
+	 * 			The bytes holding the name, as ISO-8859-1.
+	 * @param 	start
+	 * 			The index at which the name starts.
+	 * @param 	end
+	 * 			The index at which the name ends.
+	 */
+	static String knownName(byte[] bytes, int start, int end) {
+		int hash = 0;
+		for (int i=start ; i<end ; i++)
+			hash = 31 * hash + ((bytes[i] & 0xFF) | 0x20);
+		for (int slot=hash & (TABLE.length - 1) ; TABLE[slot] != 0 ; slot=(slot + 1) & (TABLE.length - 1)) {
+			String known = KNOWN_NAMES[TABLE[slot] - 1];
+			if (known.length() == end - start && equalsIgnoreCase(bytes, start, known))
+				return known;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns whether the bytes at the given index are equal to the given name, ignoring case.
+	 *
+	 * @param 	bytes
+	 * 			The bytes holding a name, as ISO-8859-1. They must hold as many bytes as the given name after the given index.
+	 * @param 	start
+	 * 			The index at which the name in the bytes starts.
+	 * @param 	name
+	 * 			The name to compare with.
+	 */
+	static boolean equalsIgnoreCase(byte[] bytes, int start, String name) {
+		for (int i=0 ; i<name.length() ; i++) {
+			int current = bytes[start + i] & 0xFF, other = name.charAt(i);
+			if (current != other) {
+				int lower = current | 0x20;
+				if (lower != (other | 0x20) || lower < 'a' || lower > 'z')
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The initial number of fields a container has room for.
+	 */
+	private static final int INITIAL_CAPACITY = 8;
+
+	/**
+	 * The well-known names, in their usual case.
+	 */
+	private static final String[] KNOWN_NAMES = {
+			"Accept", "Accept-Encoding", "Accept-Language", "Accept-Ranges", "Cache-Control",
+			"Connection", "Content-Encoding", "Content-Length", "Content-Range", "Content-Type",
+			"Date", "ETag", "Expect", "Host", "If-Modified-Since", "If-None-Match", "If-Range",
+			"If-Unmodified-Since", "Last-Modified", "Location", "Range", "Referer", "Retry-After",
+			"Server", "Transfer-Encoding", "User-Agent", "Vary"
+	};
+
+	/**
+	 * The well-known names followed by a colon and a space, as they are sent.
+	 */
+	private static final byte[][] ENCODED_NAMES = new byte[KNOWN_NAMES.length][];
+
+	/**
+	 * A hash table of the well-known names, holding one more than their index (0 for empty slots).
+	 * 	The hash of a name ignores its case.
+	 */
+	private static final byte[] TABLE = new byte[64];
+
+	/**
+	 * A table of the well-known names in their usual case, by their (cached) string hash code,
+	 * 	holding one more than their index (0 for empty slots). Colliding names are only in the other table.
+	 */
+	private static final byte[] EXACT_TABLE = new byte[256];
+
+	static {
+		for (int known=0 ; known<KNOWN_NAMES.length ; known++) {
+			int exactSlot = KNOWN_NAMES[known].hashCode() & (EXACT_TABLE.length - 1);
+			if (EXACT_TABLE[exactSlot] == 0)
+				EXACT_TABLE[exactSlot] = (byte)(known + 1);
+			String name = KNOWN_NAMES[known];
+			ENCODED_NAMES[known] = new byte[name.length() + 2];
+			encode(name + ": ", ENCODED_NAMES[known], 0);
+			int hash = 0;
+			for (int i=0 ; i<name.length() ; i++)
+				hash = 31 * hash + (name.charAt(i) | 0x20);
+			int slot = hash & (TABLE.length - 1);
+			while (TABLE[slot] != 0)
+				slot = (slot + 1) & (TABLE.length - 1);
+			TABLE[slot] = (byte)(known + 1);
+		}
+	}
+
+}
@@ -0,0 +1,318 @@
+package org.brunovandekerkhove.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.brunovandekerkhove.utils.ClosedSocketException;
+
+/**
+ * A class of parsers for the header of an HTTP message (its start line and header fields).
+ * 	The parser is a state machine working over the bytes of a buffer. It can be fed
+ * 	the header bit by bit, resuming where it stopped, as it arrives. Nothing but the
+ * 	positions of the fields is recorded while parsing : once the header is complete
+ * 	its bytes are copied out once, and strings are only created for the names and
+ * 	values that are asked for.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://tools.ietf.org/html/rfc7230#section-3
+ */
+public class HeaderParser {
+
+	/**
+	 * Initialize this new header parser.
+	 */
+	public HeaderParser() {
+	}
+
+	/**
+	 * Parse the header at the given start of the given buffer, resuming where the previous
+	 * 	call stopped. The header must stay at the same start between calls, but it may
+	 * 	be moved as a whole (eg. when the buffer is compacted) as long as the new start is given.
+	 *
+	 * @param 	buffer
+	 * 			The buffer holding (the start of) the header. It is read with absolute gets only.
+	 * @param 	start
+	 * 			The index in the buffer at which the header starts.
+	 * @param 	end
+	 * 			The index in the buffer up to which bytes have been received.
+	 * @return	The length of the header, including the empty line that ends it,
+	 * 			or -1 if the header hasn't been received completely.
+	 * @throws 	ProtocolException
+	 * 			The header is malformed.
+	 */
+	public int parse(ByteBuffer buffer, int start, int end) throws ProtocolException {
+		if (isComplete())
+			return length;
+		int available = end - start;
+		while (position < available) {
+			byte current = buffer.get(start + position);
+			switch (state) {
+			case STATE_START_LINE:
+				while (current != '\n' && position + 1 < available)
+					current = buffer.get(start + (++position));
+				if (current == '\n') {
+					startLineEnd = (position > 0 && buffer.get(start + position - 1) == '\r' ? position - 1 : position);
+					if (startLineEnd == startLineStart) // Empty lines before the start line are ignored
+						startLineStart = position + 1;
+					else
+						state = STATE_LINE_START;
+				}
+				break;
+			case STATE_LINE_START:
+				if (current == '\r')
+					state = STATE_END;
+				else if (current == '\n') {
+					complete(buffer, start, position + 1);
+					return length;
+				}
+				else if (current == ' ' || current == '\t') { // A folded line continues the previous value
+					if (fieldCount == 0)
+						throw new ProtocolException("Folded line without a header field.");
+					folded = true;
+					state = STATE_VALUE;
+				}
+				else {
+					if (fieldCount * 4 == fields.length)
+						fields = Arrays.copyOf(fields, fields.length * 2);
+					fields[fieldCount * 4] = position;
+					fieldCount++;
+					state = STATE_NAME;
+				}
+				break;
+			case STATE_NAME:
+				if (current == ':') {
+					fields[fieldCount * 4 - 3] = position;
+					state = STATE_BEFORE_VALUE;
+				}
+				else if (current == '\n' || current == '\r' || current == ' ' || current == '\t')
+					throw new ProtocolException("Malformed header field name.");
+				break;
+			case STATE_BEFORE_VALUE:
+				if (current == ' ' || current == '\t' || current == '\r')
+					break;
+				fields[fieldCount * 4 - 2] = position;
+				fields[fieldCount * 4 - 1] = position;
+				if (current == '\n') { // Empty value
+					state = STATE_LINE_START;
+					break;
+				}
+				fields[fieldCount * 4 - 1] = position + 1;
+				state = STATE_VALUE;
+				break;
+			case STATE_VALUE: // Values make up most of a header, so they're scanned in a tight loop
+				int valueEnd = fields[fieldCount * 4 - 1];
+				while (current != '\n') {
+					if (current != ' ' && current != '\t' && current != '\r')
+						valueEnd = position + 1; // Trailing whitespace isn't part of the value
+					if (++position == available) {
+						fields[fieldCount * 4 - 1] = valueEnd;
+						return -1;
+					}
+					current = buffer.get(start + position);
+				}
+				fields[fieldCount * 4 - 1] = valueEnd;
+				state = STATE_LINE_START;
+				break;
+			case STATE_END:
+				if (current != '\n')
+					throw new ProtocolException("Malformed end of header.");
+				complete(buffer, start, position + 1);
+				return length;
+			}
+			position++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Finish parsing a header with given length, copying its bytes out of the given buffer.
+	 */
+	private void complete(ByteBuffer buffer, int start, int length) {
+		this.length = length;
+		this.bytes = new byte[length];
+		if (buffer.hasArray())
+			System.arraycopy(buffer.array(), buffer.arrayOffset() + start, this.bytes, 0, length);
+		else
+			for (int i=0 ; i<length ; i++)
+				this.bytes[i] = buffer.get(start + i);
+	}
+
+	/**
+	 * Returns whether the header has been parsed completely.
+	 */
+	public boolean isComplete() {
+		return this.bytes != null;
+	}
+
+	/**
+	 * Returns the amount of bytes of the header that have been parsed so far.
+	 */
+	public int getParsedLength() {
+		return this.position;
+	}
+
+	/**
+	 * Returns the start line of the header (its request or status line).
+	 */
+	public String getStartLine() {
+		return new String(bytes, startLineStart, startLineEnd - startLineStart, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Returns the number of header fields in the header.
+	 */
+	public int getFieldCount() {
+		return this.fieldCount;
+	}
+
+	/**
+	 * Returns the name of the header field with given index.
+	 * 	Well-known names are returned as an interned constant, in their usual case.
+	 */
+	public String getName(int index) {
+		int nameStart = fields[index * 4], nameEnd = fields[index * 4 + 1];
+		String known = HeaderFields.knownName(bytes, nameStart, nameEnd);
+		if (known != null)
+			return known;
+		return new String(bytes, nameStart, nameEnd - nameStart, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Returns the value of the header field with given index.
+	 * 	Folded lines are joined with a single space.
+	 */
+	public String getValue(int index) {
+		int valueStart = fields[index * 4 + 2], valueEnd = fields[index * 4 + 3];
+		if (!folded)
+			return new String(bytes, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+		StringBuilder builder = new StringBuilder(valueEnd - valueStart);
+		for (int i=valueStart ; i<valueEnd ; i++) {
+			if (bytes[i] != '\r' && bytes[i] != '\n')
+				builder.append((char)(bytes[i] & 0xFF));
+			else if (bytes[i] == '\n') { // Replace the line break and the whitespace after it
+				while (i+1 < valueEnd && (bytes[i+1] == ' ' || bytes[i+1] == '\t'))
+					i++;
+				builder.append(' ');
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Find the last header field with given name, without creating any strings.
+	 *
+	 * @param 	name
+	 * 			The name of the header field, in any case.
+	 * @return	The index of the last header field with given name, or -1 if there is none.
+	 */
+	public int lastIndexOf(String name) {
+		for (int index=fieldCount-1 ; index>=0 ; index--) {
+			int nameStart = fields[index * 4], nameEnd = fields[index * 4 + 1];
+			if (nameEnd - nameStart == name.length() && HeaderFields.equalsIgnoreCase(bytes, nameStart, name))
+				return index;
+		}
+		return -1;
+	}
+
+	/**
+	 * The state this parser is in.
+	 */
+	private int state = STATE_START_LINE;
+
+	/**
+	 * The position (relative to the start of the header) of the next byte that is to be parsed.
+	 */
+	private int position = 0;
+
+	/**
+	 * The position of the first byte of the start line.
+	 */
+	private int startLineStart = 0;
+
+	/**
+	 * The position right after the last byte of the start line.
+	 */
+	private int startLineEnd = 0;
+
+	/**
+	 * The positions of the header fields, four per field :
+	 * 	the start and end of its name and the start and end of its value.
+	 */
+	private int[] fields = new int[4 * 16];
+
+	/**
+	 * The number of header fields that have been found so far.
+	 */
+	private int fieldCount = 0;
+
+	/**
+	 * Whether the header holds folded lines.
+	 */
+	private boolean folded = false;
+
+	/**
+	 * The length of the header, once it's complete.
+	 */
+	private int length = -1;
+
+	/**
+	 * The bytes of the header, or null if it isn't complete yet.
+	 */
+	private byte[] bytes;
+
+	/**
+	 * Parse the header at the start of the given stream.
+	 * 	Message input streams are read a buffer at a time. Other streams are read
+	 * 	byte by byte, so nothing beyond the header is read from them.
+	 *
+	 * @param 	inputStream
+	 * 			The stream to read from.
+	 * @return	A parser holding the complete header.
+	 * @throws 	ProtocolException
+	 * 			The header is malformed or too large.
+	 * @throws 	IOException
+	 * 			An I/O error occurred, or the stream ended in the middle of the header.
+	 * @throws 	ClosedSocketException
+	 * 			The stream ended before the header started.
+	 */
+	public static HeaderParser read(InputStream inputStream) throws IOException, ClosedSocketException {
+		if (inputStream instanceof MessageInputStream)
+			return ((MessageInputStream)inputStream).readHeader();
+		HeaderParser parser = new HeaderParser();
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		while (true) {
+			int current = inputStream.read();
+			if (current < 0) {
+				if (buffer.position() == 0)
+					throw new ClosedSocketException();
+				throw new EOFException("The stream ended in the middle of a header.");
+			}
+			if (!buffer.hasRemaining()) {
+				if (buffer.capacity() >= MAX_HEADER_SIZE)
+					throw new ProtocolException("Header too large.");
+				buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+			}
+			buffer.put((byte)current);
+			if (parser.parse(buffer, 0, buffer.position()) >= 0)
+				return parser;
+		}
+	}
+
+	/**
+	 * The maximum size of a header.
+	 */
+	public static final int MAX_HEADER_SIZE = 64 * 1024;
+
+	/**
+	 * The states of a header parser.
+	 */
+	private static final int STATE_START_LINE = 0, STATE_LINE_START = 1, STATE_NAME = 2,
+			STATE_BEFORE_VALUE = 3, STATE_VALUE = 4, STATE_END = 5;
+
+}
@@ -0,0 +1,206 @@
+package org.brunovandekerkhove.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import org.brunovandekerkhove.utils.BufferPool;
+import org.brunovandekerkhove.utils.ClosedSocketException;
+
+/**
+ * A class of buffered input streams for reading HTTP messages from a connection.
+ * 	Headers are parsed right inside the buffer of the stream, so they are read from
+ * 	the connection a buffer at a time rather than byte by byte. Whatever follows a
+ * 	header (its body, or pipelined messages) stays buffered for the next reads.
+ * 	The buffer is leased from the default buffer pool while it holds unread bytes, and
+ * 	released as soon as it is drained, so a connection waiting for its next message
+ * 	holds no buffer at all.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public class MessageInputStream extends InputStream {
+
+	/**
+	 * Initialize this new message input stream with given underlying stream.
+	 *
+	 * @param 	inputStream
+	 * 			The stream of the connection.
+	 */
+	public MessageInputStream(InputStream inputStream) {
+		this(inputStream, Channels.newChannel(inputStream));
+	}
+
+	/**
+	 * Initialize this new message input stream with given underlying stream, read through the given channel.
+	 *
+	 * @param 	inputStream
+	 * 			The stream of the connection, which tells how many bytes are available and is closed with this stream.
+	 * @param 	channel
+	 * 			The (blocking) channel the bytes of the connection are read from, typically the channel of its socket.
+	 */
+	public MessageInputStream(InputStream inputStream, ReadableByteChannel channel) {
+		this.inputStream = inputStream;
+		this.channel = channel;
+	}
+
+	/**
+	 * The stream of the connection.
+	 */
+	private final InputStream inputStream;
+
+	/**
+	 * The channel the bytes of the connection are read from.
+	 */
+	private final ReadableByteChannel channel;
+
+	/**
+	 * The buffer holding the bytes that have been received but not read yet,
+	 * 	from its position up to its limit, or null if there are none.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * The pool the buffer is leased from.
+	 */
+	private final BufferPool pool = BufferPool.getDefaultPool();
+
+	/**
+	 * Returns whether there are bytes in the buffer that haven't been read yet.
+	 */
+	private boolean hasBuffered() {
+		return (buffer != null && buffer.hasRemaining());
+	}
+
+	/**
+	 * Return the buffer to the pool if all of its bytes have been read.
+	 */
+	private void releaseIfDrained() {
+		if (buffer != null && !buffer.hasRemaining()) {
+			pool.release(buffer);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Read and parse the header of the next message.
+	 *
+	 * @return	A parser holding the complete header.
+	 * @throws 	ProtocolException
+	 * 			The header is malformed or too large.
+	 * @throws 	IOException
+	 * 			An I/O error occurred, or the stream ended in the middle of the header.
+	 * @throws 	ClosedSocketException
+	 * 			The stream ended before the header started.
+	 */
+	public HeaderParser readHeader() throws IOException, ClosedSocketException {
+		HeaderParser parser = new HeaderParser();
+		while (true) {
+			if (hasBuffered()) {
+				int length = parser.parse(buffer, buffer.position(), buffer.limit());
+				if (length >= 0) {
+					buffer.position(buffer.position() + length); // The parser holds a copy of the header
+					releaseIfDrained();
+					return parser;
+				}
+				if (buffer.remaining() >= HeaderParser.MAX_HEADER_SIZE)
+					throw new ProtocolException("Header too large.");
+			}
+			if (fill() < 0) {
+				if (!hasBuffered())
+					throw new ClosedSocketException();
+				throw new EOFException("The stream ended in the middle of a header.");
+			}
+		}
+	}
+
+	/**
+	 * Wait until the next bytes have been received, without reading them.
+	 *
+	 * @return	True if there are bytes to read, false if the connection ended first.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	public boolean awaitData() throws IOException {
+		return (hasBuffered() || fill() > 0);
+	}
+
+	/**
+	 * Read more bytes from the connection into the buffer, making room for them first.
+	 * 	A buffer is leased if there is none. The unread bytes are moved to the start of
+	 * 	the buffer, which is replaced by a larger one if they fill it.
+	 *
+	 * @return	The amount of bytes that were read, or -1 if the connection ended.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	private int fill() throws IOException {
+		if (buffer == null) {
+			buffer = pool.lease(INITIAL_BUFFER_SIZE);
+			buffer.limit(0); // Nothing received yet
+		}
+		else if (buffer.position() > 0)
+			buffer.compact().flip();
+		if (buffer.limit() == buffer.capacity()) {
+			ByteBuffer larger = pool.lease(buffer.capacity() * 2);
+			larger.put(buffer).flip();
+			pool.release(buffer);
+			buffer = larger;
+		}
+		int end = buffer.limit();
+		buffer.limit(buffer.capacity()).position(end); // Append after the unread bytes, which start at 0
+		int count = channel.read(buffer);
+		buffer.flip();
+		releaseIfDrained();
+		return count;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!hasBuffered() && fill() < 0)
+			return -1;
+		int value = buffer.get() & 0xFF;
+		releaseIfDrained();
+		return value;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if (length == 0)
+			return 0;
+		if (!hasBuffered()) {
+			if (length >= INITIAL_BUFFER_SIZE) // Large reads go straight to the connection
+				return channel.read(ByteBuffer.wrap(bytes, offset, length));
+			if (fill() < 0)
+				return -1;
+		}
+		int count = Math.min(length, buffer.remaining());
+		buffer.get(bytes, offset, count);
+		releaseIfDrained();
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (buffer == null ? 0 : buffer.remaining()) + inputStream.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (buffer != null) {
+			pool.release(buffer);
+			buffer = null;
+		}
+		inputStream.close();
+	}
+
+	/**
+	 * The initial size of the buffer of a message input stream.
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+}
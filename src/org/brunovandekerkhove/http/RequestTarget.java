@@ -0,0 +1,192 @@
+package org.brunovandekerkhove.http;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A class of request targets, being the part of a request line that identifies the requested resource.
+ * 	The path of a target is percent-decoded and its dot segments are removed, so it
+ * 	never climbs above the root ('/../x' is '/x'). The query is kept as it was sent.
+ * 	Targets that need neither decoding nor normalization are parsed with a single
+ * 	substring, and no URI is ever created for them.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://tools.ietf.org/html/rfc7230#section-5.3
+ * @note	https://tools.ietf.org/html/rfc3986#section-5.2.4
+ */
+public class RequestTarget {
+
+	/**
+	 * Initialize this new request target with given path, query and authority.
+	 *
+	 * @param 	path
+	 * 			The decoded and normalized path of the target.
+	 * @param 	query
+	 * 			The query of the target, or null if it has none.
+	 * @param 	authority
+	 * 			The authority (host and port) of the target, or null if it has none.
+	 */
+	public RequestTarget(String path, String query, String authority) {
+		this.path = path;
+		this.query = query;
+		this.authority = authority;
+	}
+
+	/**
+	 * Returns the decoded and normalized path of this target.
+	 */
+	public String getPath() {
+		return this.path;
+	}
+
+	/**
+	 * The path of this target.
+	 */
+	private final String path;
+
+	/**
+	 * Returns the query of this target (without the question mark, not decoded), or null if it has none.
+	 */
+	public String getQuery() {
+		return this.query;
+	}
+
+	/**
+	 * The query of this target.
+	 */
+	private final String query;
+
+	/**
+	 * Returns the authority of this target if it is in absolute form ('http://host:port/path'), or null otherwise.
+	 */
+	public String getAuthority() {
+		return this.authority;
+	}
+
+	/**
+	 * The authority of this target.
+	 */
+	private final String authority;
+
+	/**
+	 * Parse the request target in the given part of the given line.
+	 *
+	 * @param 	line
+	 * 			The line holding the target (typically a request line).
+	 * @param 	start
+	 * 			The index in the line at which the target starts.
+	 * @param 	end
+	 * 			The index in the line at which the target ends.
+	 * @return	The target in the given part of the line.
+	 * @throws 	ProtocolException
+	 * 			The target is malformed.
+	 */
+	public static RequestTarget parse(String line, int start, int end) throws ProtocolException {
+		if (start >= end)
+			throw new ProtocolException("Empty request target.");
+		String authority = null;
+		if (line.charAt(start) != '/') {
+			if (end - start == 1 && line.charAt(start) == '*') // Asterisk form (OPTIONS)
+				return new RequestTarget("*", null, null);
+			int schemeEnd = (line.regionMatches(true, start, "http://", 0, 7) ? start + 7
+					: line.regionMatches(true, start, "https://", 0, 8) ? start + 8 : -1);
+			if (schemeEnd < 0)
+				throw new ProtocolException("Invalid request target.");
+			int authorityEnd = schemeEnd;
+			while (authorityEnd < end && line.charAt(authorityEnd) != '/' && line.charAt(authorityEnd) != '?')
+				authorityEnd++;
+			authority = line.substring(schemeEnd, authorityEnd);
+			start = authorityEnd;
+		}
+		int pathEnd = start;
+		boolean plain = true; // Whether the path can be used as it is
+		for ( ; pathEnd < end ; pathEnd++) {
+			char current = line.charAt(pathEnd);
+			if (current == '?' || current == '#')
+				break;
+			if (current <= ' ' || current >= 0x7F)
+				throw new ProtocolException("Invalid character in request target.");
+			if (current == '%' || (current == '.' && line.charAt(pathEnd - 1) == '/'))
+				plain = false;
+		}
+		String path;
+		if (start == pathEnd) // Absolute form without a path
+			path = "/";
+		else if (plain)
+			path = (start == 0 && pathEnd == line.length() ? line : line.substring(start, pathEnd));
+		else
+			path = removeDotSegments(decode(line, start, pathEnd));
+		String query = null;
+		if (pathEnd < end && line.charAt(pathEnd) == '?') {
+			int queryEnd = line.indexOf('#', pathEnd);
+			query = line.substring(pathEnd + 1, (queryEnd < 0 || queryEnd > end ? end : queryEnd));
+		}
+		return new RequestTarget(path, query, authority);
+	}
+
+	/**
+	 * Percent-decode the given part of the given string, as UTF-8.
+	 *
+	 * @param 	string
+	 * 			The string holding the encoded part.
+	 * @param 	start
+	 * 			The index at which the encoded part starts.
+	 * @param 	end
+	 * 			The index at which the encoded part ends.
+	 * @return	The decoded part.
+	 * @throws 	ProtocolException
+	 * 			The part holds an invalid escape, or an escaped NUL.
+	 */
+	private static String decode(String string, int start, int end) throws ProtocolException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start);
+		for (int i=start ; i<end ; i++) {
+			char current = string.charAt(i);
+			if (current != '%') {
+				bytes.write(current);
+				continue;
+			}
+			int high = (i+2 < end ? Character.digit(string.charAt(i+1), 16) : -1);
+			int low = (i+2 < end ? Character.digit(string.charAt(i+2), 16) : -1);
+			if (high < 0 || low < 0 || (high == 0 && low == 0))
+				throw new ProtocolException("Invalid percent-encoding in request target.");
+			bytes.write(high * 16 + low);
+			i += 2;
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Remove the dot segments ('.' and '..') from the given absolute path.
+	 *
+	 * @param 	path
+	 * 			A path starting with a slash.
+	 * @return	The path without dot segments. Segments going above the root are dropped.
+	 */
+	private static String removeDotSegments(String path) {
+		StringBuilder output = new StringBuilder(path.length());
+		int index = 0;
+		while (index < path.length()) {
+			int next = path.indexOf('/', index + 1);
+			if (next < 0)
+				next = path.length();
+			int length = next - index - 1; // The segment lies between the slashes
+			boolean isLast = (next == path.length());
+			if (length == 1 && path.charAt(index + 1) == '.') {
+				if (isLast)
+					output.append('/');
+			}
+			else if (length == 2 && path.charAt(index + 1) == '.' && path.charAt(index + 2) == '.') {
+				output.setLength(Math.max(0, output.lastIndexOf("/")));
+				if (isLast)
+					output.append('/');
+			}
+			else
+				output.append(path, index, next);
+			index = next;
+		}
+		return (output.length() == 0 ? "/" : output.toString());
+	}
+
+}
@@ -0,0 +1,27 @@
+package org.brunovandekerkhove.http;
+
+import java.net.ProtocolException;
+
+/**
+ * A class of exceptions denoting requests for an HTTP version that isn't supported.
+ * 	The request line is well-formed, so such requests are answered with a 505 rather than a 400.
+ * 
+ * @author	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://tools.ietf.org/html/rfc7231#section-6.6.6
+ */
+public class UnsupportedVersionException extends ProtocolException {
+
+	/**
+	 * Initialize this new exception for the given version.
+	 * 
+	 * @param 	version
+	 * 			The version that isn't supported, as it appeared in the request line.
+	 */
+	public UnsupportedVersionException(String version) {
+		super("Unsupported HTTP version '" + version + "'.");
+	}
+
+	private static final long serialVersionUID = 1L;
+
+}
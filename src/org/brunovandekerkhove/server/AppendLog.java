@@ -0,0 +1,347 @@
+package org.brunovandekerkhove.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+
+/**
+ * A class of append logs, appending bodies to files with group commits.
+ * 	Every file that is being appended to has a queue of its own. Appends are queued in
+ * 	the order in which they arrive, and a writer thread takes whatever has been queued
+ * 	for a file as a single batch : it is written with one gathering write and, if the log
+ * 	is synchronous, made durable with a single fsync. Appends that arrive in the meantime
+ * 	make up the next batch, so the busier a file, the larger its batches. An append
+ * 	completes once its batch has been written, which never blocks the caller. A queue is
+ * 	dropped once it has drained, so files that are no longer appended to cost nothing.
+ * 	There is a fixed number of writers, which take turns between the files after every batch.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://en.wikipedia.org/wiki/Group_commit
+ */
+public class AppendLog {
+
+	/**
+	 * Initialize this new append log.
+	 *
+	 * @param 	synchronous
+	 * 			Whether every batch is to be forced to the disk before its appends complete.
+	 * @param 	locks
+	 * 			The locks serializing the writes to files, by path. A file's lock is held while a batch is appended to it.
+	 * @param 	storage
+	 * 			The storage backend of the files, which is told about a file before it is appended to.
+	 * @param 	listener
+	 * 			The listener that is told about a file after a batch was appended to it,
+	 * 			before the appends of the batch complete.
+	 */
+	public AppendLog(boolean synchronous, StripedLocks locks, StorageBackend storage, Consumer<Path> listener) {
+		this.synchronous = synchronous;
+		this.locks = locks;
+		this.storage = storage;
+		this.listener = listener;
+	}
+
+	/**
+	 * Whether every batch is forced to the disk before its appends complete.
+	 */
+	private final boolean synchronous;
+
+	/**
+	 * The locks serializing the writes to files, by path.
+	 */
+	private final StripedLocks locks;
+
+	/**
+	 * The storage backend of the files.
+	 */
+	private final StorageBackend storage;
+
+	/**
+	 * The listener that is told about a file after a batch was appended to it.
+	 */
+	private final Consumer<Path> listener;
+
+	/**
+	 * Append the remaining bytes of the given buffer to the file at the given path.
+	 *
+	 * @param 	path
+	 * 			The path of the file, which is created if it doesn't exist.
+	 * @param 	body
+	 * 			The bytes that are to be appended. The buffer shouldn't be touched until the append completes.
+	 * @return	A future completing once the bytes have been appended, with true if and only if the
+	 * 			file was created for them. It completes exceptionally if they could not be appended.
+	 */
+	public CompletableFuture<Boolean> append(Path path, ByteBuffer body) {
+		return queue(path, new Append(body, null));
+	}
+
+	/**
+	 * Append the contents of the given file to the file at the given path.
+	 * 	This is meant for large bodies, which were stored in a (temporary) file first.
+	 *
+	 * @param 	path
+	 * 			The path of the file, which is created if it doesn't exist.
+	 * @param 	body
+	 * 			A channel for the file holding the bytes that are to be appended.
+	 * 			It shouldn't be touched until the append completes, and isn't closed.
+	 * @return	A future completing once the bytes have been appended, with true if and only if the
+	 * 			file was created for them. It completes exceptionally if they could not be appended.
+	 */
+	public CompletableFuture<Boolean> append(Path path, FileChannel body) {
+		return queue(path, new Append(null, body));
+	}
+
+	/**
+	 * Add the given append to the queue of the file at the given path, creating the queue if it has none.
+	 *
+	 * @return	The future of the given append.
+	 */
+	private CompletableFuture<Boolean> queue(Path path, Append append) {
+		while (true) {
+			Queue queue = queues.get(path);
+			if (queue == null) {
+				queue = new Queue(path);
+				Queue existing = queues.putIfAbsent(path, queue);
+				if (existing != null)
+					queue = existing;
+			}
+			if (queue.add(append))
+				return append.done;
+			// The queue drained and was removed in the meantime, the next one picks up after it
+		}
+	}
+
+	/**
+	 * The queues of the files that are being appended to, by their path.
+	 * 	A queue is removed once it has drained, so that only busy files have one.
+	 */
+	private final ConcurrentHashMap<Path, Queue> queues = new ConcurrentHashMap<Path, Queue>();
+
+	/**
+	 * The threads writing the batches.
+	 * 	The order of the appends to a file is kept by its queue, so any writer can take any file.
+	 */
+	private final ExecutorService writers = Executors.newFixedThreadPool(WRITER_THREADS, runnable -> {
+		Thread thread = new Thread(runnable, "append-log");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * The number of threads writing batches.
+	 */
+	private static final int WRITER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * A class of appends waiting to be written.
+	 */
+	private static class Append {
+
+		private Append(ByteBuffer buffer, FileChannel file) {
+			this.buffer = buffer;
+			this.file = file;
+		}
+
+		/**
+		 * The bytes to append, or null if they are in a file.
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * The file holding the bytes to append, or null if they are in a buffer.
+		 */
+		private final FileChannel file;
+
+		/**
+		 * The future completing once this append has been written.
+		 */
+		private final CompletableFuture<Boolean> done = new CompletableFuture<Boolean>();
+
+	}
+
+	/**
+	 * A class of queues of appends to a single file.
+	 * 	At most one writer works on a queue at any time, so appends are written in order.
+	 */
+	private class Queue implements Runnable {
+
+		private Queue(Path path) {
+			this.path = path;
+		}
+
+		/**
+		 * The path of the file the appends of this queue are for.
+		 */
+		private final Path path;
+
+		/**
+		 * The appends that have not been taken by a writer yet.
+		 */
+		private final ArrayDeque<Append> appends = new ArrayDeque<Append>();
+
+		/**
+		 * Whether this queue has been handed to the writers, and hasn't been found empty since.
+		 */
+		private boolean writing = false;
+
+		/**
+		 * Whether this queue drained and was removed from the queues of the log.
+		 */
+		private boolean removed = false;
+
+		/**
+		 * Add the given append to this queue, handing it to the writers if it isn't with them.
+		 *
+		 * @return	True if and only if the append was added, which it isn't if this queue was removed.
+		 */
+		private boolean add(Append append) {
+			synchronized (this) {
+				if (removed)
+					return false;
+				appends.add(append);
+				if (writing)
+					return true; // Taken along with the next batch
+				writing = true;
+			}
+			writers.execute(this);
+			return true;
+		}
+
+		/**
+		 * Write a single batch, and hand this queue back to the writers if appends are left.
+		 * 	It then waits behind the files that were queued in the meantime, so a busy file
+		 * 	never keeps a writer to itself.
+		 */
+		@Override
+		public void run() {
+			List<Append> batch = new ArrayList<Append>();
+			long size = 0;
+			synchronized (this) { // Never empty, as this queue is only handed over with appends in it
+				Append next;
+				while (batch.size() < MAX_BATCH_COUNT && size < MAX_BATCH_SIZE && (next = appends.poll()) != null) {
+					batch.add(next);
+					if (next.buffer != null)
+						size += next.buffer.remaining();
+				}
+			}
+			write(batch);
+			synchronized (this) {
+				if (appends.isEmpty()) { // Every append has been written, so a new queue can take over
+					writing = false;
+					removed = true;
+					queues.remove(path, this);
+					return;
+				}
+			}
+			writers.execute(this);
+		}
+
+		/**
+		 * Append the given batch to the file of this queue, and complete its appends.
+		 * 	The file's lock is held meanwhile, so it isn't replaced halfway through.
+		 */
+		private void write(List<Append> batch) {
+			boolean created;
+			Lock lock = locks.get(path);
+			lock.lock();
+			try {
+				created = Files.notExists(path);
+				storage.prepareAppend(path); // A file that shares its contents gets a copy of its own
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+					writeAll(batch, channel);
+					if (synchronous)
+						channel.force(false);
+				}
+			} catch (IOException e) {
+				for (Append append : batch)
+					append.done.completeExceptionally(e);
+				return;
+			} finally {
+				lock.unlock();
+				listener.accept(path); // Even a failed batch may have been written in part
+			}
+			appended.add(batch.size());
+			batches.increment();
+			for (int i=0 ; i<batch.size() ; i++)
+				batch.get(i).done.complete(created && i == 0);
+		}
+
+	}
+
+	/**
+	 * Write the given appends to the given channel, with as few writes as possible.
+	 */
+	private static void writeAll(List<Append> batch, FileChannel channel) throws IOException {
+		int index = 0;
+		while (index < batch.size()) {
+			Append first = batch.get(index);
+			if (first.file != null) { // Files go on their own
+				long length = first.file.size();
+				for (long position=0 ; position<length ; )
+					position += first.file.transferTo(position, length - position, channel);
+				index++;
+				continue;
+			}
+			int end = index;
+			while (end < batch.size() && batch.get(end).buffer != null)
+				end++;
+			ByteBuffer[] buffers = new ByteBuffer[end - index];
+			long remaining = 0;
+			for (int i=index ; i<end ; i++) {
+				buffers[i - index] = batch.get(i).buffer;
+				remaining += buffers[i - index].remaining();
+			}
+			while (remaining > 0) // A single gathering write, unless it is cut short
+				remaining -= channel.write(buffers);
+			index = end;
+		}
+	}
+
+	/**
+	 * Returns the number of appends that have been written.
+	 */
+	public long getAppendCount() {
+		return appended.sum();
+	}
+
+	/**
+	 * Returns the number of batches that have been written.
+	 */
+	public long getBatchCount() {
+		return batches.sum();
+	}
+
+	/**
+	 * The number of appends that have been written.
+	 */
+	private final LongAdder appended = new LongAdder();
+
+	/**
+	 * The number of batches that have been written.
+	 */
+	private final LongAdder batches = new LongAdder();
+
+	/**
+	 * The maximum number of appends in a batch.
+	 */
+	private static final int MAX_BATCH_COUNT = 1024;
+
+	/**
+	 * The amount of bytes after which no more appends are added to a batch.
+	 */
+	private static final long MAX_BATCH_SIZE = 4 * 1024 * 1024;
+
+}
@@ -0,0 +1,765 @@
+package org.brunovandekerkhove.server;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+import org.brunovandekerkhove.http.ContentRegion;
+import org.brunovandekerkhove.http.HTTPRequest;
+import org.brunovandekerkhove.http.HTTPRequestHeader;
+import org.brunovandekerkhove.http.HTTPResponse;
+import org.brunovandekerkhove.http.HTTPVersion;
+import org.brunovandekerkhove.http.HeaderParser;
+import org.brunovandekerkhove.http.UnsupportedVersionException;
+import org.brunovandekerkhove.utils.BufferPool;
+
+/**
+ * A class of non-blocking connections managed by an event loop.
+ * 	Incoming bytes are gathered in a buffer per connection and requests are parsed
+ * 	from it incrementally, so no thread ever waits for a slow client. The buffer is
+ * 	bounded : large bodies are moved to a file as they arrive, and the connection stops
+ * 	reading while its buffer is full of requests that wait for an earlier response.
+ * 	Every phase of an exchange has a deadline (see DeadlineType), kept by a timing wheel,
+ * 	and a connection that misses one is closed, so slow or idle clients can't hold on to
+ * 	buffers and spools forever. Connections are only ever touched by the thread of the
+ * 	event loop they belong to.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+class ChannelConnection {
+
+	/**
+	 * Initialize this new connection with given channel, selection key, event loop, response generator and timing wheel.
+	 *
+	 * @param 	channel
+	 * 			The (non-blocking) channel for this new connection.
+	 * @param 	key
+	 * 			The key the channel is registered with.
+	 * @param 	loop
+	 * 			The event loop this connection belongs to.
+	 * @param 	generator
+	 * 			The generator to use for responding to incoming requests.
+	 * @param 	wheel
+	 * 			The timing wheel keeping the deadlines of the connection, or null if it has none.
+	 */
+	ChannelConnection(SocketChannel channel, SelectionKey key, EventLoop loop, ResponseGenerator generator, TimingWheel wheel) {
+		this.channel = channel;
+		this.key = key;
+		this.loop = loop;
+		this.generator = generator;
+		this.timeout = (wheel == null ? null : wheel.newTimeout(() -> loop.execute(this::expire)));
+		updateDeadline();
+	}
+
+	/**
+	 * The channel of this connection.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * The key with which the channel of this connection is registered.
+	 */
+	private final SelectionKey key;
+
+	/**
+	 * The event loop this connection belongs to.
+	 */
+	private final EventLoop loop;
+
+	/**
+	 * The generator used by this connection for responding to requests.
+	 */
+	private final ResponseGenerator generator;
+
+	/**
+	 * The timeout holding the current deadline of this connection, or null if it has none.
+	 */
+	private final TimingWheel.Timeout timeout;
+
+	/**
+	 * The type of the current deadline of this connection, or null if it has none.
+	 */
+	private DeadlineType deadlineType;
+
+	/**
+	 * Set the deadline of this connection for the phase its exchange is in, unless it is in that phase already.
+	 * 	The connection waits for the client to accept its output, for the rest of the body or header
+	 * 	of a request, or for a new request. It has no deadline while it waits for a response.
+	 */
+	private void updateDeadline() {
+		DeadlineType type;
+		if (isClosed())
+			return;
+		if (!output.isEmpty())
+			type = DeadlineType.WRITE;
+		else if (pending != null)
+			type = null;
+		else if (header != null)
+			type = DeadlineType.BODY;
+		else if (input != null && input.position() > 0) // The header is parsed inside the buffer
+			type = DeadlineType.HEADER;
+		else
+			type = DeadlineType.IDLE;
+		if (timeout == null || type == deadlineType)
+			return;
+		deadlineType = type;
+		if (type == null)
+			timeout.clear();
+		else
+			timeout.set(type, 1000L * generator.getConfiguration().getTimeout(type));
+	}
+
+	/**
+	 * Push the current deadline of this connection back if it is of the given type.
+	 *
+	 * @param 	type
+	 * 			The type of deadline the progress that was made counts for.
+	 */
+	private void progress(DeadlineType type) {
+		if (timeout != null && deadlineType == type)
+			timeout.progress();
+	}
+
+	/**
+	 * Close this connection because it missed a deadline, unless it was given a new one in the meantime.
+	 */
+	private void expire() {
+		if (!timeout.isSet())
+			close();
+	}
+
+	/**
+	 * Read whatever is available from the channel of this connection and respond to
+	 * 	every request that has been received completely.
+	 * 	An input buffer is leased for reading, and released again as soon as it holds
+	 * 	no unprocessed bytes, so idle connections don't hold any buffer.
+	 *
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	void read() throws IOException {
+		boolean received = false;
+		while (true) {
+			if (input == null)
+				input = pool.lease(INITIAL_BUFFER_SIZE);
+			else if (!input.hasRemaining()) {
+				parseRequests(); // Consumes complete requests, and moves a body that is being stored to its file
+				if (closeAfterWrite)
+					break;
+				if (!input.hasRemaining()) {
+					if (input.capacity() >= MAX_BUFFER_SIZE) // Read on once a response is done
+						break;
+					grow();
+				}
+			}
+			int count = channel.read(input);
+			if (count < 0) { // The client closed its side of the connection
+				endOfInput = true;
+				break;
+			}
+			received |= (count > 0);
+			if (count == 0 || input.hasRemaining())
+				break; // Nothing more to read for now
+		}
+		processInput();
+		flush(); // Try writing right away rather than waiting for the next select
+		if (received)
+			progress(DeadlineType.BODY);
+	}
+
+	/**
+	 * Whether the client closed its side of this connection.
+	 */
+	private boolean endOfInput = false;
+
+	/**
+	 * Replace the input buffer of this connection by one twice as large (up to the maximum size).
+	 */
+	private void grow() {
+		ByteBuffer newInput = pool.lease(Math.min(input.capacity() * 2, MAX_BUFFER_SIZE));
+		input.flip();
+		newInput.put(input);
+		pool.release(input);
+		input = newInput;
+	}
+
+	/**
+	 * Return the input buffer of this connection to the pool, if it has one.
+	 */
+	private void releaseInput() {
+		pool.release(input);
+		input = null;
+	}
+
+	/**
+	 * The bytes received through this connection that have not been consumed yet,
+	 * 	or null if there are none. The buffer is kept in write mode, its position
+	 * 	marking the end of the received bytes.
+	 */
+	private ByteBuffer input;
+
+	/**
+	 * The pool the buffers of this connection are leased from.
+	 */
+	private final BufferPool pool = BufferPool.getDefaultPool();
+
+	/**
+	 * Parse and respond to every complete request in the input buffer of this connection.
+	 * 	If a response isn't ready yet, the remaining requests wait until it is.
+	 * 	The input buffer is released once it has been emptied.
+	 */
+	private void processInput() {
+		parseRequests();
+		if (pending != null)
+			return;
+		if (endOfInput) { // Whatever is left is an incomplete request
+			releaseInput();
+			closeAfterWrite = true;
+		}
+		else if (input != null && input.position() == 0)
+			releaseInput();
+	}
+
+	/**
+	 * Parse and respond to every complete request in the input buffer of this connection,
+	 * 	up to the first one whose response isn't ready yet.
+	 */
+	private void parseRequests() {
+		while (!closeAfterWrite && pending == null && input != null) {
+			if (header == null) { // Still waiting for the end of the header
+				if (parser == null)
+					parser = new HeaderParser();
+				int headerLength;
+				try {
+					headerLength = parser.parse(input, 0, input.position()); // Resumes where the previous read stopped
+				} catch (ProtocolException e) {
+					respond(new HTTPResponse(HTTPVersion.HTTP_10, 400, "Bad Request"), true);
+					return;
+				}
+				if (headerLength < 0) {
+					if (input.position() > HeaderParser.MAX_HEADER_SIZE)
+						respond(new HTTPResponse(HTTPVersion.HTTP_10, 400, "Bad Request"), true);
+					return;
+				}
+				try {
+					skip(headerLength); // The parser holds a copy of the header
+					header = new HTTPRequestHeader(parser);
+					parser = null;
+					bodyLength = Math.max(0, header.getContentLength());
+					if (header.hasExpectation() && !checkExpectation())
+						return;
+					if (bodyLength > MAX_BUFFERED_BODY_SIZE) // Stored in a file as it arrives, rather than in memory
+						spool = ResponseGenerator.createSpool();
+				} catch (UnsupportedVersionException e) {
+					respond(new HTTPResponse(HTTPVersion.HTTP_11, 505, "HTTP Version Not Supported"), true);
+					return;
+				} catch (ProtocolException e) { // Malformed request line, Host or Content-Length field
+					respond(new HTTPResponse(HTTPVersion.HTTP_10, 400, "Bad Request"), true);
+					return;
+				} catch (Exception e) {
+					respond(new HTTPResponse(HTTPVersion.HTTP_10, 500, "Server Error"), true);
+					return;
+				}
+			}
+			if (header.isChunked() && spool == null) { // The body ends with its last chunk and trailer
+				try {
+					bodyLength = findChunkedBodyEnd();
+					if (bodyLength < 0) {
+						if (input.position() < MAX_BUFFERED_BODY_SIZE)
+							return;
+						spool = ResponseGenerator.createSpool(); // Too large to gather, decoded into a file from now on
+						chunkState = CHUNK_SIZE;
+					}
+				} catch (NumberFormatException e) {
+					respond(new HTTPResponse(HTTPVersion.HTTP_10, 400, "Bad Request"), true);
+					return;
+				} catch (IOException e) {
+					respond(new HTTPResponse(HTTPVersion.HTTP_10, 500, "Server Error"), true);
+					return;
+				}
+			}
+			HTTPRequest request;
+			FileChannel body = spool;
+			if (body != null) {
+				try {
+					spoolInput();
+					if (header.isChunked() ? chunkState != CHUNKS_DONE : spooled < bodyLength) // Still waiting for the body
+						return;
+					request = new HTTPRequest(header, body);
+				} catch (NumberFormatException e) {
+					respond(new HTTPResponse(HTTPVersion.HTTP_10, 400, "Bad Request"), true);
+					return;
+				} catch (IOException e) {
+					respond(new HTTPResponse(HTTPVersion.HTTP_10, 500, "Server Error"), true);
+					return;
+				}
+				spool = null;
+				spooled = 0;
+				chunkState = CHUNK_SIZE;
+			}
+			else {
+				if (input.position() < bodyLength) // Still waiting for the body
+					return;
+				request = new HTTPRequest(header, take((int)bodyLength));
+			}
+			header = null;
+			HTTPVersion version = (request.header.version == null ? HTTPVersion.HTTP_10 : request.header.version);
+			boolean close = (version == HTTPVersion.HTTP_10 || request.requestsClose());
+			CompletableFuture<HTTPResponse> future;
+			try {
+				future = generator.generateResponseAsync(request);
+			} catch (Exception e) {
+				future = CompletableFuture.completedFuture(null);
+			}
+			if (body != null) // Deleted once the response no longer needs it
+				future.whenComplete((response, failure) -> ResponseGenerator.closeQuietly(body));
+			if (future.isDone())
+				respond(getResponse(future, version), close);
+			else { // Wait for the response without blocking the event loop
+				CompletableFuture<HTTPResponse> awaited = future;
+				pending = awaited;
+				awaited.whenComplete((response, failure) -> loop.execute(() -> complete(awaited, version, close)));
+			}
+		}
+	}
+
+	/**
+	 * Check whether the body of the request whose header was just received is wanted.
+	 * 	A client expecting a '100 Continue' is told to go on sending the body, unless it
+	 * 	already started doing so. If the body is rejected, the final response is sent
+	 * 	instead and the connection is closed, since there's no telling whether the body follows.
+	 *
+	 * @return	True if and only if the body is wanted.
+	 */
+	private boolean checkExpectation() {
+		HTTPResponse rejection = generator.checkExpectation(new HTTPRequest(header, (byte[])null)); // Its body is yet to come
+		if (rejection != null) {
+			header = null;
+			respond(rejection, true);
+			return false;
+		}
+		if (input.position() == 0 && (bodyLength > 0 || header.isChunked()))
+			output.add(HTTPResponse.continueRegion());
+		return true;
+	}
+
+	/**
+	 * Move the part of the body being received that is in the input buffer to the file it is stored in,
+	 * 	if it is stored in a file. The event loop writes to the file itself : this is cheap since
+	 * 	the written bytes only go as far as the page cache. Chunked bodies are decoded on the way.
+	 *
+	 * @return	True if and only if bytes were moved out of the input buffer.
+	 * @throws 	IOException
+	 * 			The bytes could not be written to the file.
+	 * @throws 	NumberFormatException
+	 * 			The chunked body holds an invalid chunk.
+	 */
+	private boolean spoolInput() throws IOException, NumberFormatException {
+		if (spool == null || input.position() == 0)
+			return false;
+		if (header.isChunked())
+			return decodeChunks();
+		int length = (int)Math.min(input.position(), bodyLength - spooled);
+		if (length == 0)
+			return false;
+		input.flip();
+		ByteBuffer part = input.duplicate();
+		part.limit(length);
+		while (part.hasRemaining())
+			spooled += spool.write(part);
+		input.position(length);
+		input.compact();
+		return true;
+	}
+
+	/**
+	 * The file the body being received is stored in, or null if it is gathered in the input buffer.
+	 */
+	private FileChannel spool;
+
+	/**
+	 * The amount of bytes of the body being received that have been stored in its file.
+	 */
+	private long spooled = 0;
+
+	/**
+	 * Decode the chunks of the body being received that are in the input buffer into the file it is stored in.
+	 * 	Only the data of the chunks is stored, so the file holds the body as it was meant.
+	 *
+	 * @return	True if and only if bytes were moved out of the input buffer.
+	 * @throws 	IOException
+	 * 			The data could not be written to the file.
+	 * @throws 	NumberFormatException
+	 * 			The body holds an invalid chunk size, or a line that is too long.
+	 * @note	https://tools.ietf.org/html/rfc7230#section-4.1
+	 */
+	private boolean decodeChunks() throws IOException, NumberFormatException {
+		int position = 0, end = input.position();
+		decoding: while (position < end && chunkState != CHUNKS_DONE) {
+			if (chunkState == CHUNK_DATA) {
+				int length = (int)Math.min(chunkRemaining, end - position);
+				ByteBuffer data = input.duplicate();
+				data.limit(position + length).position(position);
+				while (data.hasRemaining())
+					spooled += spool.write(data);
+				position += length;
+				chunkRemaining -= length;
+				if (chunkRemaining == 0)
+					chunkState = CHUNK_DATA_END;
+				continue;
+			}
+			int lineEnd = findLineEnd(position, end);
+			if (lineEnd < 0) {
+				if (end - position > MAX_CHUNK_LINE_LENGTH)
+					throw new NumberFormatException("Chunk line too long.");
+				break decoding; // The rest of the line is yet to come
+			}
+			switch (chunkState) {
+			case CHUNK_SIZE:
+				chunkRemaining = parseChunkSize(position, lineEnd);
+				chunkState = (chunkRemaining == 0 ? CHUNK_TRAILER : CHUNK_DATA);
+				break;
+			case CHUNK_DATA_END:
+				if (lineEnd - position > 2) // Data followed by something other than a line break
+					throw new NumberFormatException("Missing line break after chunk.");
+				chunkState = CHUNK_SIZE;
+				break;
+			default: // A trailer field (ignored) or the empty line ending the body
+				if (input.get(position) == '\n' || input.get(position) == '\r')
+					chunkState = CHUNKS_DONE;
+				break;
+			}
+			position = lineEnd;
+		}
+		if (position == 0)
+			return false;
+		skip(position);
+		return true;
+	}
+
+	/**
+	 * The state of the decoding of the chunked body being stored in a file : the part of the body that is expected next.
+	 */
+	private int chunkState = CHUNK_SIZE;
+
+	/**
+	 * The amount of bytes of data left in the chunk that is being decoded.
+	 */
+	private long chunkRemaining = 0;
+
+	/**
+	 * The states of the decoding of a chunked body : the line with the size of a chunk, its data,
+	 * 	the line break after its data, the trailer, and the end of the body.
+	 */
+	private static final int CHUNK_SIZE = 0, CHUNK_DATA = 1, CHUNK_DATA_END = 2, CHUNK_TRAILER = 3, CHUNKS_DONE = 4;
+
+	/**
+	 * The maximum length of a line in a chunked body (a chunk size with its extensions, or a trailer field).
+	 */
+	private static final int MAX_CHUNK_LINE_LENGTH = 8 * 1024;
+
+	/**
+	 * Respond with the now completed response that was pending, and carry on with the input.
+	 *
+	 * @param 	future
+	 * 			The future for the response.
+	 * @param 	version
+	 * 			The HTTP version of the request.
+	 * @param 	close
+	 * 			Whether the connection is to be closed once the response has been written.
+	 */
+	private void complete(CompletableFuture<HTTPResponse> future, HTTPVersion version, boolean close) {
+		HTTPResponse response = getResponse(future, version);
+		pending = null;
+		if (isClosed()) { // Nobody to respond to anymore
+			for (ContentRegion region : response.getRegions())
+				region.close();
+			return;
+		}
+		respond(response, close);
+		processInput();
+		try {
+			flush();
+		} catch (IOException | CancelledKeyException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Get the response of the given completed future, or an error response if it failed.
+	 *
+	 * @param 	future
+	 * 			A completed future for a response.
+	 * @param 	version
+	 * 			The HTTP version of the request.
+	 */
+	private static HTTPResponse getResponse(CompletableFuture<HTTPResponse> future, HTTPVersion version) {
+		HTTPResponse response;
+		try {
+			response = future.join();
+		} catch (Exception e) {
+			response = null;
+		}
+		if (response == null) // Response was not generated => error
+			response = new HTTPResponse(version, 500, "Server Error");
+		return response;
+	}
+
+	/**
+	 * The response that is being waited for, or null if there is none.
+	 */
+	private CompletableFuture<HTTPResponse> pending;
+
+	/**
+	 * Find the end of the chunked body at the start of the input buffer.
+	 * 	The body is left as it is : it is decoded when the request reads it.
+	 *
+	 * @return	The length of the body including its last chunk and trailer,
+	 * 			or -1 if the body hasn't been received completely.
+	 * @throws 	NumberFormatException
+	 * 			The body holds an invalid chunk size.
+	 */
+	private int findChunkedBodyEnd() throws NumberFormatException {
+		int end = input.position();
+		while (true) {
+			int lineEnd = findLineEnd(chunkOffset, end);
+			if (lineEnd < 0)
+				return -1;
+			long size = parseChunkSize(chunkOffset, lineEnd);
+			if (size == 0) { // The last chunk, followed by the trailer
+				int trailerOffset = lineEnd;
+				while (true) {
+					int trailerEnd = findLineEnd(trailerOffset, end);
+					if (trailerEnd < 0)
+						return -1;
+					if (input.get(trailerOffset) == '\n' || input.get(trailerOffset) == '\r') // An empty line
+						return trailerEnd;
+					trailerOffset = trailerEnd;
+				}
+			}
+			long dataEnd = lineEnd + size;
+			if (dataEnd + 1 >= Integer.MAX_VALUE)
+				throw new NumberFormatException("Chunk too large.");
+			if (dataEnd >= end)
+				return -1;
+			int next = findLineEnd((int)dataEnd, end);
+			if (next < 0)
+				return -1;
+			if (next - dataEnd > 2) // Data followed by something other than a line break
+				throw new NumberFormatException("Missing line break after chunk.");
+			chunkOffset = next;
+		}
+	}
+
+	/**
+	 * Find the end of the line starting at the given index of the input buffer.
+	 *
+	 * @return	The index right after the line feed ending the line, or -1 if it hasn't been received.
+	 */
+	private int findLineEnd(int start, int end) {
+		for (int i=start ; i<end ; i++) {
+			if (input.get(i) == '\n')
+				return i + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Parse the chunk size on the line between the given indices of the input buffer.
+	 *
+	 * @throws 	NumberFormatException
+	 * 			The line holds no valid chunk size.
+	 */
+	private long parseChunkSize(int start, int end) throws NumberFormatException {
+		long size = 0;
+		int digits = 0;
+		for (int i=start ; i<end ; i++) {
+			char c = (char)input.get(i);
+			if (c == ';' || c == '\r' || c == '\n')
+				break; // Chunk extensions are ignored
+			if (c == ' ' || c == '\t')
+				continue;
+			int digit = Character.digit(c, 16);
+			if (digit < 0 || ++digits > 15)
+				throw new NumberFormatException("Invalid chunk size.");
+			size = size * 16 + digit;
+		}
+		if (digits == 0)
+			throw new NumberFormatException("Invalid chunk size.");
+		return size;
+	}
+
+	/**
+	 * The index in the input buffer of the first chunk of the body being received
+	 * 	that hasn't been received completely.
+	 */
+	private int chunkOffset = 0;
+
+	/**
+	 * Remove the given amount of bytes from the start of the input buffer.
+	 *
+	 * @param 	length
+	 * 			The amount of bytes that are to be removed.
+	 * @return	The removed bytes.
+	 */
+	private byte[] take(int length) {
+		byte[] bytes = new byte[length];
+		input.flip();
+		input.get(bytes);
+		input.compact();
+		chunkOffset = 0;
+		return bytes;
+	}
+
+	/**
+	 * Discard the given amount of bytes at the start of the input buffer.
+	 *
+	 * @param 	length
+	 * 			The amount of bytes that are to be discarded.
+	 */
+	private void skip(int length) {
+		input.flip();
+		input.position(length);
+		input.compact();
+		chunkOffset = 0;
+	}
+
+	/**
+	 * The parser of the header that is being received, or null if no header has been started.
+	 */
+	private HeaderParser parser;
+
+	/**
+	 * The header of the request whose body is being received, or null if a new header is expected.
+	 */
+	private HTTPRequestHeader header;
+
+	/**
+	 * The length of the body of the request whose body is being received.
+	 */
+	private long bodyLength;
+
+	/**
+	 * Queue the given response for writing.
+	 *
+	 * @param 	response
+	 * 			The response that is to be written.
+	 * @param 	close
+	 * 			Whether the connection is to be closed once the response has been written.
+	 */
+	private void respond(HTTPResponse response, boolean close) {
+		output.addAll(response.toRegions(generator.getConfiguration().getCoalesceLimit()));
+		if (close)
+			closeAfterWrite = true;
+	}
+
+	/**
+	 * Write as much pending output as the channel of this connection accepts, now that it can be written to.
+	 *
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	void write() throws IOException {
+		flush();
+		progress(DeadlineType.WRITE);
+	}
+
+	/**
+	 * Write as much pending output as the channel of this connection accepts.
+	 * 	The responses to all pipelined requests that have been parsed so far are
+	 * 	written together, with as few (gathering) writes as possible.
+	 *
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	private void flush() throws IOException {
+		ContentRegion.transferAll(output, channel); // Stops early if the socket's send buffer is full
+		if (output.isEmpty() && closeAfterWrite && pending == null)
+			close();
+		else {
+			updateInterest();
+			updateDeadline();
+		}
+	}
+
+	/**
+	 * The regions that are waiting to be written to the channel of this connection.
+	 */
+	private final ArrayDeque<ContentRegion> output = new ArrayDeque<ContentRegion>();
+
+	/**
+	 * Whether this connection is to be closed once all pending output has been written.
+	 */
+	private boolean closeAfterWrite = false;
+
+	/**
+	 * Register interest in the events this connection currently cares about.
+	 */
+	private void updateInterest() {
+		if (!key.isValid())
+			return;
+		boolean full = (input != null && !input.hasRemaining() && input.capacity() >= MAX_BUFFER_SIZE);
+		int interest = (closeAfterWrite || endOfInput || full ? 0 : SelectionKey.OP_READ);
+		if (!output.isEmpty())
+			interest |= SelectionKey.OP_WRITE;
+		key.interestOps(interest);
+		if (interest == 0 && pending == null) // Nothing left to do
+			close();
+	}
+
+	/**
+	 * Close this connection.
+	 */
+	void close() {
+		if (isClosed())
+			return;
+		if (timeout != null)
+			timeout.clear();
+		ContentRegion region;
+		while ((region = output.poll()) != null)
+			region.close();
+		releaseInput();
+		if (spool != null) {
+			ResponseGenerator.closeQuietly(spool);
+			spool = null;
+		}
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.out.println(e.getLocalizedMessage());
+		}
+		loop.connectionClosed();
+	}
+
+	/**
+	 * Returns whether or not this connection has been closed.
+	 */
+	boolean isClosed() {
+		return !channel.isOpen();
+	}
+
+	/**
+	 * The initial size of the input buffer of a connection.
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+	/**
+	 * The length of the largest bodies that are gathered in memory before the request is handled.
+	 * 	Larger bodies (or chunked bodies that turn out to be larger) are stored in a file.
+	 */
+	private static final int MAX_BUFFERED_BODY_SIZE = 64 * 1024;
+
+	/**
+	 * The maximum size of the input buffer of a connection, which holds a complete request with the largest
+	 * 	header and the largest body that is gathered in memory.
+	 */
+	private static final int MAX_BUFFER_SIZE = 2 * Math.max(HeaderParser.MAX_HEADER_SIZE, MAX_BUFFERED_BODY_SIZE);
+}
@@ -1,23 +1,34 @@
 package org.brunovandekerkhove.server;
 
-import java.io.BufferedWriter;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 
+import org.brunovandekerkhove.http.ContentRegion;
 import org.brunovandekerkhove.http.HTTPRequest;
 import org.brunovandekerkhove.http.HTTPResponse;
 import org.brunovandekerkhove.http.HTTPVersion;
-import org.brunovandekerkhove.utils.LocalFileManager;
+import org.brunovandekerkhove.http.MessageInputStream;
+import org.brunovandekerkhove.http.UnsupportedVersionException;
+import org.brunovandekerkhove.utils.BufferPool;
+import org.brunovandekerkhove.utils.ClosedSocketException;
 
 /**
  * A class of handlers for managing connections to the server.
- *  The handlers are meant to be run on a separate thread.
+ *  The handlers are meant to be run on a separate thread, which may be a virtual one.
+ *  They hold no monitors while blocked on I/O, so virtual threads never pin their carrier.
+ *  Requests are read through a buffer, and the responses to pipelined requests that are
+ *  already waiting in it are generated in order and written together.
+ *  Every phase of an exchange has a deadline (see DeadlineType), kept by a timing wheel,
+ *  and a connection that misses one is closed. Handlers run by a worker pool don't wait for
+ *  the next request of a keep-alive connection : they park the connection with a selector,
+ *  which has the handler run again once the client sends something.
  * 
  * @author 	Bruno Vandekerkhove
  * @version	1.0
@@ -25,154 +36,340 @@ import org.brunovandekerkhove.utils.LocalFileManager;
 public class ConnectionHandler implements Runnable {
 
 	/**
-	 * Initialize this new connection handler with given socket.
+	 * Initialize this new connection handler with given socket and response generator.
 	 * 
 	 * @param 	socket
 	 * 			The socket to initialize this connection handler with.
+	 * @param	generator
+	 * 			The generator to use for responding to incoming requests.
 	 */
-	public ConnectionHandler(Socket socket) {
+	public ConnectionHandler(Socket socket, ResponseGenerator generator) {
+		this(socket, generator, null, null, null);
+	}
+
+	/**
+	 * Initialize this new connection handler with given socket and response generator, to be run by the given pool.
+	 * 	Keep-alive connections are closed after a response while other connections wait for a worker.
+	 * 
+	 * @param 	socket
+	 * 			The socket to initialize this connection handler with.
+	 * @param	generator
+	 * 			The generator to use for responding to incoming requests.
+	 * @param 	pool
+	 * 			The pool the handler is run by, or null if it has a thread of its own.
+	 * @param 	idle
+	 * 			The selector the connection is parked with while it waits for a request, or null if the handler waits itself.
+	 * @param 	wheel
+	 * 			The timing wheel keeping the deadlines of the connection, or null if it has none.
+	 */
+	public ConnectionHandler(Socket socket, ResponseGenerator generator, WorkerPool pool, IdleSelector idle, TimingWheel wheel) {
 		this.socket = socket;
+		this.generator = generator;
+		this.pool = pool;
+		this.idle = (socket.getChannel() == null ? null : idle); // Only channels can be selected
+		this.timeout = (wheel == null ? null : wheel.newTimeout(this::expire));
 	}
 
 	/**
 	 * Registers the socket for this connection handler.
 	 */
 	private Socket socket;
+	
+	/**
+	 * The generator used by this connection handler for responding to requests.
+	 */
+	private final ResponseGenerator generator;
+
+	/**
+	 * The pool this connection handler is run by, or null if it has a thread of its own.
+	 */
+	private final WorkerPool pool;
+
+	/**
+	 * The selector the connection is parked with while it waits for a request, or null if this handler waits itself.
+	 */
+	private final IdleSelector idle;
+
+	/**
+	 * The timeout holding the current deadline of the connection, or null if it has none.
+	 */
+	private final TimingWheel.Timeout timeout;
+
+	/**
+	 * Whether the connection was closed because it missed a deadline.
+	 */
+	private volatile boolean expired = false;
+
+	/**
+	 * Close the connection, because it missed a deadline.
+	 * 	This unblocks the thread of this handler, wherever it is waiting for the client.
+	 */
+	private void expire() {
+		expired = true;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			System.out.println(e.getLocalizedMessage());
+		}
+		if (idle != null) // The channel of a parked connection is only closed once its selector wakes up
+			idle.wakeup();
+	}
+
+	/**
+	 * Set the deadline of the given type for the connection, as configured.
+	 *
+	 * @param 	type
+	 * 			The type of the deadline, which replaces the current one.
+	 */
+	private void setDeadline(DeadlineType type) {
+		if (timeout != null)
+			timeout.set(type, 1000L * generator.getConfiguration().getTimeout(type));
+	}
+
+	/**
+	 * The stream the requests are read from, or null if this handler hasn't run yet.
+	 * 	Headers are parsed inside its buffer, which is only held while it holds unread bytes.
+	 */
+	private MessageInputStream input;
+
+	/**
+	 * The regions of the responses that are yet to be written.
+	 */
+	private final ArrayDeque<ContentRegion> output = new ArrayDeque<ContentRegion>();
 
 	@Override
 	public void run() {
 
+		int coalesceLimit = generator.getConfiguration().getCoalesceLimit();
+		boolean parked = false;
+		
 		try {
 
-			DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+			if (input == null) { // The first run, later ones pick up where a parked connection left off
+				socket.setTcpNoDelay(generator.getConfiguration().isNoDelay());
+				InputStream stream = socket.getInputStream();
+				ReadableByteChannel channel = socket.getChannel(); // Reads straight into pooled direct buffers
+				if (channel == null)
+					channel = Channels.newChannel(stream);
+				if (timeout != null)
+					channel = new ProgressChannel(channel, timeout);
+				input = new MessageInputStream(stream, channel);
+			}
+			int batched = 0;
+			
 			while (!socket.isClosed()) {
 
+				setDeadline(DeadlineType.IDLE);
+				if (idle != null && input.available() == 0) { // Nothing to do until the client sends something, all output has been written
+					parked = true;
+					idle.park(socket.getChannel(), this, this::reject);
+					return;
+				}
+				if (!input.awaitData()) // The client is done, any batched responses have been written
+					break;
+				setDeadline(DeadlineType.HEADER);
+
 				HTTPResponse response = null;
 				HTTPVersion version = HTTPVersion.HTTP_10;
 				boolean requestsClose = false;
 				
+				HTTPRequest request = null;
+				boolean rejected = false; // Whether the body was turned down before it was sent
 				try { // Get request and generate response (default = error)					
-					HTTPRequest request = new HTTPRequest(socket);
+					request = new HTTPRequest(input);
+					setDeadline(DeadlineType.BODY); // Covers the body as it is read while the response is generated
 					version = request.header.version;
-					response = generateResponse(request);
-					requestsClose = request.requestsClose();
+					if (request.hasExpectation()) { // Typically 'Expect: 100-continue' before a large upload
+						response = generator.checkExpectation(request);
+						rejected = (response != null);
+						if (!rejected && input.available() == 0) { // The client is waiting for a go-ahead
+							output.add(HTTPResponse.continueRegion());
+							ContentRegion.writeAll(output, socket); // After the responses that came before
+							batched = 0;
+						}
+					}
+					if (!rejected) {
+						response = generator.generateResponse(request);
+						requestsClose = request.requestsClose();
+					}
+					else
+						requestsClose = true; // The body may or may not follow, so the next request can't be found
+				} catch (ClosedSocketException e) { // The client is done, only the batched responses are left to write
+					requestsClose = true;
+				} catch (UnsupportedVersionException e) { // Well-formed, but not a version this server speaks
+					response = new HTTPResponse(HTTPVersion.HTTP_11, 505, "HTTP Version Not Supported");
+					requestsClose = true;
+				} catch (ProtocolException e) { // Malformed header or body length, there's no telling where the next request starts
+					response = new HTTPResponse(version, 400, "Bad Request");
+					requestsClose = true;
 				} catch (Exception e) { // Could, for example, be error writing locally (PUT/POST)
 					response = new HTTPResponse(version, 500, "Server Error");
 				}
-				
-				// Send the response and close the connection if appropriate (HTTP v. 1.0)
-				if (!socket.isClosed()) {
-					if (response == null) // Response was not generated => error
-						response = new HTTPResponse(version, 500, "Server Error");				
-					try { // Try writing response to output stream of socket
-						outputStream.writeBytes(response.header.toString() + "\r\n");
-						outputStream.write(response.contents);
-						if (version == HTTPVersion.HTTP_10 || requestsClose)
-							socket.close();
-					}
-					catch (IOException e) { // Error writing to socket
-						socket.close();
-						System.out.println(e.getLocalizedMessage());
+				if (request != null && !rejected) {
+					try { // Skip whatever the generator didn't read of the body, the next request follows it
+						request.finishBody();
+					} catch (IOException e) {
+						requestsClose = true;
 					}
 				}
+				if (request != null && response == null) // Response was not generated => error
+					response = new HTTPResponse(version, 500, "Server Error");
+				if (response != null && !requestsClose && pool != null && pool.isCongested() && input.available() == 0) {
+					response.addConnectionClose(); // Makes way for a waiting connection
+					requestsClose = true;
+				}
+				if (response != null) {
+					output.addAll(response.toRegions(coalesceLimit)); // Small bodies are copied in after their header
+					batched++;
+				}
+				
+				// Send the batched responses once no pipelined request is waiting to be read,
+				// 	and close the connection if appropriate (HTTP v. 1.0)
+				boolean close = (version == HTTPVersion.HTTP_10 || requestsClose);
+				if (close || batched >= MAX_BATCHED_RESPONSES || input.available() == 0) {
+					setDeadline(DeadlineType.WRITE);
+					ContentRegion.writeAll(output, socket, (timeout == null ? null : timeout::progress)); // Buffers gathered, file regions go straight from the file (sendfile)
+					batched = 0;
+				}
+				if (close)
+					socket.close();
 				
 			}
 
-		} catch (IOException e) {
-			System.out.println(e.getLocalizedMessage());
+		} catch (IOException e) { // Error writing to socket
+			if (!expired)
+				System.out.println(e.getLocalizedMessage());
+		} finally { // Release the files and buffers of the responses that weren't sent
+			if (!parked)
+				close();
 		}
 
 	}
 
 	/**
-	 * Generate a server response for the given HTTP request.
-	 * 
-	 * @param 	request
-	 * 			The request to respond to.
-	 * @return	An appropriate HTTP response for the given HTTP request.
-	 * @throws	IOException
-	 * 			If an error occurred while reading from a stream (eg. when reading files).
-	 */
-	private HTTPResponse generateResponse(HTTPRequest request) throws IOException {
-		HTTPResponse response = null;
-		HTTPVersion requestVersion = request.header.version;
-		if (requestVersion == HTTPVersion.HTTP_11 
-			&& !request.hasHostField()) { // Check if a host has been specified (only mandatory in HTTP/1.1)
-			response = new HTTPResponse(requestVersion, 400, "Bad Request"); 
-		} else {
-			String subPath = request.getURI().getPath();
-			if (subPath.equalsIgnoreCase("/"))
-				subPath = "/index.html";
-			String localPath = "resources" + subPath;
-			switch (request.getCommandType()) { // Generate appropriate response to request
-			case "HEAD":
-			case "GET":
-		        Date localDate = LocalFileManager.getDefaultManager().getLastModifiedDate(localPath);
-		        if (localDate != null) { // Local date can be null when the file doesn't exist
-		            Date ifModifiedSinceDate = request.getIfModifiedSinceDate();
-		            if (ifModifiedSinceDate != null && localDate.before(ifModifiedSinceDate))
-		            		response = new HTTPResponse(requestVersion, 304, "Not Modified");
-		            else {
-		            		byte[] contents = Files.readAllBytes(Paths.get(localPath));
-		            		response = new HTTPResponse(requestVersion, 200, "OK", contents, getContentType(localPath));
-		            }
-		        } else {
-		        		byte[] contents = Files.readAllBytes(Paths.get(PATH_404));
-		            response = new HTTPResponse(requestVersion, 404, "Not Found", contents, getContentType(PATH_404));
-		        }
-		        if (request.getCommandType().equalsIgnoreCase("head"))
-		        		response.contents = new byte[0]; // Only the heading is necessary
-				break;
-			case "POST":
-			case "PUT":
-				String inputContent = request.getContentString();
-		        try {
-		            File file = new File(localPath);
-		            if (!file.exists()) {
-		                file.createNewFile();
-		                response = new HTTPResponse(requestVersion, 201, "Created");
-		            }
-		            else
-		            		response = new HTTPResponse(requestVersion, 204, "No Content");
-		            FileWriter fileWritter = new FileWriter(file, request.getCommandType().equalsIgnoreCase("put"));
-		            BufferedWriter bufferWritter = new BufferedWriter(fileWritter);
-		            bufferWritter.write(inputContent);
-		            bufferWritter.close();
-		        }
-		        catch (IOException e){
-		            response = new HTTPResponse(requestVersion, 400, "Bad Request");
-		        }
-				break;
-			default: // http://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html#sec10.5.2
-				response = new HTTPResponse(requestVersion, 501, "Not Implemented");
-				break;
-			}
+	 * Close the connection, releasing the files and buffers of the responses that weren't sent.
+	 */
+	private void close() {
+		if (timeout != null)
+			timeout.clear();
+		ContentRegion region;
+		while ((region = output.poll()) != null)
+			region.close();
+		try {
+			if (input != null)
+				input.close(); // Returns its buffer, if it holds one
+			socket.close();
+		} catch (IOException e) {
+			System.out.println(e.getLocalizedMessage());
 		}
-		return response;
 	}
-	
+
 	/**
-	 * Get the MIME type for the file at the given path.
-	 * 
-	 * @param 	path
-	 * 			The path of the file whose content type is desired.
-	 * @return 	The content type matching the given extension, or an empty string
-	 * 			if none matches.
-	 * @note		https://stackoverflow.com/questions/23714383/what-are-all-the-possible-values-for-http-content-type-header
+	 * Turn the connection down with a 503 response, without reading its requests, and close it.
+	 * 	This is run instead of this handler when the server is overloaded, by the acceptor or by
+	 * 	the thread that sheds connections, so it never waits for the client : the response is
+	 * 	sent with a single non-blocking write, and the client doesn't get it if it isn't reading.
 	 */
-	public String getContentType(String path) {
+	public void reject() {
+		if (timeout != null)
+			timeout.clear();
+		SocketChannel channel = socket.getChannel();
+		ArrayDeque<ContentRegion> regions = new ArrayDeque<ContentRegion>(
+				new HTTPResponse(REJECTION.header, REJECTION_BYTES.duplicate()).toRegions()); // Only the date is new
 		try {
-			String MIME = Files.probeContentType(Paths.get(path));
-			return MIME;
-		}
-		catch (Exception e) {
-			return "";
+			if (channel != null) {
+				channel.configureBlocking(false);
+				if (ContentRegion.transferAll(regions, channel)) {
+					socket.shutdownOutput();
+					ByteBuffer unread = BufferPool.getDefaultPool().lease(DRAINED_SIZE);
+					try { // Unread requests would make the close reset the connection, and the response could be lost
+						channel.read(unread);
+					} finally {
+						BufferPool.getDefaultPool().release(unread);
+					}
+				}
+			}
+		} catch (IOException e) {
+			// The client is gone already
+		} finally {
+			for (ContentRegion region : regions)
+				region.close();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				System.out.println(e.getLocalizedMessage());
+			}
 		}
-    }
-	
+	}
+
+	/**
+	 * The number of seconds after which a client that was turned down may try again.
+	 */
+	private static final int RETRY_AFTER = 1;
+
+	/**
+	 * The response connections are turned down with.
+	 */
+	private static final HTTPResponse REJECTION = new HTTPResponse(HTTPVersion.HTTP_11, 503, "Service Unavailable");
+
+	static {
+		REJECTION.header.addHeaderField("Retry-After", Integer.toString(RETRY_AFTER));
+		REJECTION.header.addHeaderField("Connection", "close");
+	}
+
+	/**
+	 * The response connections are turned down with, serialized.
+	 */
+	private static final ByteBuffer REJECTION_BYTES = REJECTION.encode();
+
+	/**
+	 * The amount of unread bytes that is read and dropped before a connection that was turned down is closed.
+	 */
+	private static final int DRAINED_SIZE = 4 * 1024;
+
+	/**
+	 * The maximum number of responses to pipelined requests that are written together.
+	 */
+	private static final int MAX_BATCHED_RESPONSES = 16;
+
 	/**
-	 * The path of the 404 html file.
+	 * A class of channels reporting every read that makes progress to a timeout.
 	 */
-	private static final String PATH_404 = "resources/404.html";
+	private static class ProgressChannel implements ReadableByteChannel {
+
+		private ProgressChannel(ReadableByteChannel channel, TimingWheel.Timeout timeout) {
+			this.channel = channel;
+			this.timeout = timeout;
+		}
+
+		/**
+		 * The channel that is read from.
+		 */
+		private final ReadableByteChannel channel;
+
+		/**
+		 * The timeout that is told about progress.
+		 */
+		private final TimingWheel.Timeout timeout;
+
+		@Override
+		public int read(ByteBuffer buffer) throws IOException {
+			int count = channel.read(buffer);
+			if (count > 0)
+				timeout.progress();
+			return count;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,305 @@
+package org.brunovandekerkhove.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.brunovandekerkhove.http.HTTPRequest;
+
+/**
+ * A class of storage backends storing every distinct body only once, by the SHA-256 hash of its contents.
+ * 	The bodies (objects) are kept in a directory of their own, and every uploaded file is a hard
+ * 	link to its object, so files with the same contents share their blocks on the disk and their
+ * 	pages in the page cache, yet are still served like any other file (with sendfile or from a
+ * 	mapping). Uploads are published with an atomic rename, like in file storage.
+ * 	An upload that is identical to the file it replaces is compared with the file as it is received,
+ * 	and isn't written at all. A file that is appended to is copied first if it shares its object,
+ * 	so the other files are left alone. Objects that no file links to anymore are removed by a
+ * 	collector, which runs periodically.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://en.wikipedia.org/wiki/Content-addressable_storage
+ */
+public class ContentAddressedStorage implements StorageBackend {
+
+	/**
+	 * Initialize this new content-addressed storage for the given resources directory.
+	 *
+	 * @param 	root
+	 * 			The resources directory. The objects are kept in a directory in it, which isn't served.
+	 * @param 	locks
+	 * 			The locks serializing the writes to files, by path.
+	 * @throws 	IOException
+	 * 			The objects directory could not be created.
+	 */
+	public ContentAddressedStorage(Path root, StripedLocks locks) throws IOException {
+		this.objects = Files.createDirectories(root.resolve(ResourceIndex.OBJECTS_DIRECTORY));
+		this.locks = locks;
+		Thread collector = new Thread(() -> {
+			while (true) {
+				collect();
+				try {
+					Thread.sleep(COLLECTION_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "object-collector");
+		collector.setDaemon(true);
+		collector.start();
+	}
+
+	/**
+	 * The directory the objects are kept in, by the first two hexadecimal digits of their hash.
+	 */
+	private final Path objects;
+
+	/**
+	 * The locks serializing the writes to files, by path.
+	 */
+	private final StripedLocks locks;
+
+	@Override
+	public Outcome store(Path path, HTTPRequest request) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) { // Every platform has it
+			throw new IOException(e);
+		}
+		Path partial = null;
+		FileChannel output = null;
+		try (FileChannel existing = openIfSameLength(path, request)) {
+			InputStream body = request.getBodyStream();
+			byte[] bytes = new byte[CHUNK_SIZE];
+			ByteBuffer compared = (existing == null ? null : ByteBuffer.allocate(CHUNK_SIZE));
+			long offset = 0;
+			int count;
+			while ((count = body.readNBytes(bytes, 0, bytes.length)) > 0) {
+				digest.update(bytes, 0, count);
+				if (output == null && existing != null && matches(existing, offset, bytes, count, compared)) {
+					offset += count; // Nothing is written as long as the upload is identical
+					continue;
+				}
+				if (output == null) { // The identical part is copied from the file, within the kernel
+					partial = FileStorage.partialPathFor(path);
+					output = FileChannel.open(partial, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+					for (long position=0 ; position<offset ; )
+						position += existing.transferTo(position, offset - position, output);
+				}
+				ByteBuffer chunk = ByteBuffer.wrap(bytes, 0, count);
+				while (chunk.hasRemaining())
+					output.write(chunk);
+				offset += count;
+			}
+			if (output == null && existing != null) {
+				unchanged.increment();
+				return Outcome.UNCHANGED;
+			}
+			if (output == null) { // An empty body
+				partial = FileStorage.partialPathFor(path);
+				output = FileChannel.open(partial, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			}
+			output.close();
+			Path object = objectFor(digest.digest());
+			Path link = FileStorage.partialPathFor(path);
+			try {
+				try {
+					Files.createLink(link, object);
+					deduplicated.increment();
+				} catch (NoSuchFileException e) { // A new object (or one that was just collected)
+					Files.createDirectories(object.getParent());
+					Files.move(partial, object, StandardCopyOption.ATOMIC_MOVE); // Racing uploads of the same body replace each other's object
+					Files.createLink(link, object); // Too young to be collected yet
+					stored.increment();
+				}
+				return FileStorage.publish(link, path, locks);
+			} finally {
+				Files.deleteIfExists(link); // Only left if publishing failed
+			}
+		} finally {
+			if (output != null)
+				output.close();
+			if (partial != null)
+				Files.deleteIfExists(partial);
+		}
+	}
+
+	/**
+	 * Open the file at the given path if it has the same length as the body of the given request.
+	 *
+	 * @return	A channel for reading the file, or null if it doesn't exist or has another length
+	 * 			(or if the length of the body isn't known up front).
+	 */
+	private static FileChannel openIfSameLength(Path path, HTTPRequest request) throws IOException {
+		String lengthField = request.header.getHeaderField("Content-Length");
+		if (lengthField == null || request.header.isChunked())
+			return null;
+		try {
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			if (channel.size() == Long.parseLong(lengthField.trim()))
+				return channel;
+			channel.close();
+		} catch (NoSuchFileException e) {
+			// A new file
+		}
+		return null;
+	}
+
+	/**
+	 * Returns whether the given bytes are equal to the bytes at the given offset in the given file.
+	 *
+	 * @param 	compared
+	 * 			A buffer that can hold the given amount of bytes, to read the file into.
+	 */
+	private static boolean matches(FileChannel file, long offset, byte[] bytes, int count, ByteBuffer compared) throws IOException {
+		compared.clear().limit(count);
+		while (compared.hasRemaining()) {
+			if (file.read(compared, offset + compared.position()) < 0)
+				return false; // The file was shorter after all
+		}
+		return Arrays.equals(bytes, 0, count, compared.array(), 0, count);
+	}
+
+	/**
+	 * Returns the path of the object with the given hash.
+	 */
+	private Path objectFor(byte[] hash) {
+		StringBuilder name = new StringBuilder(2 * hash.length);
+		for (byte current : hash)
+			name.append(Character.forDigit((current >> 4) & 0xF, 16)).append(Character.forDigit(current & 0xF, 16));
+		return objects.resolve(name.substring(0, 2)).resolve(name.toString());
+	}
+
+	@Override
+	public void prepareAppend(Path path) throws IOException {
+		try {
+			if ((Integer)Files.getAttribute(path, "unix:nlink") <= 1)
+				return;
+		} catch (NoSuchFileException | UnsupportedOperationException e) {
+			return;
+		}
+		Path partial = FileStorage.partialPathFor(path); // Shared with its object, so it gets a copy of its own
+		try {
+			Files.copy(path, partial, StandardCopyOption.COPY_ATTRIBUTES);
+			Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(partial);
+		}
+	}
+
+	/**
+	 * Remove the objects that no file links to anymore.
+	 * 	Objects that were written recently are left alone, since an upload links to its new object
+	 * 	right after it was stored. An object that gets linked to while it is being removed is
+	 * 	simply stored again. An object or directory that can't be looked at is skipped.
+	 */
+	public void collect() {
+		long threshold = System.currentTimeMillis() - COLLECTION_GRACE_PERIOD;
+		try (DirectoryStream<Path> directories = Files.newDirectoryStream(objects)) {
+			for (Path directory : directories) {
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+					for (Path object : files)
+						collect(object, threshold);
+				} catch (IOException | DirectoryIteratorException e) {
+					System.out.println(e.getLocalizedMessage());
+				}
+			}
+		} catch (IOException | DirectoryIteratorException e) {
+			System.out.println(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Remove the given object if no file links to it anymore and it was written before the given time.
+	 */
+	private void collect(Path object, long threshold) {
+		try {
+			if ((Integer)Files.getAttribute(object, "unix:nlink") <= 1
+					&& Files.getLastModifiedTime(object).toMillis() < threshold
+					&& Files.deleteIfExists(object))
+				collected.increment();
+		} catch (NoSuchFileException e) {
+			// Removed in the meantime
+		} catch (IOException | UnsupportedOperationException e) {
+			System.out.println(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Returns the number of uploads that were stored as a new object.
+	 */
+	public long getStoredCount() {
+		return stored.sum();
+	}
+
+	/**
+	 * Returns the number of uploads whose object had been stored already.
+	 */
+	public long getDeduplicatedCount() {
+		return deduplicated.sum();
+	}
+
+	/**
+	 * Returns the number of uploads that were identical to the file they were for, and weren't written.
+	 */
+	public long getUnchangedCount() {
+		return unchanged.sum();
+	}
+
+	/**
+	 * Returns the number of objects that were removed because no file linked to them anymore.
+	 */
+	public long getCollectedCount() {
+		return collected.sum();
+	}
+
+	/**
+	 * The number of uploads that were stored as a new object.
+	 */
+	private final LongAdder stored = new LongAdder();
+
+	/**
+	 * The number of uploads whose object had been stored already.
+	 */
+	private final LongAdder deduplicated = new LongAdder();
+
+	/**
+	 * The number of uploads that were identical to the file they were for.
+	 */
+	private final LongAdder unchanged = new LongAdder();
+
+	/**
+	 * The number of objects that were removed.
+	 */
+	private final LongAdder collected = new LongAdder();
+
+	/**
+	 * The size of the chunks in which bodies are read, hashed and compared.
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * The time between two collections, in milliseconds.
+	 */
+	private static final long COLLECTION_INTERVAL = 10 * 60 * 1000;
+
+	/**
+	 * The time after it was written that an object may be collected, in milliseconds.
+	 */
+	private static final long COLLECTION_GRACE_PERIOD = COLLECTION_INTERVAL;
+
+}
@@ -0,0 +1,71 @@
+package org.brunovandekerkhove.server;
+
+/**
+ * An enumeration of the deadlines a connection is held to, one for every phase of an exchange.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public enum DeadlineType {
+
+	/**
+	 * The time a connection may wait for its next request to start.
+	 */
+	IDLE(false),
+
+	/**
+	 * The time a client may take to send a complete header, once it has started.
+	 * 	It is a deadline for the header as a whole, so a client can't stretch it by trickling bytes.
+	 */
+	HEADER(false),
+
+	/**
+	 * The time a client may go without sending any of the body of its request.
+	 */
+	BODY(true),
+
+	/**
+	 * The time a client may go without accepting any of a response.
+	 */
+	WRITE(true);
+
+	/**
+	 * Initialize this new deadline type.
+	 *
+	 * @param 	progressive
+	 * 			Whether the deadline is pushed back whenever there is progress.
+	 */
+	private DeadlineType(boolean progressive) {
+		this.progressive = progressive;
+	}
+
+	/**
+	 * Returns whether deadlines of this type are pushed back whenever there is progress,
+	 * 	rather than being fixed once they are set.
+	 */
+	public boolean isProgressive() {
+		return this.progressive;
+	}
+
+	/**
+	 * Whether deadlines of this type are pushed back whenever there is progress.
+	 */
+	private final boolean progressive;
+
+	/**
+	 * Get the deadline type represented by the given string.
+	 *
+	 * @param 	typeString
+	 * 			The string representing a deadline type.
+	 * @return	The deadline type represented by the given string, or
+	 * 			null if the string does not represent any deadline type.
+	 */
+	public static DeadlineType typeForString(String typeString) {
+		for (DeadlineType type : values()) {
+			if (type.name().equalsIgnoreCase(typeString))
+				return type;
+		}
+		return null;
+	}
+
+}
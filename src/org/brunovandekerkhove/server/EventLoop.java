@@ -0,0 +1,266 @@
+package org.brunovandekerkhove.server;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.brunovandekerkhove.utils.BufferPool;
+
+/**
+ * A class of event loops multiplexing many non-blocking connections over a single thread.
+ * 	Channels are either handed to an event loop by an acceptor or accepted by the event loop
+ * 	itself, and stay with it until they are closed.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://docs.oracle.com/javase/8/docs/api/java/nio/channels/Selector.html
+ */
+public class EventLoop implements Runnable {
+
+	/**
+	 * Initialize this new event loop with given response generator.
+	 *
+	 * @param 	generator
+	 * 			The generator to use for responding to incoming requests.
+	 * @throws 	IOException
+	 * 			The selector for this event loop could not be opened.
+	 */
+	public EventLoop(ResponseGenerator generator) throws IOException {
+		this(generator, null);
+	}
+
+	/**
+	 * Initialize this new event loop with given response generator, holding its connections to deadlines kept by the given timing wheel.
+	 *
+	 * @param 	generator
+	 * 			The generator to use for responding to incoming requests.
+	 * @param 	wheel
+	 * 			The timing wheel keeping the deadlines of the connections, or null if they have none.
+	 * @throws 	IOException
+	 * 			The selector for this event loop could not be opened.
+	 */
+	public EventLoop(ResponseGenerator generator, TimingWheel wheel) throws IOException {
+		this.generator = generator;
+		this.wheel = wheel;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * The generator used by this event loop for responding to requests.
+	 */
+	private final ResponseGenerator generator;
+
+	/**
+	 * The timing wheel keeping the deadlines of the connections of this event loop, or null if they have none.
+	 */
+	private final TimingWheel wheel;
+
+	/**
+	 * The selector of this event loop.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Hand the given channel to this event loop.
+	 * 	This method can be called from any thread.
+	 *
+	 * @param 	channel
+	 * 			The channel of a newly accepted connection.
+	 */
+	public void register(SocketChannel channel) {
+		newChannels.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * The channels that were handed to this event loop but haven't been registered yet.
+	 */
+	private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+
+	/**
+	 * Run the given task on the thread of this event loop.
+	 * 	This method can be called from any thread.
+	 *
+	 * @param 	task
+	 * 			The task that is to be run.
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Run all tasks that were handed to this event loop.
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException | Error e) { // Only the connection the task was for is affected
+				System.out.println(e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * The tasks that were handed to this event loop but haven't been run yet.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	
+	/**
+	 * Let this event loop accept connections on the given listening channel itself.
+	 * 	This should be called before the event loop is started. The same channel may
+	 * 	be given to several event loops, which then compete for its connections.
+	 * 
+	 * @param 	serverChannel
+	 * 			The channel to accept connections on.
+	 * @throws 	IOException
+	 * 			The channel could not be registered.
+	 */
+	public void listen(ServerSocketChannel serverChannel) throws IOException {
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+	
+	/**
+	 * Accept all pending connections on the listening channel of the given key.
+	 * 
+	 * @param 	key
+	 * 			The key of a listening channel.
+	 */
+	private void accept(SelectionKey key) {
+		ServerSocketChannel serverChannel = (ServerSocketChannel)key.channel();
+		try {
+			SocketChannel channel;
+			while ((channel = serverChannel.accept()) != null) // Null once another event loop got there first
+				newChannels.add(channel);
+		} catch (IOException e) {
+			System.out.println(e.getLocalizedMessage());
+		}
+		registerNewChannels();
+	}
+
+	@Override
+	public void run() {
+		BufferPool.getDefaultPool().enableThreadCache();
+		while (selector.isOpen()) {
+			try {
+				selector.select();
+				registerNewChannels();
+				runTasks();
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					handle(key);
+				}
+			} catch (ClosedSelectorException e) { // The event loop was closed
+				return;
+			} catch (IOException e) {
+				System.out.println(e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Register all channels that were handed to this event loop with its selector.
+	 */
+	private void registerNewChannels() {
+		SocketChannel channel;
+		while ((channel = newChannels.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, generator.getConfiguration().isNoDelay());
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				key.attach(new ChannelConnection(channel, key, this, generator, wheel));
+				connectionCount++;
+				acceptedCount++;
+			} catch (IOException e) {
+				System.out.println(e.getLocalizedMessage());
+				try {
+					channel.close();
+				} catch (IOException ignored) {}
+			}
+		}
+	}
+
+	/**
+	 * Handle the events that are ready for the given key.
+	 *
+	 * @param 	key
+	 * 			The key whose channel is ready.
+	 */
+	private void handle(SelectionKey key) {
+		if (key.isValid() && key.isAcceptable()) {
+			accept(key);
+			return;
+		}
+		ChannelConnection connection = (ChannelConnection)key.attachment();
+		try {
+			if (key.isReadable())
+				connection.read();
+			if (key.isValid() && key.isWritable())
+				connection.write();
+		} catch (IOException | CancelledKeyException e) { // Typically a reset by the client
+			connection.close();
+		} catch (RuntimeException | Error e) { // A bug or exhausted memory, which only takes this connection down
+			System.out.println(e.getLocalizedMessage());
+			connection.close();
+		}
+	}
+
+	/**
+	 * Let this event loop know that one of its connections was closed.
+	 */
+	void connectionClosed() {
+		connectionCount--;
+	}
+
+	/**
+	 * Returns the number of connections that are currently open on this event loop.
+	 */
+	public int getConnectionCount() {
+		return this.connectionCount;
+	}
+
+	/**
+	 * The number of connections that are currently open on this event loop.
+	 */
+	private volatile int connectionCount = 0;
+	
+	/**
+	 * Returns the total number of connections this event loop has been given.
+	 */
+	public long getAcceptedCount() {
+		return this.acceptedCount;
+	}
+	
+	/**
+	 * The total number of connections this event loop has been given.
+	 */
+	private volatile long acceptedCount = 0;
+
+	/**
+	 * Close this event loop and all of its connections.
+	 */
+	public void close() {
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() != null)
+				((ChannelConnection)key.attachment()).close();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			System.out.println(e.getLocalizedMessage());
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+package org.brunovandekerkhove.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+
+import org.brunovandekerkhove.http.HTTPRequest;
+
+/**
+ * A class of storage backends storing every upload as a file of its own.
+ * 	A body is streamed into a new (partial) file next to the file it is for as it is
+ * 	received, in large chunks, so an upload of any size takes little memory. The new file
+ * 	is then renamed to the file, which is atomic : readers never block, and see either the
+ * 	old file or the new one but never a partial one. Even a failed upload leaves the old
+ * 	file intact. Renames are serialized per path, along with appends.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public class FileStorage implements StorageBackend {
+
+	/**
+	 * Initialize this new file storage with given locks.
+	 *
+	 * @param 	locks
+	 * 			The locks serializing the writes to files, by path.
+	 */
+	public FileStorage(StripedLocks locks) {
+		this.locks = locks;
+	}
+
+	/**
+	 * The locks serializing the writes to files, by path.
+	 */
+	private final StripedLocks locks;
+
+	@Override
+	public Outcome store(Path path, HTTPRequest request) throws IOException {
+		Path partial = partialPathFor(path);
+		try {
+			try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				request.transferBodyTo(channel); // Streamed, chunked or not
+			}
+			return publish(partial, path, locks);
+		} finally {
+			Files.deleteIfExists(partial); // Only left if the upload failed
+		}
+	}
+
+	@Override
+	public void prepareAppend(Path path) {
+		// Every file is a file of its own
+	}
+
+	/**
+	 * Returns the path of a new partial file next to the file at the given path.
+	 * 	Partial files are left out of the index, so they are never served.
+	 *
+	 * @param 	path
+	 * 			The path of the file the partial file is for.
+	 */
+	static Path partialPathFor(Path path) {
+		return path.resolveSibling(ResourceIndex.PARTIAL_PREFIX + Long.toHexString(ThreadLocalRandom.current().nextLong()));
+	}
+
+	/**
+	 * Rename the given partial file to the file at the given path, while holding the lock of that file.
+	 *
+	 * @param 	partial
+	 * 			The path of the partial file, next to the file.
+	 * @param 	path
+	 * 			The path of the file.
+	 * @param 	locks
+	 * 			The locks serializing the writes to files, by path.
+	 * @return	Whether the file was created or replaced.
+	 * @throws 	IOException
+	 * 			The partial file could not be renamed.
+	 */
+	static Outcome publish(Path partial, Path path, StripedLocks locks) throws IOException {
+		Lock lock = locks.get(path);
+		lock.lock();
+		try {
+			boolean created = Files.notExists(path); // No other upload can create it in the meantime
+			Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE);
+			return (created ? Outcome.CREATED : Outcome.REPLACED);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+package org.brunovandekerkhove.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A class of selectors waiting for the next request of idle keep-alive connections, on behalf of a worker pool.
+ * 	A worker that is done with the requests of a connection parks the connection here rather
+ * 	than blocking until its client sends the next request, so idle connections don't hold a
+ * 	worker and a few workers can keep any number of connections open. Once a parked connection
+ * 	has something to be read, its handler is queued with the pool again, where it may be shed
+ * 	like a new connection. The channels of parked connections are non-blocking while they are
+ * 	parked, and blocking again by the time their handler runs.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public class IdleSelector {
+
+	/**
+	 * Initialize this new idle selector for the given pool, and start its thread.
+	 *
+	 * @param 	pool
+	 * 			The pool the handlers of parked connections are queued with once there is something to be read.
+	 * @throws 	IOException
+	 * 			The selector could not be opened.
+	 */
+	public IdleSelector(WorkerPool pool) throws IOException {
+		this.pool = pool;
+		this.selector = Selector.open();
+		Thread thread = new Thread(this::select, "idle-selector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * The pool the handlers of parked connections are queued with.
+	 */
+	private final WorkerPool pool;
+
+	/**
+	 * The selector watching the parked connections.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Park the connection with the given channel until there is something to be read from it.
+	 * 	This method can be called from any thread.
+	 *
+	 * @param 	channel
+	 * 			The (blocking) channel of the connection. Nothing should be done with it until the task runs.
+	 * @param 	task
+	 * 			The task to queue with the pool once there is something to be read.
+	 * @param 	rejection
+	 * 			The task to run instead if the task is shed.
+	 */
+	public void park(SocketChannel channel, Runnable task, Runnable rejection) {
+		parking.add(new Parked(channel, task, rejection));
+		selector.wakeup();
+	}
+
+	/**
+	 * Wake up the thread of this selector, so that it finishes closing the channels of parked connections that were closed.
+	 */
+	public void wakeup() {
+		selector.wakeup();
+	}
+
+	/**
+	 * The connections that were parked but haven't been registered with the selector yet.
+	 */
+	private final ConcurrentLinkedQueue<Parked> parking = new ConcurrentLinkedQueue<Parked>();
+
+	/**
+	 * Watch the parked connections, and queue the handlers of those that have something to be read, forever.
+	 */
+	private void select() {
+		List<Parked> ready = new ArrayList<Parked>();
+		while (true) {
+			try {
+				selector.select();
+				for (Parked parked ; (parked = parking.poll()) != null ; ) {
+					try {
+						parked.channel.configureBlocking(false);
+						parked.channel.register(selector, SelectionKey.OP_READ, parked);
+					} catch (IOException e) {
+						// Closed in the meantime (a missed deadline)
+					}
+				}
+				for (SelectionKey key : selector.selectedKeys()) {
+					key.cancel();
+					ready.add((Parked)key.attachment());
+				}
+				selector.selectedKeys().clear();
+				if (!ready.isEmpty())
+					selector.selectNow(); // Deregisters the cancelled keys, so that their channels can block again
+				for (Parked parked : ready) {
+					try {
+						parked.channel.configureBlocking(true);
+					} catch (IOException e) {
+						continue; // Closed in the meantime
+					}
+					pool.execute(parked.task, parked.rejection);
+				}
+				ready.clear();
+				parkedCount = selector.keys().size();
+			} catch (ClosedSelectorException e) {
+				return;
+			} catch (IOException e) {
+				System.out.println(e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of connections that are parked.
+	 */
+	public long getParkedCount() {
+		return parkedCount;
+	}
+
+	/**
+	 * The number of connections that are parked, as of the last time the selector was woken up.
+	 */
+	private volatile int parkedCount = 0;
+
+	/**
+	 * A class of parked connections.
+	 */
+	private static class Parked {
+
+		private Parked(SocketChannel channel, Runnable task, Runnable rejection) {
+			this.channel = channel;
+			this.task = task;
+			this.rejection = rejection;
+		}
+
+		/**
+		 * The channel of the connection.
+		 */
+		private final SocketChannel channel;
+
+		/**
+		 * The task to queue once there is something to be read.
+		 */
+		private final Runnable task;
+
+		/**
+		 * The task to run instead if the task is shed.
+		 */
+		private final Runnable rejection;
+
+	}
+
+}
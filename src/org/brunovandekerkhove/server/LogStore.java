@@ -0,0 +1,827 @@
+package org.brunovandekerkhove.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+import org.brunovandekerkhove.http.ContentRegion;
+import org.brunovandekerkhove.http.HTTPRequest;
+
+/**
+ * A class of log-structured key-value stores, keeping objects in append-only segment files.
+ * 	Every write appends a record (the key, the content type and the value of an object) to the
+ * 	active segment, and an index in memory maps every key to the location of its latest record,
+ * 	so a write is a single sequential append and a read a single positioned read, no matter how
+ * 	many objects there are. Once the active segment is full a new one is started. Records that
+ * 	have been superseded are reclaimed by a compactor, which copies the live records of a mostly
+ * 	dead segment to the active one and deletes it.
+ * 	The index is rebuilt from the segments when a store is opened. Every record has a sequence
+ * 	number, so the latest record of a key wins wherever it is, and a checksum, so a record that
+ * 	was torn by a crash is cut off.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://en.wikipedia.org/wiki/Log-structured_file_system
+ */
+public class LogStore {
+
+	/**
+	 * Initialize this new store with the segments in the given directory, and start its compactor.
+	 *
+	 * @param 	directory
+	 * 			The directory holding the segments. It is created if it doesn't exist.
+	 * @param 	synchronous
+	 * 			Whether every record is to be forced to the disk before its write completes.
+	 * @throws 	IOException
+	 * 			The segments could not be read.
+	 */
+	public LogStore(Path directory, boolean synchronous) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.synchronous = synchronous;
+		recover();
+		Thread compactor = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(COMPACTION_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+				compact();
+			}
+		}, "log-compactor");
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	/**
+	 * The directory holding the segments of this store.
+	 */
+	private final Path directory;
+
+	/**
+	 * Whether every record is forced to the disk before its write completes.
+	 */
+	private final boolean synchronous;
+
+	/**
+	 * Returns the entry of the object with the given key.
+	 *
+	 * @param 	key
+	 * 			The key of the object.
+	 * @return	The entry of the object, or null if there is no such object.
+	 */
+	public Entry get(String key) {
+		return index.get(key);
+	}
+
+	/**
+	 * Open the value of the object with given entry.
+	 * 	Small values are read with a single positioned read, larger ones are sent straight from their segment.
+	 *
+	 * @param 	entry
+	 * 			The entry of the object.
+	 * @return	A region holding the value, or null if the record has been moved by the compactor
+	 * 			in the meantime, in which case the object should be looked up again.
+	 * @throws 	IOException
+	 * 			The value could not be read.
+	 */
+	public ContentRegion open(Entry entry) throws IOException {
+		try {
+			if (entry.length <= MAX_READ_SIZE) {
+				ByteBuffer value = ByteBuffer.allocate((int)entry.length);
+				while (value.hasRemaining()) {
+					if (entry.segment.channel.read(value, entry.getValueOffset() + value.position()) < 0)
+						throw new EOFException("The record of an object was cut short.");
+				}
+				value.flip();
+				return new ContentRegion(value);
+			}
+			FileChannel channel = FileChannel.open(entry.segment.path, StandardOpenOption.READ); // Stays valid even if the segment is deleted
+			return new ContentRegion(channel, entry.getValueOffset(), entry.length);
+		} catch (ClosedChannelException | NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Store the body of the given request as the value of the object with the given key, replacing the object if it exists.
+	 *
+	 * @param 	key
+	 * 			The key of the object.
+	 * @param 	contentType
+	 * 			The MIME type of the value.
+	 * @param 	request
+	 * 			The request whose body is to be stored. Its body is read by this method.
+	 * @return	Whether the object was created or replaced.
+	 * @throws 	IOException
+	 * 			The body could not be read or stored. The object is left as it was.
+	 */
+	public StorageBackend.Outcome put(String key, String contentType, HTTPRequest request) throws IOException {
+		Part body = receive(request);
+		try {
+			CRC32C checksum = checksum(body); // Outside of the lock
+			writer.lock();
+			try {
+				return publish(key, write(encode(key, contentType, System.currentTimeMillis(), checksum, body), body));
+			} finally {
+				writer.unlock();
+			}
+		} finally {
+			body.close();
+		}
+	}
+
+	/**
+	 * Append the body of the given request to the value of the object with the given key.
+	 * 	The object is rewritten as a whole, so objects can only be appended to as long as they
+	 * 	don't grow beyond a size that is read at once. Every append then costs a bounded amount
+	 * 	of work, however many appends an object gets.
+	 *
+	 * @param 	key
+	 * 			The key of the object, which is created if it doesn't exist.
+	 * @param 	contentType
+	 * 			The MIME type of the value, if the object is created.
+	 * @param 	request
+	 * 			The request whose body is to be appended. Its body is read by this method.
+	 * @return	Whether the object was created or appended to.
+	 * @throws 	ObjectTooLargeException
+	 * 			The object would grow too large. It is left as it was.
+	 * @throws 	IOException
+	 * 			The body could not be read or stored. The object is left as it was.
+	 */
+	public StorageBackend.Outcome append(String key, String contentType, HTTPRequest request) throws IOException {
+		Part body = receive(request);
+		try {
+			writer.lock();
+			try { // The current value can't change until the new one has been written
+				Entry current = index.get(key);
+				if (!fits(current, body.length))
+					throw new ObjectTooLargeException(key, MAX_APPENDED_SIZE);
+				long time = System.currentTimeMillis();
+				if (current == null)
+					return publish(key, write(encode(key, contentType, time, checksum(body), body), body));
+				Part value = new Part(current.segment.channel, current.getValueOffset(), current.length, false);
+				return publish(key, write(encode(key, current.contentType, time, checksum(value, body), value, body), value, body));
+			} finally {
+				writer.unlock();
+			}
+		} finally {
+			body.close();
+		}
+	}
+
+	/**
+	 * Check whether the given amount of bytes can be appended to the object with the given key.
+	 * 	This is meant to refuse an append before its body is received, the append itself checks again.
+	 *
+	 * @param 	key
+	 * 			The key of the object.
+	 * @param 	length
+	 * 			The amount of bytes that are to be appended.
+	 * @return	True if and only if the object wouldn't grow too large.
+	 */
+	public boolean canAppend(String key, long length) {
+		return fits(index.get(key), length);
+	}
+
+	/**
+	 * Check whether the given amount of bytes can be appended to the object with the given entry (null if it doesn't exist).
+	 */
+	private static boolean fits(Entry current, long length) {
+		return (current == null ? 0 : current.length) + length <= MAX_APPENDED_SIZE;
+	}
+
+	/**
+	 * Receive the body of the given request, in memory if it is small and in a temporary file otherwise.
+	 */
+	private static Part receive(HTTPRequest request) throws IOException {
+		String lengthField = request.header.getHeaderField("Content-Length");
+		try {
+			if (!request.header.isChunked() && lengthField != null && Long.parseLong(lengthField.trim()) <= MAX_READ_SIZE)
+				return new Part(ByteBuffer.wrap(request.getContents()));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		FileChannel spool = ResponseGenerator.createSpool();
+		try {
+			request.transferBodyTo(spool);
+			return new Part(spool, 0, spool.size(), true);
+		} catch (IOException e) {
+			ResponseGenerator.closeQuietly(spool);
+			throw e;
+		}
+	}
+
+	/**
+	 * Start the checksum of a record with the value made up of the given parts.
+	 * 	The value comes first, so it can be checksummed before the record gets its sequence number.
+	 */
+	private static CRC32C checksum(Part... parts) throws IOException {
+		CRC32C checksum = new CRC32C();
+		for (Part part : parts)
+			part.update(checksum);
+		return checksum;
+	}
+
+	/**
+	 * Encode the header of a record, together with its key and content type, giving it the next sequence number.
+	 * 	This is called while the writer lock is being held, so records are numbered in the order they are written.
+	 *
+	 * @param 	checksum
+	 * 			The checksum of the value of the record, which is completed with the rest of the record.
+	 * @param 	parts
+	 * 			The parts making up the value of the record, in order.
+	 * @return	A buffer holding the header of the record, followed by its key and content type.
+	 */
+	private ByteBuffer encode(String key, String contentType, long lastModified, CRC32C checksum, Part... parts) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8), typeBytes = contentType.getBytes(StandardCharsets.UTF_8);
+		long length = 0;
+		for (Part part : parts)
+			length += part.length;
+		ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + typeBytes.length);
+		head.putInt(0).putInt(keyBytes.length).putInt(typeBytes.length).putLong(length).putLong(sequence++).putLong(lastModified);
+		head.put(keyBytes).put(typeBytes).flip();
+		checksum.update(head.duplicate().position(Integer.BYTES));
+		head.putInt(0, (int)checksum.getValue());
+		return head;
+	}
+
+	/**
+	 * Append a record with given head and value to the active segment.
+	 * 	This is called while the writer lock is being held.
+	 *
+	 * @param 	head
+	 * 			The header of the record, followed by its key and content type.
+	 * @param 	parts
+	 * 			The parts making up the value of the record, in order.
+	 * @return	The entry for the new record.
+	 */
+	private Entry write(ByteBuffer head, Part... parts) throws IOException {
+		Segment segment = activeSegment();
+		long offset = segment.channel.position();
+		try {
+			while (head.hasRemaining())
+				segment.channel.write(head);
+			for (Part part : parts)
+				part.writeTo(segment.channel);
+			if (synchronous)
+				segment.channel.force(false);
+		} catch (IOException e) {
+			segment.channel.truncate(offset); // The next record mustn't follow a torn one
+			throw e;
+		}
+		return new Entry(segment, offset, head.getInt(4) + head.getInt(8), head.getLong(12), head.getLong(20), head.getLong(28),
+				new String(head.array(), HEADER_SIZE + head.getInt(4), head.getInt(8), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Make the given entry the entry of the object with given key.
+	 * 	This is called while the writer lock is being held.
+	 *
+	 * @return	Whether the object was created or replaced.
+	 */
+	private StorageBackend.Outcome publish(String key, Entry entry) {
+		Entry previous = index.put(key, entry);
+		entry.segment.live.addAndGet(entry.getRecordSize());
+		if (previous == null)
+			return StorageBackend.Outcome.CREATED;
+		previous.segment.live.addAndGet(-previous.getRecordSize());
+		return StorageBackend.Outcome.REPLACED;
+	}
+
+	/**
+	 * Returns the active segment, starting a new one if it is full.
+	 * 	This is called while the writer lock is being held.
+	 */
+	private Segment activeSegment() throws IOException {
+		if (active.channel.position() >= SEGMENT_SIZE) {
+			Segment next = new Segment(active.id + 1, pathFor(active.id + 1));
+			segments.put(next.id, next);
+			active = next;
+		}
+		return active;
+	}
+
+	/**
+	 * Returns the path of the segment with given identifier.
+	 */
+	private Path pathFor(long id) {
+		return directory.resolve(String.format("%016d", id) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Open the segments in the directory of this store and rebuild its index.
+	 */
+	private void recover() throws IOException {
+		List<Long> ids = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// Not a segment
+				}
+			}
+		}
+		Collections.sort(ids);
+		for (long id : ids) {
+			Segment segment = new Segment(id, pathFor(id));
+			segments.put(id, segment);
+			long end = load(segment);
+			if (end < segment.channel.size()) {
+				System.out.println("Cut off a torn record at " + end + " in " + segment.path + ".");
+				segment.channel.truncate(end);
+			}
+			active = segment;
+		}
+		if (active == null) {
+			active = new Segment(1, pathFor(1));
+			segments.put(active.id, active);
+		}
+		active.channel.position(active.channel.size());
+	}
+
+	/**
+	 * Add the records in the given segment to the index.
+	 *
+	 * @return	The offset of the end of the last intact record in the segment.
+	 */
+	private long load(Segment segment) throws IOException {
+		long size = segment.channel.size(), offset = 0;
+		DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(segment.channel.position(0)), BUFFER_SIZE));
+		byte[] chunk = new byte[BUFFER_SIZE];
+		CRC32C checksum = new CRC32C();
+		try {
+			while (size - offset >= HEADER_SIZE) {
+				int crc = input.readInt(), keyLength = input.readInt(), typeLength = input.readInt();
+				long length = input.readLong(), sequence = input.readLong(), lastModified = input.readLong();
+				if (keyLength < 0 || typeLength < 0 || length < 0 || (long)keyLength + typeLength > size - offset - HEADER_SIZE - length)
+					break;
+				byte[] names = new byte[keyLength + typeLength];
+				input.readFully(names);
+				checksum.reset();
+				for (long remaining=length ; remaining>0 ; ) {
+					int count = (int)Math.min(chunk.length, remaining);
+					input.readFully(chunk, 0, count);
+					checksum.update(chunk, 0, count);
+					remaining -= count;
+				}
+				checksum.update(ByteBuffer.allocate(HEADER_SIZE - Integer.BYTES).putInt(keyLength).putInt(typeLength)
+						.putLong(length).putLong(sequence).putLong(lastModified).flip());
+				checksum.update(names);
+				if ((int)checksum.getValue() != crc)
+					break;
+				Entry entry = new Entry(segment, offset, names.length, length, sequence, lastModified,
+						new String(names, keyLength, typeLength, StandardCharsets.UTF_8));
+				String key = new String(names, 0, keyLength, StandardCharsets.UTF_8);
+				Entry current = index.get(key);
+				if (current == null || current.sequence < sequence) { // A record copied by the compactor may have been left behind, with the same sequence number
+					index.put(key, entry);
+					segment.live.addAndGet(entry.getRecordSize());
+					if (current != null)
+						current.segment.live.addAndGet(-current.getRecordSize());
+				}
+				this.sequence = Math.max(this.sequence, sequence + 1);
+				offset += entry.getRecordSize();
+			}
+		} catch (EOFException e) {
+			// A torn record
+		}
+		return offset;
+	}
+
+	/**
+	 * Compact the segments whose records are mostly dead.
+	 */
+	private void compact() {
+		for (Segment segment : segments.values()) {
+			try {
+				if (segment != active && segment.live.get() <= segment.channel.size() * COMPACTION_THRESHOLD)
+					compact(segment);
+			} catch (IOException e) {
+				System.out.println(e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Copy the live records of the given (full) segment to the active segment, and delete it.
+	 */
+	private void compact(Segment segment) throws IOException {
+		long size = segment.channel.size(), offset = 0, moved = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		Set<Segment> targets = new HashSet<Segment>();
+		while (offset < size) {
+			readFully(segment.channel, header.clear(), offset);
+			int keyLength = header.getInt(4), typeLength = header.getInt(8);
+			long recordSize = HEADER_SIZE + keyLength + typeLength + header.getLong(12);
+			ByteBuffer keyBytes = ByteBuffer.allocate(keyLength);
+			readFully(segment.channel, keyBytes, offset + HEADER_SIZE);
+			String key = new String(keyBytes.array(), StandardCharsets.UTF_8);
+			Entry entry = index.get(key);
+			if (entry != null && entry.segment == segment && entry.offset == offset) { // Live
+				writer.lock();
+				try {
+					if (index.get(key) == entry) { // Not replaced in the meantime
+						Segment target = activeSegment();
+						long position = target.channel.position();
+						new Part(segment.channel, offset, recordSize, false).writeTo(target.channel); // The record is copied as it is
+						index.put(key, new Entry(target, position, entry.namesLength, entry.length, entry.sequence, entry.lastModified, entry.contentType));
+						target.live.addAndGet(recordSize);
+						targets.add(target);
+						moved += recordSize;
+					}
+				} finally {
+					writer.unlock();
+				}
+			}
+			offset += recordSize;
+		}
+		for (Segment target : targets)
+			target.channel.force(false); // The copies have to survive before the originals go
+		segments.remove(segment.id);
+		segment.channel.close();
+		Files.delete(segment.path);
+		compactions.increment();
+		reclaimed.add(size - moved);
+	}
+
+	/**
+	 * Fill the given buffer with the bytes at the given position in the given channel.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("A record was cut short.");
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * The index of this store, mapping every key to the entry of its latest record.
+	 */
+	private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * The segments of this store, by their identifier.
+	 */
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+
+	/**
+	 * The segment records are appended to.
+	 */
+	private volatile Segment active;
+
+	/**
+	 * The lock serializing the appends to the active segment.
+	 */
+	private final ReentrantLock writer = new ReentrantLock();
+
+	/**
+	 * The sequence number of the next record, which is only used while the writer lock is being held.
+	 */
+	private long sequence = 1;
+
+	/**
+	 * Returns the number of objects in this store.
+	 */
+	public long getKeyCount() {
+		return index.size();
+	}
+
+	/**
+	 * Returns the number of segments of this store.
+	 */
+	public long getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Returns the amount of bytes taken up by the latest records of the objects in this store.
+	 */
+	public long getLiveSize() {
+		long size = 0;
+		for (Segment segment : segments.values())
+			size += segment.live.get();
+		return size;
+	}
+
+	/**
+	 * Returns the number of segments that have been compacted.
+	 */
+	public long getCompactionCount() {
+		return compactions.sum();
+	}
+
+	/**
+	 * Returns the amount of bytes that have been reclaimed by compactions.
+	 */
+	public long getReclaimedSize() {
+		return reclaimed.sum();
+	}
+
+	/**
+	 * The number of segments that have been compacted.
+	 */
+	private final LongAdder compactions = new LongAdder();
+
+	/**
+	 * The amount of bytes that have been reclaimed by compactions.
+	 */
+	private final LongAdder reclaimed = new LongAdder();
+
+	/**
+	 * A class of entries, locating the latest record of an object.
+	 */
+	public static class Entry {
+
+		private Entry(Segment segment, long offset, int namesLength, long length, long sequence, long lastModified, String contentType) {
+			this.segment = segment;
+			this.offset = offset;
+			this.namesLength = namesLength;
+			this.length = length;
+			this.sequence = sequence;
+			this.lastModified = lastModified;
+			this.contentType = contentType;
+		}
+
+		/**
+		 * The segment holding the record.
+		 */
+		private final Segment segment;
+
+		/**
+		 * The offset of the record in its segment.
+		 */
+		private final long offset;
+
+		/**
+		 * The length of the key and the content type of the record, in bytes.
+		 */
+		private final int namesLength;
+
+		/**
+		 * The length of the value of the object.
+		 */
+		private final long length;
+
+		/**
+		 * The sequence number of the record.
+		 */
+		private final long sequence;
+
+		/**
+		 * The time at which the object was written, in milliseconds since the epoch.
+		 */
+		private final long lastModified;
+
+		/**
+		 * The MIME type of the value of the object.
+		 */
+		private final String contentType;
+
+		/**
+		 * Returns the length of the value of the object.
+		 */
+		public long getSize() {
+			return this.length;
+		}
+
+		/**
+		 * Returns the time at which the object was written, in milliseconds since the epoch.
+		 */
+		public long getLastModified() {
+			return this.lastModified;
+		}
+
+		/**
+		 * Returns the MIME type of the value of the object.
+		 */
+		public String getContentType() {
+			return this.contentType;
+		}
+
+		/**
+		 * Returns a tag that is different for every write, derived from the record's sequence number.
+		 */
+		public String getTag() {
+			return Long.toHexString(sequence);
+		}
+
+		/**
+		 * Returns the offset of the value of the object in its segment.
+		 */
+		private long getValueOffset() {
+			return offset + HEADER_SIZE + namesLength;
+		}
+
+		/**
+		 * Returns the size of the record, in bytes.
+		 */
+		private long getRecordSize() {
+			return HEADER_SIZE + namesLength + length;
+		}
+
+	}
+
+	/**
+	 * A class of segments, the files holding the records.
+	 */
+	private static class Segment {
+
+		private Segment(long id, Path path) throws IOException {
+			this.id = id;
+			this.path = path;
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+
+		/**
+		 * The identifier of this segment, which is larger than that of any older segment.
+		 */
+		private final long id;
+
+		/**
+		 * The path of the file of this segment.
+		 */
+		private final Path path;
+
+		/**
+		 * The channel the file of this segment is read through, and written to if it is active.
+		 */
+		private final FileChannel channel;
+
+		/**
+		 * The amount of bytes taken up by the live records of this segment.
+		 */
+		private final AtomicLong live = new AtomicLong();
+
+	}
+
+	/**
+	 * A class of parts of a value, held in a buffer or in a region of a file.
+	 */
+	private static class Part {
+
+		private Part(ByteBuffer buffer) {
+			this.buffer = buffer;
+			this.channel = null;
+			this.position = 0;
+			this.length = buffer.remaining();
+			this.temporary = false;
+		}
+
+		private Part(FileChannel channel, long position, long length, boolean temporary) {
+			this.buffer = null;
+			this.channel = channel;
+			this.position = position;
+			this.length = length;
+			this.temporary = temporary;
+		}
+
+		/**
+		 * The bytes of this part, or null if they are in a file.
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * The file holding the bytes of this part, or null if they are in a buffer.
+		 */
+		private final FileChannel channel;
+
+		/**
+		 * The position of the bytes of this part in its file.
+		 */
+		private final long position;
+
+		/**
+		 * The length of this part, in bytes.
+		 */
+		private final long length;
+
+		/**
+		 * Whether the file of this part is a temporary file, which is closed along with this part.
+		 */
+		private final boolean temporary;
+
+		/**
+		 * Update the given checksum with the bytes of this part.
+		 */
+		private void update(CRC32C checksum) throws IOException {
+			if (buffer != null) {
+				checksum.update(buffer.duplicate());
+				return;
+			}
+			ByteBuffer chunk = ByteBuffer.allocate(BUFFER_SIZE);
+			for (long done=0 ; done<length ; ) {
+				chunk.clear().limit((int)Math.min(chunk.capacity(), length - done));
+				readFully(channel, chunk, position + done);
+				done += chunk.remaining();
+				checksum.update(chunk);
+			}
+		}
+
+		/**
+		 * Write the bytes of this part to the given channel, at its position.
+		 */
+		private void writeTo(FileChannel target) throws IOException {
+			if (buffer != null) {
+				ByteBuffer bytes = buffer.duplicate();
+				while (bytes.hasRemaining())
+					target.write(bytes);
+				return;
+			}
+			if (channel == target) { // Within the active segment, which isn't copied into itself by the kernel
+				ByteBuffer chunk = ByteBuffer.allocate(BUFFER_SIZE);
+				for (long done=0 ; done<length ; ) {
+					chunk.clear().limit((int)Math.min(chunk.capacity(), length - done));
+					readFully(channel, chunk, position + done);
+					done += chunk.remaining();
+					while (chunk.hasRemaining())
+						target.write(chunk);
+				}
+				return;
+			}
+			for (long done=0 ; done<length ; ) {
+				long count = channel.transferTo(position + done, length - done, target);
+				if (count <= 0 && position + done >= channel.size())
+					throw new EOFException("A value was cut short.");
+				done += count;
+			}
+		}
+
+		/**
+		 * Close the file of this part, if it is a temporary file of its own.
+		 */
+		private void close() {
+			if (temporary)
+				ResponseGenerator.closeQuietly(channel);
+		}
+
+	}
+
+	/**
+	 * The suffix of the names of segment files.
+	 */
+	private static final String SEGMENT_SUFFIX = ".segment";
+
+	/**
+	 * The size of the header of a record : its checksum, the lengths of its key, content type
+	 * 	and value, its sequence number and its modification time.
+	 */
+	private static final int HEADER_SIZE = 3 * Integer.BYTES + 3 * Long.BYTES;
+
+	/**
+	 * The size after which a segment is full.
+	 */
+	private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The largest values that are read into memory, rather than sent straight from their segment.
+	 */
+	private static final long MAX_READ_SIZE = 64 * 1024;
+
+	/**
+	 * The largest size objects can be appended to, as every append rewrites the object.
+	 */
+	private static final long MAX_APPENDED_SIZE = MAX_READ_SIZE;
+
+	/**
+	 * The size of the buffers segments are scanned with.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The fraction of live records below which a segment is compacted.
+	 */
+	private static final double COMPACTION_THRESHOLD = 0.5;
+
+	/**
+	 * The time between two compaction passes, in milliseconds.
+	 */
+	private static final long COMPACTION_INTERVAL = 10 * 1000;
+
+}
@@ -0,0 +1,75 @@
+package org.brunovandekerkhove.server;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A class of caches for memory-mapped files.
+ * 	Mapping a file is relatively expensive, so hot files are mapped once and their mapping
+ * 	is shared by all requests until the file changes. The pages of a mapping live in the
+ * 	page cache, not on the heap.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+class MappedFileCache {
+
+	/**
+	 * Get a read-only mapping of the file at the given path.
+	 *
+	 * @param 	path
+	 * 			The path of the file.
+	 * @param 	channel
+	 * 			An open channel for the file, used if the file has to be mapped.
+	 * @param 	lastModified
+	 * 			The time at which the file was last modified.
+	 * @return	A buffer mapping the whole file. The buffer is shared, so it should be
+	 * 			duplicated before its position is changed.
+	 * @throws 	IOException
+	 * 			The file could not be mapped.
+	 */
+	MappedByteBuffer get(Path path, FileChannel channel, long lastModified) throws IOException {
+		long size = channel.size();
+		MappedFile file = files.get(path);
+		if (file == null || file.lastModified != lastModified || file.buffer.capacity() != size) {
+			file = new MappedFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), lastModified);
+			files.put(path, file);
+		}
+		return file.buffer;
+	}
+
+	/**
+	 * Forget the mapping of the file at the given path, if any.
+	 *
+	 * @param 	path
+	 * 			The path of the file.
+	 */
+	void invalidate(Path path) {
+		files.remove(path);
+	}
+
+	/**
+	 * The mapped files, by path.
+	 */
+	private final ConcurrentHashMap<Path, MappedFile> files = new ConcurrentHashMap<Path, MappedFile>();
+
+	/**
+	 * A class of mapped files, remembering when the file was mapped.
+	 */
+	private static class MappedFile {
+
+		MappedFile(MappedByteBuffer buffer, long lastModified) {
+			this.buffer = buffer;
+			this.lastModified = lastModified;
+		}
+
+		final MappedByteBuffer buffer;
+
+		final long lastModified;
+
+	}
+
+}
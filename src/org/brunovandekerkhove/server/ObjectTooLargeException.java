@@ -0,0 +1,29 @@
+package org.brunovandekerkhove.server;
+
+import java.io.IOException;
+
+/**
+ * A class of exceptions denoting writes that would make an object larger than its store allows.
+ * 	The body was received fine, so such writes are answered with a 413 rather than a 400 or a 500.
+ * 
+ * @author	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://tools.ietf.org/html/rfc7231#section-6.5.11
+ */
+public class ObjectTooLargeException extends IOException {
+
+	/**
+	 * Initialize this new exception for the object with given key.
+	 * 
+	 * @param 	key
+	 * 			The key of the object.
+	 * @param 	limit
+	 * 			The largest size the object may have.
+	 */
+	public ObjectTooLargeException(String key, long limit) {
+		super("The object '" + key + "' can't grow beyond " + limit + " bytes.");
+	}
+
+	private static final long serialVersionUID = 1L;
+
+}
@@ -0,0 +1,484 @@
+package org.brunovandekerkhove.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A class of in-memory indices of a directory tree, holding the size, modification time,
+ * 	MIME type, version tag and content digest of every file in it. The index is built when
+ * 	it's created and kept up to date by watching the tree, so lookups (including those for
+ * 	files that don't exist) never touch the file system. The version tag comes with the
+ * 	file's metadata, but the digest requires the file to be read : it is computed by a
+ * 	background thread the first time it is asked for, once for every version of the file.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://docs.oracle.com/javase/tutorial/essential/io/notification.html
+ */
+public class ResourceIndex {
+
+	/**
+	 * Initialize this new index for the directory tree at the given root.
+	 *
+	 * @param 	root
+	 * 			The root of the tree that is to be indexed.
+	 * @throws 	IOException
+	 * 			The tree could not be read.
+	 */
+	public ResourceIndex(Path root) throws IOException {
+		this.root = root.toAbsolutePath().normalize();
+		this.watchService = FileSystems.getDefault().newWatchService();
+		scan(this.root);
+		Thread watcher = new Thread(this::watch, "resource-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * The root of the tree indexed by this index.
+	 */
+	private final Path root;
+
+	/**
+	 * Look up the file at the given path.
+	 *
+	 * @param 	subPath
+	 * 			The path of the file, relative to the root and starting with a slash (eg. '/index.html').
+	 * @return	The entry for the file, or null if there is no such file.
+	 */
+	public Entry get(String subPath) {
+		return entries.get(subPath);
+	}
+
+	/**
+	 * Bring the entry for the file at the given path up to date right away.
+	 * 	This is to be called after the server itself replaced the file, so the change
+	 * 	doesn't have to wait for the watcher.
+	 *
+	 * @param 	subPath
+	 * 			The path of the file, relative to the root and starting with a slash.
+	 */
+	public void refresh(String subPath) {
+		appended.remove(subPath);
+		refresh(root.resolve(subPath.substring(1)).normalize());
+	}
+
+	/**
+	 * Bring the entry for the file at the given path up to date right away, after the server appended to it.
+	 * 	Files that are appended to aren't digested anymore until they are replaced, since every
+	 * 	append would have the whole file read again.
+	 *
+	 * @param 	subPath
+	 * 			The path of the file, relative to the root and starting with a slash.
+	 */
+	public void appended(String subPath) {
+		appended.add(subPath);
+		refresh(root.resolve(subPath.substring(1)).normalize());
+	}
+
+	/**
+	 * The paths of the files the server appended to since it last replaced them, relative to the root.
+	 */
+	private final Set<String> appended = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Bring the entry for the file at the given path up to date.
+	 *
+	 * @param 	path
+	 * 			The absolute path of the file.
+	 */
+	private void refresh(Path path) {
+		String key = keyFor(path);
+		if (key == null)
+			return;
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			if (attributes.isRegularFile())
+				update(key, path, attributes);
+			else
+				entries.remove(key);
+		} catch (NoSuchFileException e) {
+			entries.remove(key);
+		} catch (IOException e) {
+			System.out.println(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Returns the number of files in this index.
+	 */
+	public int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * The entries of this index, by path relative to the root.
+	 */
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * The prefix of the names of files that are being written by the server, which are left out of the index.
+	 */
+	static final String PARTIAL_PREFIX = ".partial-";
+
+	/**
+	 * The name of the directory (in the root) holding the objects of content-addressed storage, which is left out of the index.
+	 */
+	static final String OBJECTS_DIRECTORY = ".objects";
+
+	/**
+	 * The name of the directory (in the root) holding the segments of the log store, which is left out of the index.
+	 */
+	static final String SEGMENTS_DIRECTORY = ".segments";
+
+	/**
+	 * Returns whether the file at the given path is one the server keeps for itself, rather than one to be served.
+	 *
+	 * @param 	relativePath
+	 * 			The path of the file, relative to the root.
+	 */
+	static boolean isInternal(Path relativePath) {
+		String first = relativePath.getName(0).toString();
+		return first.equals(OBJECTS_DIRECTORY) || first.equals(SEGMENTS_DIRECTORY)
+				|| relativePath.getFileName().toString().startsWith(PARTIAL_PREFIX);
+	}
+
+	/**
+	 * Returns the key for the file at the given absolute path, or null if it lies outside the root or is internal.
+	 */
+	private String keyFor(Path path) {
+		if (!path.startsWith(root) || path.equals(root))
+			return null;
+		Path relativePath = root.relativize(path);
+		if (isInternal(relativePath))
+			return null;
+		return "/" + relativePath.toString().replace('\\', '/');
+	}
+
+	/**
+	 * Put an entry for the file at the given path in this index, unless its current entry is for the same version.
+	 * 	That entry is kept along with its digest, so a file is only digested again once it has changed.
+	 *
+	 * @param 	key
+	 * 			The key for the file.
+	 * @param 	path
+	 * 			The absolute path of the file.
+	 * @param 	attributes
+	 * 			The attributes of the file.
+	 */
+	private void update(String key, Path path, BasicFileAttributes attributes) {
+		String tag = tag(attributes);
+		boolean digestible = !appended.contains(key);
+		Entry current = entries.get(key);
+		if (current != null && current.tag.equals(tag) && current.digestible == digestible)
+			return;
+		long size = attributes.size(), lastModified = attributes.lastModifiedTime().toMillis();
+		entries.put(key, new Entry(size, lastModified, probeContentType(path), tag, digestible));
+	}
+
+	/**
+	 * Compute the tag identifying the current version of the file with the given attributes.
+	 * 	It is derived from the file's identity (its inode), size and modification time (to
+	 * 	the nanosecond where the file system keeps it) rather than from its contents, so it
+	 * 	costs nothing to compute, however large the file. A file that is touched, or replaced
+	 * 	by an identical copy, gets a new tag though, so it only makes for a weak entity tag.
+	 *
+	 * @param 	attributes
+	 * 			The attributes of the file.
+	 * @return	The tag, which only consists of characters that are allowed in an entity tag.
+	 */
+	private static String tag(BasicFileAttributes attributes) {
+		Object fileKey = attributes.fileKey(); // Null where the file system has no such thing
+		return Long.toString(attributes.size(), 36)
+				+ "-" + Long.toString(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), 36)
+				+ (fileKey == null ? "" : "-" + Integer.toUnsignedString(fileKey.hashCode(), 36));
+	}
+
+	/**
+	 * Get the digest of the contents of the file at the given path, as described by the given entry.
+	 * 	If it hasn't been computed yet, a background thread is set to compute it (off the
+	 * 	request path) and the digest is available to later callers.
+	 *
+	 * @param 	subPath
+	 * 			The path of the file, relative to the root and starting with a slash.
+	 * @param 	entry
+	 * 			The entry of the file.
+	 * @return	The digest, or null if it isn't known (yet), or if the file is being appended to.
+	 */
+	public String getDigest(String subPath, Entry entry) {
+		String digest = entry.digest;
+		if (digest == null && entry.digestible && entry.scheduled.compareAndSet(false, true))
+			digesters.execute(() -> digest(root.resolve(subPath.substring(1)).normalize(), entry));
+		return digest;
+	}
+
+	/**
+	 * Compute the digest of the file at the given path for the given entry.
+	 * 	The digest is dropped if the file changed while it was being read.
+	 *
+	 * @param 	path
+	 * 			The absolute path of the file.
+	 * @param 	entry
+	 * 			The entry of the file the digest is for.
+	 */
+	private static void digest(Path path, Entry entry) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+				while (channel.read(buffer) >= 0) {
+					buffer.flip();
+					digest.update(buffer);
+					buffer.clear();
+				}
+			}
+			if (tag(Files.readAttributes(path, BasicFileAttributes.class)).equals(entry.tag)) // Still the same version
+				entry.digest = Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest.digest(), DIGEST_LENGTH));
+		} catch (NoSuchFileException e) {
+			// Deleted or replaced in the meantime, its new entry is digested instead
+		} catch (IOException | NoSuchAlgorithmException e) {
+			System.out.println(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * The threads computing the digests of files.
+	 */
+	private final ExecutorService digesters = Executors.newFixedThreadPool(DIGESTER_THREADS, runnable -> {
+		Thread thread = new Thread(runnable, "resource-digester");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * The number of threads computing the digests of files.
+	 */
+	private static final int DIGESTER_THREADS = 2;
+
+	/**
+	 * The size of the buffer files are read into to compute their digest.
+	 */
+	private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The amount of bytes of the hash of a file kept in its digest (128 bits).
+	 */
+	private static final int DIGEST_LENGTH = 16;
+
+	/**
+	 * Get the MIME type of the file at the given path.
+	 *
+	 * @param 	path
+	 * 			The path of the file.
+	 * @return	The MIME type of the file, or an empty string if it is unknown.
+	 */
+	static String probeContentType(Path path) {
+		try {
+			String type = Files.probeContentType(path);
+			return (type == null ? "" : type);
+		} catch (IOException e) {
+			return "";
+		}
+	}
+
+	/**
+	 * Add all files in the tree at the given directory to this index, and start watching its directories.
+	 *
+	 * @param 	directory
+	 * 			The directory to scan.
+	 * @throws 	IOException
+	 * 			The tree could not be read.
+	 */
+	private void scan(Path directory) throws IOException {
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+				if (!dir.equals(root) && keyFor(dir) == null) // Nothing to serve in there
+					return FileVisitResult.SKIP_SUBTREE;
+				dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				String key = keyFor(file);
+				if (key != null && attributes.isRegularFile())
+					update(key, file, attributes);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Process the changes in the indexed tree until this index is closed.
+	 */
+	private void watch() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			Path directory = (Path)key.watchable();
+			for (WatchEvent<?> event : key.pollEvents()) {
+				try {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) { // Events were lost, start over
+						scan(root);
+						entries.keySet().removeIf(subPath -> !Files.isRegularFile(root.resolve(subPath.substring(1))));
+						continue;
+					}
+					Path path = directory.resolve((Path)event.context());
+					if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+						remove(path);
+					else if (Files.isDirectory(path))
+						scan(path);
+					else
+						refresh(path);
+				} catch (IOException e) {
+					System.out.println(e.getLocalizedMessage());
+				}
+			}
+			key.reset();
+		}
+	}
+
+	/**
+	 * Remove the file or directory at the given path from this index.
+	 *
+	 * @param 	path
+	 * 			The absolute path of the removed file or directory.
+	 */
+	private void remove(Path path) {
+		String key = keyFor(path);
+		if (key == null)
+			return;
+		entries.remove(key);
+		String prefix = key + "/";
+		entries.keySet().removeIf(subPath -> subPath.startsWith(prefix));
+	}
+
+	/**
+	 * Stop watching the indexed tree.
+	 */
+	public void close() {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			System.out.println(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * The service watching the directories of the indexed tree.
+	 */
+	private final WatchService watchService;
+
+	/**
+	 * A class of index entries, holding what is known about a single file.
+	 */
+	public static class Entry {
+
+		/**
+		 * Initialize this new entry with given size, modification time, MIME type and tag, whose digest may be computed or not.
+		 */
+		Entry(long size, long lastModified, String contentType, String tag, boolean digestible) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.contentType = contentType;
+			this.tag = tag;
+			this.digestible = digestible;
+		}
+
+		/**
+		 * Returns the size of the file.
+		 */
+		public long getSize() {
+			return this.size;
+		}
+
+		/**
+		 * The size of the file.
+		 */
+		private final long size;
+
+		/**
+		 * Returns the time at which the file was last modified, in milliseconds since the epoch.
+		 */
+		public long getLastModified() {
+			return this.lastModified;
+		}
+
+		/**
+		 * The time at which the file was last modified.
+		 */
+		private final long lastModified;
+
+		/**
+		 * Returns the MIME type of the file, or an empty string if it is unknown.
+		 */
+		public String getContentType() {
+			return this.contentType;
+		}
+
+		/**
+		 * The MIME type of the file.
+		 */
+		private final String contentType;
+
+		/**
+		 * Returns the tag identifying the version of the file.
+		 * 	It changes whenever the file is replaced, written to or touched.
+		 */
+		public String getTag() {
+			return this.tag;
+		}
+
+		/**
+		 * The tag identifying the version of the file.
+		 */
+		private final String tag;
+
+		/**
+		 * Whether the digest of the file may be computed.
+		 */
+		private final boolean digestible;
+
+		/**
+		 * Whether the digest of the file has been set to be computed.
+		 */
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		/**
+		 * The first bytes of the SHA-256 hash of the contents of the file (base64url-encoded), or null if it isn't known.
+		 */
+		private volatile String digest;
+
+	}
+
+}
@@ -0,0 +1,306 @@
+package org.brunovandekerkhove.server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.brunovandekerkhove.http.ContentEncoding;
+import org.brunovandekerkhove.http.HTTPHeader;
+import org.brunovandekerkhove.http.HTTPVersion;
+
+/**
+ * A class of caches holding complete, serialized responses (status line, headers and body)
+ * 	for hot files, so that a cache hit is a single buffer write.
+ * 	The cache is bounded by a byte budget and evicts the least recently used responses first.
+ * 	A cached response is only served as long as the file it came from hasn't been modified.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public class ResponseCache {
+
+	/**
+	 * Initialize this new response cache with given byte budget.
+	 *
+	 * @param 	capacity
+	 * 			The maximum amount of bytes this cache may hold.
+	 * @param 	offHeap
+	 * 			Whether the responses are to be kept in direct buffers, outside of the heap.
+	 */
+	public ResponseCache(long capacity, boolean offHeap) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Invalid cache capacity.");
+		this.capacity = capacity;
+		this.offHeap = offHeap;
+		this.maximumEntrySize = Math.min(capacity / 8, MAX_ENTRY_SIZE);
+	}
+
+	/**
+	 * The maximum amount of bytes this cache may hold.
+	 */
+	private final long capacity;
+
+	/**
+	 * Whether the responses are kept in direct buffers, outside of the heap.
+	 */
+	private final boolean offHeap;
+
+	/**
+	 * Returns whether a serialized response of the given size may be cached.
+	 * 	Large responses would evict too many others, and are sent with sendfile anyway.
+	 *
+	 * @param 	size
+	 * 			The size of a serialized response.
+	 */
+	public boolean accepts(long size) {
+		return size <= maximumEntrySize;
+	}
+
+	/**
+	 * The size of the largest response this cache will hold.
+	 */
+	private final long maximumEntrySize;
+
+	/**
+	 * Get the cached response for the file at the given path.
+	 *
+	 * @param 	path
+	 * 			The path of the file.
+	 * @param 	version
+	 * 			The HTTP version of the response.
+	 * @param 	encoding
+	 * 			The content encoding of the response.
+	 * @param 	lastModified
+	 * 			The time at which the file was last modified.
+	 * @return	The cached response, or null if there is none for the current version of the file.
+	 */
+	public Entry get(String path, HTTPVersion version, ContentEncoding encoding, long lastModified) {
+		String key = keyFor(path, version, encoding);
+		lock.lock();
+		try {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.lastModified != lastModified) { // Stale
+				remove(key);
+				entry = null;
+			}
+			if (entry == null)
+				misses.increment();
+			else
+				hits.increment();
+			return entry;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Cache the given serialized response for the file at the given path.
+	 *
+	 * @param 	path
+	 * 			The path of the file.
+	 * @param 	version
+	 * 			The HTTP version of the response.
+	 * @param 	encoding
+	 * 			The content encoding of the response.
+	 * @param 	lastModified
+	 * 			The time at which the file was last modified.
+	 * @param 	header
+	 * 			The header of the response.
+	 * @param 	response
+	 * 			The serialized response, from its position to its limit.
+	 * @return	The entry for the given response.
+	 */
+	public Entry put(String path, HTTPVersion version, ContentEncoding encoding, long lastModified, HTTPHeader header, ByteBuffer response) {
+		ByteBuffer buffer = (offHeap ? ByteBuffer.allocateDirect(response.remaining()) : ByteBuffer.allocate(response.remaining()));
+		buffer.put(response.duplicate()).flip();
+		Entry entry = new Entry(header, buffer.asReadOnlyBuffer(), lastModified);
+		if (!accepts(buffer.capacity()))
+			return entry;
+		String key = keyFor(path, version, encoding);
+		lock.lock();
+		try {
+			remove(key);
+			entries.put(key, entry);
+			size += buffer.capacity();
+			Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+			while (size > capacity && iterator.hasNext()) { // Least recently used first
+				size -= iterator.next().getValue().getSize();
+				iterator.remove();
+				evictions.increment();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return entry;
+	}
+
+	/**
+	 * Remove all cached responses (in every version and encoding) for the file at the given path.
+	 * 	This is to be called whenever the file is written to.
+	 *
+	 * @param 	path
+	 * 			The path of the file.
+	 */
+	public void invalidate(String path) {
+		lock.lock();
+		try {
+			for (HTTPVersion version : HTTPVersion.values()) {
+				for (ContentEncoding encoding : ContentEncoding.values())
+					remove(keyFor(path, version, encoding));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove the entry with given key, if any. The lock should be held.
+	 *
+	 * @param 	key
+	 * 			The key of the entry.
+	 */
+	private void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null)
+			size -= entry.getSize();
+	}
+
+	/**
+	 * Returns the key for the response with given version and encoding for the file at the given path.
+	 */
+	private static String keyFor(String path, HTTPVersion version, ContentEncoding encoding) {
+		return version + " " + encoding.getName() + " " + path;
+	}
+
+	/**
+	 * The cached responses, least recently used first.
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/**
+	 * The lock guarding the entries of this cache.
+	 * 	Even lookups change the order of the entries, so they need the lock as well.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Returns the amount of bytes held by this cache.
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
+	/**
+	 * The amount of bytes held by this cache.
+	 */
+	private volatile long size = 0;
+
+	/**
+	 * Returns the number of responses held by this cache.
+	 */
+	public int getEntryCount() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of lookups that found a response.
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of lookups that found no (valid) response.
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of responses that were evicted to stay within budget.
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * The number of lookups that found a response.
+	 */
+	private final LongAdder hits = new LongAdder();
+
+	/**
+	 * The number of lookups that found no (valid) response.
+	 */
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * The number of responses that were evicted to stay within budget.
+	 */
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * The size of the largest response any cache will hold.
+	 */
+	private static final long MAX_ENTRY_SIZE = 1024 * 1024;
+
+	/**
+	 * A class of cache entries, holding a serialized response and its header.
+	 */
+	public static class Entry {
+
+		/**
+		 * Initialize this new entry with given header, serialized response and modification time.
+		 */
+		Entry(HTTPHeader header, ByteBuffer response, long lastModified) {
+			this.header = header;
+			this.response = response;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Returns the header of the cached response. It is shared, so it should not be modified.
+		 */
+		public HTTPHeader getHeader() {
+			return this.header;
+		}
+
+		/**
+		 * The header of the cached response.
+		 */
+		private final HTTPHeader header;
+
+		/**
+		 * Returns a buffer with the serialized response, ready to be written.
+		 */
+		public ByteBuffer getResponse() {
+			return this.response.duplicate();
+		}
+
+		/**
+		 * Returns the size of the serialized response.
+		 */
+		public long getSize() {
+			return this.response.capacity();
+		}
+
+		/**
+		 * The serialized response.
+		 */
+		private final ByteBuffer response;
+
+		/**
+		 * The time at which the file the response came from was last modified.
+		 */
+		private final long lastModified;
+
+	}
+
+}
@@ -0,0 +1,1015 @@
+package org.brunovandekerkhove.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+import org.brunovandekerkhove.http.ByteRange;
+import org.brunovandekerkhove.http.CompressingChannel;
+import org.brunovandekerkhove.http.ContentEncoding;
+import org.brunovandekerkhove.http.ContentRegion;
+import org.brunovandekerkhove.http.HTTPDate;
+import org.brunovandekerkhove.http.HTTPRequest;
+import org.brunovandekerkhove.http.HTTPResponse;
+import org.brunovandekerkhove.http.HTTPVersion;
+
+/**
+ * A class of response generators, turning HTTP requests into HTTP responses.
+ * 	The generators don't know about sockets, so they can be shared by blocking
+ * 	connection handlers and by event loops alike.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public class ResponseGenerator {
+
+	/**
+	 * Initialize this new response generator with given configuration.
+	 *
+	 * @param 	configuration
+	 * 			The configuration of the server this generator works for.
+	 * @throws 	IOException
+	 * 			The resources directory could not be indexed.
+	 */
+	public ResponseGenerator(ServerConfiguration configuration) throws IOException {
+		this.configuration = configuration;
+		this.disk = Executors.newFixedThreadPool(DISK_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "disk");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.loads = new SingleFlight<String, ResponseCache.Entry>(disk);
+		this.cache = new ResponseCache(configuration.getCacheCapacity(), configuration.isCacheOffHeap());
+		this.index = new ResourceIndex(Paths.get(RESOURCES_DIRECTORY));
+		if (configuration.getStorageType() == StorageType.CONTENT_ADDRESSED)
+			this.storage = new ContentAddressedStorage(Paths.get(RESOURCES_DIRECTORY), locks);
+		else
+			this.storage = new FileStorage(locks);
+		if (configuration.getStorageType() == StorageType.LOG)
+			this.objects = new LogStore(Paths.get(RESOURCES_DIRECTORY, ResourceIndex.SEGMENTS_DIRECTORY), configuration.isFsync());
+		else
+			this.objects = null;
+		this.appends = new AppendLog(configuration.isFsync(), locks, storage, this::fileAppended);
+	}
+
+	/**
+	 * Returns the configuration of the server this generator works for.
+	 */
+	public ServerConfiguration getConfiguration() {
+		return this.configuration;
+	}
+
+	/**
+	 * The configuration of the server this generator works for.
+	 */
+	private final ServerConfiguration configuration;
+
+	/**
+	 * The threads doing the disk work of this generator that is not to be done by the thread asking for a response,
+	 * 	so that an event loop never stalls on the disk.
+	 */
+	private final ExecutorService disk;
+
+	/**
+	 * The number of threads doing disk work.
+	 */
+	private static final int DISK_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Generate a server response for the given HTTP request, waiting for it if needed.
+	 *
+	 * @param 	request
+	 * 			The request to respond to.
+	 * @return	An appropriate HTTP response for the given HTTP request.
+	 * @throws	IOException
+	 * 			If an error occurred while reading from a stream (eg. when reading files).
+	 */
+	public HTTPResponse generateResponse(HTTPRequest request) throws IOException {
+		try {
+			return generateResponseAsync(request).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Generate a server response for the given HTTP request.
+	 * 	Most responses are generated right away, but a request for a small file that
+	 * 	isn't cached waits for it to be loaded by a disk thread (or by another request).
+	 *
+	 * @param 	request
+	 * 			The request to respond to.
+	 * @return	A future for an appropriate HTTP response for the given HTTP request.
+	 * @throws	IOException
+	 * 			If an error occurred while reading from a stream (eg. when reading files).
+	 */
+	public CompletableFuture<HTTPResponse> generateResponseAsync(HTTPRequest request) throws IOException {
+		HTTPResponse response = null;
+		HTTPVersion requestVersion = request.header.version;
+		if (requestVersion == HTTPVersion.HTTP_11
+			&& !request.hasHostField()) { // Check if a host has been specified (only mandatory in HTTP/1.1)
+			response = new HTTPResponse(requestVersion, 400, "Bad Request");
+		} else {
+			String subPath = getSubPath(request);
+			switch (request.getCommandType()) { // Generate appropriate response to request
+			case "HEAD":
+			case "GET":
+				if (objects != null && (response = objectResponse(request, subPath)) != null)
+					break; // Kept in the log store, which takes precedence over the files
+				ResourceIndex.Entry entry = index.get(subPath);
+		        if (entry != null) { // Files that aren't in the index don't exist
+		            boolean isHead = request.getCommandType().equals("HEAD");
+		            String rangeField = request.header.getHeaderField("Range");
+		            boolean isRanged = (!isHead && rangeField != null && matchesIfRange(request, entry, entityTag(subPath, entry, ContentEncoding.IDENTITY)));
+		            ContentEncoding encoding = (isRanged ? ContentEncoding.IDENTITY : chooseEncoding(request, entry)); // Ranges of the file as it is
+		            String entityTag = entityTag(subPath, entry, encoding);
+		            if (isNotModified(request, entry.getLastModified(), entityTag)) { // Answered from the index, the file isn't opened
+		            		response = new HTTPResponse(requestVersion, 304, "Not Modified");
+		            		if (entityTag != null)
+		            			response.header.addHeaderField("ETag", entityTag);
+		            		if (isCompressible(entry))
+		            			response.header.addHeaderField("Vary", "Accept-Encoding");
+		            }
+		            else if (isHead && encoding == ContentEncoding.IDENTITY)
+		            		response = headResponse(requestVersion, entry, entityTag); // The file isn't opened at all
+		            else {
+		            		final String path = subPath;
+		            		CompletableFuture<HTTPResponse> future;
+		            		if (isRanged)
+		            			future = rangeResponse(requestVersion, subPath, entry, rangeField);
+		            		else
+		            			future = fileResponse(requestVersion, subPath, entry, encoding);
+		            		if (isHead) // Encoded like the body of a GET would be, so the headers agree with it
+		            			future = future.thenApply(head -> {
+		            				head.discardBody();
+		            				return head;
+		            			});
+		            		return future.exceptionally(failure -> {
+		            			Throwable cause = (failure instanceof CompletionException ? failure.getCause() : failure);
+		            			if (!(cause instanceof NoSuchFileException))
+		            				throw new CompletionException(cause);
+		            			index.refresh(path); // Deleted before the index noticed
+		            			try {
+		            				return notFoundResponse(requestVersion);
+		            			} catch (IOException e) {
+		            				throw new CompletionException(e);
+		            			}
+		            		});
+		            }
+		        } else
+		            response = notFoundResponse(requestVersion);
+		        if (request.getCommandType().equalsIgnoreCase("head"))
+		        		response.discardBody(); // Only the heading is necessary
+				break;
+			case "POST":
+				return appendResponse(request, subPath);
+			case "PUT":
+				return uploadResponse(request, subPath);
+			default: // http://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html#sec10.5.2
+				response = new HTTPResponse(requestVersion, 501, "Not Implemented");
+				break;
+			}
+		}
+		return CompletableFuture.completedFuture(response);
+	}
+
+	/**
+	 * Returns the path of the resource the given request is for, relative to the resources directory.
+	 */
+	private static String getSubPath(HTTPRequest request) {
+		String subPath = request.getPath(); // Normalized, so it never leaves the resources directory
+		return (subPath.equals("/") ? "/index.html" : subPath);
+	}
+
+	/**
+	 * Check whether the body of the given request is wanted, before it has been received.
+	 * 	This is how a request expecting a '100 Continue' is answered : if no response is
+	 * 	returned the client is told to go on, otherwise the returned response is sent
+	 * 	instead and the body is never read.
+	 *
+	 * @param 	request
+	 * 			A request whose body is yet to be received.
+	 * @return	A final response to the request if its body is rejected, or null if it is wanted.
+	 * @note	https://tools.ietf.org/html/rfc7231#section-5.1.1
+	 */
+	public HTTPResponse checkExpectation(HTTPRequest request) {
+		HTTPVersion version = request.header.version;
+		String expectation = request.header.getHeaderField("Expect");
+		if (expectation != null && !expectation.trim().equalsIgnoreCase("100-continue"))
+			return new HTTPResponse(version, 417, "Expectation Failed");
+		if (version == HTTPVersion.HTTP_11 && !request.hasHostField())
+			return new HTTPResponse(version, 400, "Bad Request");
+		switch (request.getCommandType()) {
+		case "HEAD":
+		case "GET":
+			return null; // The body is skipped
+		case "POST":
+		case "PUT":
+			return checkUpload(request, Paths.get(RESOURCES_DIRECTORY + getSubPath(request)));
+		default:
+			return new HTTPResponse(version, 501, "Not Implemented");
+		}
+	}
+
+	/**
+	 * Generate a response to an upload (a PUT request), storing its body in the file it is for.
+	 * 	The body replaces the file, and is stored by the storage backend. Readers never see a
+	 * 	partial file, and even a failed upload leaves the old file intact. The body is stored off the event loops.
+	 *
+	 * @param 	request
+	 * 			The PUT request.
+	 * @param 	subPath
+	 * 			The path of the file, relative to the resources directory.
+	 */
+	private CompletableFuture<HTTPResponse> uploadResponse(HTTPRequest request, String subPath) {
+		Path path = Paths.get(RESOURCES_DIRECTORY + subPath);
+		HTTPResponse rejection = checkUpload(request, path);
+		if (rejection != null)
+			return CompletableFuture.completedFuture(rejection); // The body is skipped
+		return onDisk(request, () -> store(request, subPath, path));
+	}
+
+	/**
+	 * Returns a future completing with the response the given store gives, storing the body of the given request.
+	 * 	A body that was received already is stored by a disk thread, so an event loop never waits
+	 * 	for the disk. One that is still to be read from a blocking connection is stored by the
+	 * 	thread of that connection, as a slow client would otherwise hold up a disk thread.
+	 */
+	private CompletableFuture<HTTPResponse> onDisk(HTTPRequest request, Supplier<HTTPResponse> store) {
+		if (!request.isBodyReceived())
+			return CompletableFuture.completedFuture(store.get());
+		return CompletableFuture.supplyAsync(store, disk);
+	}
+
+	/**
+	 * Store the body of the given upload in the file at the given path, and return the response to it.
+	 */
+	private HTTPResponse store(HTTPRequest request, String subPath, Path path) {
+		HTTPVersion version = request.header.version;
+		try {
+			StorageBackend.Outcome outcome;
+			if (objects != null)
+				outcome = objects.put(subPath, contentTypeFor(request, path), request);
+			else
+				outcome = storage.store(path, request);
+			if (outcome != StorageBackend.Outcome.UNCHANGED && objects == null)
+				fileChanged(path);
+			if (outcome == StorageBackend.Outcome.CREATED)
+				return new HTTPResponse(version, 201, "Created");
+			return new HTTPResponse(version, 204, "No Content");
+		} catch (IOException | UncheckedIOException e) {
+			return failureResponse(request, e);
+		}
+	}
+
+	/**
+	 * Returns the response to the given upload, whose body could not be stored because of the given failure.
+	 * 	Only a body that could not be received is the client's fault, a failure to write it (a full
+	 * 	or failing disk) is the server's.
+	 */
+	private static HTTPResponse failureResponse(HTTPRequest request, Exception failure) {
+		if (request.hasBodyFailed())
+			return new HTTPResponse(request.header.version, 400, "Bad Request");
+		System.out.println(failure.getLocalizedMessage());
+		return new HTTPResponse(request.header.version, 500, "Server Error");
+	}
+
+	/**
+	 * Returns the storage backend storing the bodies of uploads.
+	 */
+	public StorageBackend getStorage() {
+		return this.storage;
+	}
+
+	/**
+	 * The storage backend storing the bodies of uploads.
+	 */
+	private final StorageBackend storage;
+
+	/**
+	 * Returns the log store keeping the objects that are uploaded, or null if they are stored as files.
+	 */
+	public LogStore getObjects() {
+		return this.objects;
+	}
+
+	/**
+	 * The log store keeping the objects that are uploaded, or null if they are stored as files.
+	 */
+	private final LogStore objects;
+
+	/**
+	 * Generate a response to a GET or HEAD request for an object in the log store.
+	 * 	Objects are served from their segment, with a single positioned read if they are small.
+	 *
+	 * @param 	request
+	 * 			The GET or HEAD request.
+	 * @param 	subPath
+	 * 			The key of the object.
+	 * @return	A response for the object, or null if there is no such object.
+	 * @throws 	IOException
+	 * 			The object could not be read.
+	 */
+	private HTTPResponse objectResponse(HTTPRequest request, String subPath) throws IOException {
+		HTTPVersion version = request.header.version;
+		while (true) {
+			LogStore.Entry object = objects.get(subPath);
+			if (object == null)
+				return null;
+			String entityTag = "\"" + object.getTag() + "\"";
+			HTTPResponse response;
+			if (isNotModified(request, object.getLastModified(), entityTag)) {
+				response = new HTTPResponse(version, 304, "Not Modified");
+				response.header.addHeaderField("ETag", entityTag);
+				return response;
+			}
+			if (request.getCommandType().equals("HEAD")) {
+				response = new HTTPResponse(version, 200, "OK");
+				response.header.addHeaderField("Content-Type", object.getContentType());
+				response.header.addHeaderField("Content-Length", Long.toString(object.getSize()));
+			} else {
+				ContentRegion region = objects.open(object);
+				if (region == null)
+					continue; // Moved by the compactor in the meantime
+				response = new HTTPResponse(version, 200, "OK", region, object.getContentType());
+			}
+			response.header.addHeaderField("ETag", entityTag);
+			response.header.addHeaderField("Last-Modified", HTTPDate.format(object.getLastModified()));
+			return response;
+		}
+	}
+
+	/**
+	 * Returns the MIME type of the body of the given upload, as given by the client or else as guessed from the given path.
+	 */
+	private static String contentTypeFor(HTTPRequest request, Path path) {
+		String contentType = request.header.getHeaderField("Content-Type");
+		return (contentType != null ? contentType.trim() : ResourceIndex.probeContentType(path));
+	}
+
+	/**
+	 * The locks serializing the writes to the files in the resources directory, by path.
+	 */
+	private final StripedLocks locks = new StripedLocks(LOCK_STRIPES);
+
+	/**
+	 * The number of locks serializing the writes to files.
+	 */
+	private static final int LOCK_STRIPES = 64;
+
+	/**
+	 * Generate a response to a POST request, appending its body to the file it is for through the append log.
+	 * 	Small bodies are queued as they are. Larger ones, and chunked ones of unknown length,
+	 * 	are stored in a temporary file first, so the log never waits for a client. The response
+	 * 	is ready once the batch holding the body has been written (and synced, if configured).
+	 *
+	 * @param 	request
+	 * 			The POST request.
+	 * @param 	subPath
+	 * 			The path of the file, relative to the resources directory.
+	 */
+	private CompletableFuture<HTTPResponse> appendResponse(HTTPRequest request, String subPath) {
+		HTTPVersion version = request.header.version;
+		Path path = Paths.get(RESOURCES_DIRECTORY + subPath);
+		HTTPResponse rejection = checkUpload(request, path);
+		if (rejection != null)
+			return CompletableFuture.completedFuture(rejection); // The body is skipped
+		if (objects != null) { // Rewritten as a whole, so objects only grow so large
+			return onDisk(request, () -> {
+				try {
+					if (objects.append(subPath, contentTypeFor(request, path), request) == StorageBackend.Outcome.CREATED)
+						return new HTTPResponse(version, 201, "Created");
+					return new HTTPResponse(version, 204, "No Content");
+				} catch (ObjectTooLargeException e) {
+					return new HTTPResponse(version, 413, "Payload Too Large");
+				} catch (IOException | UncheckedIOException e) {
+					return failureResponse(request, e);
+				}
+			});
+		}
+		String lengthField = request.header.getHeaderField("Content-Length");
+		CompletableFuture<Boolean> appended;
+		try {
+			if (!request.header.isChunked() && lengthField != null && Long.parseLong(lengthField.trim()) <= MAX_QUEUED_BODY_SIZE)
+				appended = appends.append(path, ByteBuffer.wrap(request.getContents()));
+			else {
+				FileChannel body = createSpool();
+				try {
+					request.transferBodyTo(body);
+				} catch (IOException e) {
+					closeQuietly(body);
+					throw e;
+				}
+				appended = appends.append(path, body);
+				appended.whenComplete((created, failure) -> closeQuietly(body));
+			}
+		} catch (IOException | UncheckedIOException e) { // The body could not be received or spooled
+			return CompletableFuture.completedFuture(failureResponse(request, e));
+		}
+		return appended.handle((created, failure) -> {
+			if (failure != null) // Written in part at most
+				return new HTTPResponse(version, 500, "Server Error");
+			if (created)
+				return new HTTPResponse(version, 201, "Created");
+			return new HTTPResponse(version, 204, "No Content");
+		});
+	}
+
+	/**
+	 * Returns the append log the bodies of POST requests are appended through.
+	 */
+	public AppendLog getAppends() {
+		return this.appends;
+	}
+
+	/**
+	 * The append log the bodies of POST requests are appended through.
+	 */
+	private final AppendLog appends;
+
+	/**
+	 * The length of the largest bodies of POST requests that are queued in memory.
+	 */
+	private static final long MAX_QUEUED_BODY_SIZE = 64 * 1024;
+
+	/**
+	 * Bring the index and the caches up to date after the server itself wrote to the file at the given path.
+	 *
+	 * @param 	path
+	 * 			The path of a file in the resources directory.
+	 */
+	private void fileChanged(Path path) {
+		String subPath = subPathFor(path);
+		index.refresh(subPath);
+		cache.invalidate(RESOURCES_DIRECTORY + subPath);
+		mappedFiles.invalidate(path);
+	}
+
+	/**
+	 * Bring the index and the caches up to date after the append log appended to the file at the given path.
+	 *
+	 * @param 	path
+	 * 			The path of a file in the resources directory.
+	 */
+	private void fileAppended(Path path) {
+		String subPath = subPathFor(path);
+		index.appended(subPath);
+		cache.invalidate(RESOURCES_DIRECTORY + subPath);
+		mappedFiles.invalidate(path);
+	}
+
+	/**
+	 * Returns the path of the file at the given path in the resources directory, relative to that directory.
+	 */
+	private static String subPathFor(Path path) {
+		return "/" + Paths.get(RESOURCES_DIRECTORY).relativize(path).toString().replace('\\', '/');
+	}
+
+	/**
+	 * Create a temporary file for storing a (large) request body, which is deleted once it is closed.
+	 *
+	 * @return	A channel for reading and writing the new file.
+	 * @throws 	IOException
+	 * 			The file could not be created.
+	 */
+	static FileChannel createSpool() throws IOException {
+		return FileChannel.open(Files.createTempFile("upload", ".tmp"), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+	}
+
+	/**
+	 * Close the given channel, ignoring any errors.
+	 */
+	static void closeQuietly(Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.out.println(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Check whether the body of the given upload can be stored in the file at the given path.
+	 *
+	 * @return	An error response if the body can't be stored, or null if it can.
+	 */
+	private HTTPResponse checkUpload(HTTPRequest request, Path path) {
+		HTTPVersion version = request.header.version;
+		Path directory = path.getParent();
+		if (directory == null || ResourceIndex.isInternal(Paths.get(RESOURCES_DIRECTORY).relativize(path)))
+			return new HTTPResponse(version, 400, "Bad Request");
+		if (objects != null) // Keys don't need directories
+			directory = Paths.get(RESOURCES_DIRECTORY);
+		else if (!Files.isDirectory(directory) || Files.isDirectory(path)) // The file could never be written (or served)
+			return new HTTPResponse(version, 400, "Bad Request");
+		String lengthField = request.header.getHeaderField("Content-Length");
+		if (lengthField != null) {
+			try {
+				long length = Long.parseLong(lengthField.trim());
+				long space = directory.toFile().getUsableSpace(); // 0 if it is unknown
+				if (space > 0 && length > space)
+					return new HTTPResponse(version, 413, "Payload Too Large");
+				if (objects != null && request.getCommandType().equals("POST") && !objects.canAppend(getSubPath(request), length))
+					return new HTTPResponse(version, 413, "Payload Too Large");
+			} catch (NumberFormatException e) {
+				return new HTTPResponse(version, 400, "Bad Request");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Generate a response with the file at the given path as its body, in the given encoding.
+	 * 	Small files are served from the response cache, which holds their complete
+	 * 	serialized responses (one for every encoding). When a small file isn't cached,
+	 * 	concurrent requests for it share a single load on a disk thread. Other files are not read into
+	 * 	memory : their body is sent straight from the file (sendfile), or from a shared
+	 * 	memory mapping if it has the right size for it, or compressed while it is sent.
+	 * 	A gzip-compressed copy of the file ('.gz') is served instead of compressing the
+	 * 	file, as long as it isn't older than the file itself.
+	 *
+	 * @param 	version
+	 * 			The HTTP version of the response.
+	 * @param 	subPath
+	 * 			The path of the file, relative to the resources directory.
+	 * @param 	file
+	 * 			The index entry of the file.
+	 * @param 	encoding
+	 * 			The encoding the client prefers for the body.
+	 * @return	A future for a 200 response whose body is the file at the given path.
+	 * 			It completes exceptionally if the file could not be read.
+	 */
+	private CompletableFuture<HTTPResponse> fileResponse(HTTPVersion version, String subPath, ResourceIndex.Entry file, ContentEncoding encoding) {
+		String localPath = RESOURCES_DIRECTORY + subPath;
+		ResourceIndex.Entry precompressed = (encoding == ContentEncoding.GZIP ? precompressedVariant(subPath, file) : null);
+		String entityTag = entityTag(subPath, file, encoding);
+		boolean compress = (encoding != ContentEncoding.IDENTITY && precompressed == null);
+		long lastModified = (precompressed == null ? file.getLastModified() : Math.max(file.getLastModified(), precompressed.getLastModified()));
+		ResponseCache.Entry cached = cache.get(localPath, version, encoding, lastModified);
+		if (cached != null && entityTag.equals(cached.getHeader().getHeaderField("ETag"))) // Loaded again once the tag turns strong
+			return CompletableFuture.completedFuture(new HTTPResponse(cached.getHeader(), cached.getResponse()));
+		String sourcePath = (precompressed == null ? localPath : localPath + ".gz");
+		if (cache.accepts(precompressed == null ? file.getSize() : precompressed.getSize())) {
+			String key = version + " " + encoding.getName() + " " + localPath + " " + lastModified + " " + entityTag;
+			return loads.load(key, () -> load(version, localPath, sourcePath, file, encoding, compress, lastModified, entityTag))
+					.thenApply(entry -> new HTTPResponse(entry.getHeader(), entry.getResponse()));
+		}
+		try {
+			Path path = Paths.get(sourcePath);
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				HTTPResponse response;
+				if (compress) // Compressed on the fly, so the length isn't known up front
+					response = new HTTPResponse(version, 200, "OK", new CompressingChannel(channel, encoding, configuration.getCompressionLevel()), file.getContentType());
+				else {
+					long size = channel.size();
+					ContentRegion region;
+					if (size >= configuration.getMappedFileMinimum() && size <= configuration.getMappedFileMaximum()) {
+						region = new ContentRegion(mappedFiles.get(path, channel, lastModified).duplicate());
+						channel.close(); // The mapping stays valid
+					}
+					else
+						region = new ContentRegion(channel, 0, size);
+					response = new HTTPResponse(version, 200, "OK", region, file.getContentType());
+				}
+				addFileHeaders(response, file, entityTag);
+				if (encoding != ContentEncoding.IDENTITY)
+					response.header.addHeaderField("Content-Encoding", encoding.getName());
+				return CompletableFuture.completedFuture(response);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/**
+	 * Look up the gzip-compressed copy of the file at the given path.
+	 *
+	 * @param 	subPath
+	 * 			The path of the file, relative to the resources directory.
+	 * @param 	file
+	 * 			The index entry of the file.
+	 * @return	The index entry of the file's '.gz' copy, or null if there is none or
+	 * 			if it is older than the file (and thus stale).
+	 */
+	private ResourceIndex.Entry precompressedVariant(String subPath, ResourceIndex.Entry file) {
+		ResourceIndex.Entry precompressed = index.get(subPath + ".gz");
+		if (precompressed == null || precompressed.getLastModified() < file.getLastModified())
+			return null;
+		return precompressed;
+	}
+
+	/**
+	 * Get the entity tag of the representation of the file at the given path in the given encoding.
+	 * 	Tags are strong once the index knows the digest of the file's contents, so a file that
+	 * 	is touched or replaced by an identical copy keeps its tag. Until then (and for files that
+	 * 	are appended to) they are weak, being derived from the file's metadata. Every encoding of
+	 * 	a file gets a tag of its own.
+	 *
+	 * @param 	subPath
+	 * 			The path of the file, relative to the resources directory.
+	 * @param 	file
+	 * 			The index entry of the file.
+	 * @param 	encoding
+	 * 			The encoding of the representation.
+	 * @return	The entity tag (quotes included).
+	 * @note	https://tools.ietf.org/html/rfc7232#section-2.3
+	 */
+	private String entityTag(String subPath, ResourceIndex.Entry file, ContentEncoding encoding) {
+		if (encoding == ContentEncoding.GZIP) {
+			ResourceIndex.Entry precompressed = precompressedVariant(subPath, file);
+			if (precompressed != null) // Sent as it is
+				return entityTag(subPath + ".gz", precompressed, ContentEncoding.IDENTITY);
+		}
+		String digest = index.getDigest(subPath, file);
+		String tag = (digest != null ? "\"" + digest : "W/\"" + file.getTag());
+		if (encoding == ContentEncoding.IDENTITY)
+			return tag + "\"";
+		return tag + "-" + encoding.getName() + "\"";
+	}
+
+	/**
+	 * Check whether the file requested by the given request is unchanged since the client got it.
+	 * 	An If-None-Match field takes precedence over an If-Modified-Since field.
+	 *
+	 * @param 	request
+	 * 			A GET or HEAD request for the file.
+	 * @param 	lastModified
+	 * 			The modification time of the file.
+	 * @param 	entityTag
+	 * 			The entity tag of the selected representation of the file, or null if it has none.
+	 * @return	True if and only if a 304 response is to be sent.
+	 * @note	https://tools.ietf.org/html/rfc7232#section-6
+	 */
+	private static boolean isNotModified(HTTPRequest request, long lastModified, String entityTag) {
+		if (request.header.getHeaderField("If-None-Match") != null)
+			return request.matchesIfNoneMatch(entityTag);
+		long ifModifiedSince = request.getIfModifiedSince();
+		return (ifModifiedSince != HTTPDate.INVALID && lastModified / 1000 * 1000 <= ifModifiedSince); // Dates are in whole seconds
+	}
+
+	/**
+	 * Choose the encoding of the body of a response to the given request for the given file.
+	 *
+	 * @param 	request
+	 * 			The request for the file.
+	 * @param 	file
+	 * 			The index entry of the file.
+	 * @return	The encoding the client prefers if the file is worth compressing, identity otherwise.
+	 */
+	private ContentEncoding chooseEncoding(HTTPRequest request, ResourceIndex.Entry file) {
+		if (!isCompressible(file))
+			return ContentEncoding.IDENTITY;
+		return ContentEncoding.negotiate(request.header.getHeaderField("Accept-Encoding"));
+	}
+
+	/**
+	 * Check whether the file with given index entry is worth compressing.
+	 * 	Tiny files and files that are compressed already (images, video, archives, ...)
+	 * 	are not, judging by their MIME type.
+	 *
+	 * @param 	file
+	 * 			The index entry of the file.
+	 * @return	True if and only if compression is enabled and the file is textual (or
+	 * 			otherwise known to compress well) and not too small.
+	 */
+	private boolean isCompressible(ResourceIndex.Entry file) {
+		if (configuration.getCompressionLevel() == 0 || file.getSize() < MIN_COMPRESSED_SIZE)
+			return false;
+		String type = file.getContentType();
+		return type.startsWith("text/")
+				|| type.endsWith("+xml") || type.endsWith("+json")
+				|| type.equals("application/javascript") || type.equals("application/json")
+				|| type.equals("application/xml") || type.equals("image/svg+xml");
+	}
+
+	/**
+	 * The size of the smallest files that are compressed. Smaller files fit in a single packet anyway.
+	 */
+	private static final long MIN_COMPRESSED_SIZE = 256;
+
+	/**
+	 * The ratio between the compressed and the original size above which compression isn't worth it.
+	 */
+	private static final double MAX_COMPRESSION_RATIO = 0.9;
+
+	/**
+	 * Check whether the Range field of the given request is to be honoured, given the If-Range
+	 * 	field (if any). It may hold a date or a strong entity tag, and only an exact match counts.
+	 *
+	 * @param 	request
+	 * 			A request with a Range field.
+	 * @param 	file
+	 * 			The index entry of the requested file.
+	 * @param 	entityTag
+	 * 			The entity tag of the file as it is, or null if it has none.
+	 * @return	True if and only if the request has no If-Range field, or the entity tag in it
+	 * 			is the given one, or the date in it is the time at which the file was last modified.
+	 */
+	private static boolean matchesIfRange(HTTPRequest request, ResourceIndex.Entry file, String entityTag) {
+		if (request.header.getHeaderField("If-Range") == null)
+			return true;
+		String ifRangeEntityTag = request.getIfRangeEntityTag();
+		if (ifRangeEntityTag != null)
+			return ifRangeEntityTag.equals(entityTag);
+		return (request.getIfRange() == file.getLastModified() / 1000 * 1000);
+	}
+
+	/**
+	 * Generate a response with the given ranges of the file at the given path as its body.
+	 * 	The ranges are sent straight from the file (or its mapping), never from the heap,
+	 * 	so only the requested bytes are ever read. A single range gets a plain 206 response,
+	 * 	several ranges a multipart/byteranges one, and unsatisfiable ranges a 416 response.
+	 * 	Invalid Range fields are ignored, in which case the whole file is sent.
+	 *
+	 * @param 	version
+	 * 			The HTTP version of the response.
+	 * @param 	subPath
+	 * 			The path of the file, relative to the resources directory.
+	 * @param 	file
+	 * 			The index entry of the file.
+	 * @param 	rangeField
+	 * 			The Range field of the request.
+	 * @return	A future for the response. It completes exceptionally if the file could not be opened.
+	 * @note	https://tools.ietf.org/html/rfc7233#section-4
+	 */
+	private CompletableFuture<HTTPResponse> rangeResponse(HTTPVersion version, String subPath, ResourceIndex.Entry file, String rangeField) {
+		List<ByteRange> ranges = ByteRange.parse(rangeField, file.getSize());
+		if (ranges == null) // Invalid, so ignored
+			return fileResponse(version, subPath, file, ContentEncoding.IDENTITY);
+		try {
+			Path path = Paths.get(RESOURCES_DIRECTORY + subPath);
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				long size = channel.size();
+				if (size != file.getSize()) // Changed since it was indexed
+					ranges = ByteRange.parse(rangeField, size);
+				if (ranges.isEmpty()) {
+					channel.close();
+					HTTPResponse response = new HTTPResponse(version, 416, "Range Not Satisfiable");
+					response.header.addHeaderField("Content-Range", "bytes */" + size);
+					return CompletableFuture.completedFuture(response);
+				}
+				ByteBuffer mapping = null;
+				if (size >= configuration.getMappedFileMinimum() && size <= configuration.getMappedFileMaximum()) {
+					mapping = mappedFiles.get(path, channel, file.getLastModified());
+					channel.close(); // The mapping stays valid
+				}
+				HTTPResponse response;
+				if (ranges.size() == 1) {
+					ByteRange range = ranges.get(0);
+					response = new HTTPResponse(version, 206, "Partial Content", rangeRegion(channel, mapping, range, true), file.getContentType());
+					response.header.addHeaderField("Content-Range", range.toContentRange(size));
+				}
+				else {
+					String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+					List<ContentRegion> regions = new ArrayList<ContentRegion>(2 * ranges.size() + 1);
+					for (int i=0 ; i<ranges.size() ; i++) {
+						ByteRange range = ranges.get(i);
+						String partHeader = "\r\n--" + boundary + "\r\n"
+								+ "Content-Type: " + file.getContentType() + "\r\n"
+								+ "Content-Range: " + range.toContentRange(size) + "\r\n\r\n";
+						regions.add(new ContentRegion(ByteBuffer.wrap(partHeader.getBytes(StandardCharsets.ISO_8859_1))));
+						regions.add(rangeRegion(channel, mapping, range, i == ranges.size() - 1)); // The last part closes the channel
+					}
+					regions.add(new ContentRegion(ByteBuffer.wrap(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1))));
+					response = new HTTPResponse(version, 206, "Partial Content", regions, "multipart/byteranges; boundary=" + boundary);
+				}
+				addFileHeaders(response, file, entityTag(subPath, file, ContentEncoding.IDENTITY));
+				return CompletableFuture.completedFuture(response);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/**
+	 * Create a region for the given range of a file.
+	 *
+	 * @param 	channel
+	 * 			The channel of the file.
+	 * @param 	mapping
+	 * 			The mapping of the file, or null if it isn't mapped.
+	 * @param 	range
+	 * 			The range of the file.
+	 * @param 	ownsChannel
+	 * 			Whether the region is to close the channel once it is closed itself.
+	 * @return	A region with the bytes in the given range.
+	 */
+	private static ContentRegion rangeRegion(FileChannel channel, ByteBuffer mapping, ByteRange range, boolean ownsChannel) {
+		if (mapping == null)
+			return new ContentRegion(channel, range.getFirst(), range.getLength(), ownsChannel);
+		ByteBuffer slice = mapping.duplicate();
+		slice.limit((int)range.getLast() + 1).position((int)range.getFirst());
+		return new ContentRegion(slice);
+	}
+
+	/**
+	 * Read the file at the given path, serialize a response with it as its body and cache it.
+	 * 	If the file is to be compressed but barely gets smaller, it is cached uncompressed.
+	 *
+	 * @param 	version
+	 * 			The HTTP version of the response.
+	 * @param 	localPath
+	 * 			The path of the file.
+	 * @param 	sourcePath
+	 * 			The path of the file that is actually read (the file itself or its compressed copy).
+	 * @param 	file
+	 * 			The index entry of the file.
+	 * @param 	encoding
+	 * 			The encoding of the response.
+	 * @param 	compress
+	 * 			Whether the body is still to be compressed.
+	 * @param 	lastModified
+	 * 			The time at which the file (or its compressed copy) was last modified.
+	 * @param 	entityTag
+	 * 			The entity tag of the response, or null if it has none.
+	 * @return	The cache entry for the serialized response.
+	 * @throws 	IOException
+	 * 			The file could not be read.
+	 */
+	private ResponseCache.Entry load(HTTPVersion version, String localPath, String sourcePath, ResourceIndex.Entry file,
+			ContentEncoding encoding, boolean compress, long lastModified, String entityTag) throws IOException {
+		ByteBuffer contents;
+		try (FileChannel channel = FileChannel.open(Paths.get(sourcePath), StandardOpenOption.READ)) {
+			contents = ByteBuffer.allocate((int)channel.size());
+			while (contents.hasRemaining() && channel.read(contents) >= 0);
+		}
+		byte[] body = contents.array();
+		boolean encoded = (encoding != ContentEncoding.IDENTITY);
+		if (compress) {
+			byte[] compressed = CompressingChannel.compress(body, encoding, configuration.getCompressionLevel());
+			if (compressed.length < body.length * MAX_COMPRESSION_RATIO)
+				body = compressed;
+			else
+				encoded = false; // Not worth it, clients get the file as it is
+		}
+		HTTPResponse response = new HTTPResponse(version, 200, "OK", body, file.getContentType());
+		addFileHeaders(response, file, entityTag);
+		if (encoded)
+			response.header.addHeaderField("Content-Encoding", encoding.getName());
+		return cache.put(localPath, version, encoding, lastModified, response.header, response.encode());
+	}
+
+	/**
+	 * Returns the coalescer of the file loads of this generator.
+	 */
+	public SingleFlight<String, ResponseCache.Entry> getLoads() {
+		return this.loads;
+	}
+
+	/**
+	 * The coalescer of the file loads of this generator, so that concurrent
+	 * 	requests for the same uncached file read it only once, on a disk thread.
+	 */
+	private final SingleFlight<String, ResponseCache.Entry> loads;
+
+	/**
+	 * Returns the cache of serialized responses of this generator.
+	 */
+	public ResponseCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * The cache of serialized responses of this generator.
+	 */
+	private final ResponseCache cache;
+
+	/**
+	 * The memory-mapped files this generator serves.
+	 */
+	private final MappedFileCache mappedFiles = new MappedFileCache();
+
+	/**
+	 * Generate a response to a HEAD request for the file with given index entry, as it is.
+	 * 	Everything in its header is known by the index, so the file isn't read.
+	 * 	HEAD requests for an encoded file are answered like GET requests instead, since
+	 * 	the length of the encoded file is only known once it has been encoded.
+	 *
+	 * @param 	version
+	 * 			The HTTP version of the response.
+	 * @param 	file
+	 * 			The index entry of the file.
+	 * @param 	entityTag
+	 * 			The entity tag of the file, or null if it has none.
+	 * @return	A bodiless 200 response with the headers a GET request would get.
+	 */
+	private HTTPResponse headResponse(HTTPVersion version, ResourceIndex.Entry file, String entityTag) {
+		HTTPResponse response = new HTTPResponse(version, 200, "OK");
+		response.header.addHeaderField("Content-Type", file.getContentType());
+		response.header.addHeaderField("Content-Length", Long.toString(file.getSize()));
+		addFileHeaders(response, file, entityTag);
+		return response;
+	}
+
+	/**
+	 * Add the headers describing the file with given index entry to the given response.
+	 * 	Responses for files that may be compressed vary with the encodings the client accepts.
+	 *
+	 * @param 	response
+	 * 			A response whose body is (part of) the file.
+	 * @param 	file
+	 * 			The index entry of the file.
+	 * @param 	entityTag
+	 * 			The entity tag of the response's representation, or null if it has none.
+	 */
+	private void addFileHeaders(HTTPResponse response, ResourceIndex.Entry file, String entityTag) {
+		response.header.addHeaderField("Accept-Ranges", "bytes");
+		if (entityTag != null)
+			response.header.addHeaderField("ETag", entityTag);
+		if (isCompressible(file))
+			response.header.addHeaderField("Vary", "Accept-Encoding");
+		response.header.addHeaderField("Last-Modified", HTTPDate.format(file.getLastModified()));
+	}
+
+	/**
+	 * Generate a 404 response, with the 404 page as its body.
+	 * 	The page is kept in memory and only read again when the index says it changed.
+	 *
+	 * @param 	version
+	 * 			The HTTP version of the response.
+	 * @return	A 404 response.
+	 * @throws 	IOException
+	 * 			The 404 page could not be read.
+	 */
+	private HTTPResponse notFoundResponse(HTTPVersion version) throws IOException {
+		ResourceIndex.Entry entry = index.get(SUBPATH_404);
+		if (entry == null)
+			return new HTTPResponse(version, 404, "Not Found");
+		NotFoundPage page = this.notFoundPage;
+		if (page == null || page.lastModified != entry.getLastModified()) {
+			page = new NotFoundPage(entry.getLastModified(), Files.readAllBytes(Paths.get(RESOURCES_DIRECTORY + SUBPATH_404)));
+			this.notFoundPage = page;
+		}
+		return new HTTPResponse(version, 404, "Not Found", page.contents, entry.getContentType());
+	}
+
+	/**
+	 * The 404 page as it was last read, or null if it hasn't been read yet.
+	 */
+	private volatile NotFoundPage notFoundPage = null;
+
+	/**
+	 * A class holding the contents of the 404 page, together with its modification time.
+	 */
+	private static class NotFoundPage {
+
+		NotFoundPage(long lastModified, byte[] contents) {
+			this.lastModified = lastModified;
+			this.contents = contents;
+		}
+
+		final long lastModified;
+
+		final byte[] contents;
+
+	}
+
+	/**
+	 * Returns the index of the resources directory used by this generator.
+	 */
+	public ResourceIndex getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * The index of the resources directory, so that requests need no file system lookups.
+	 */
+	private final ResourceIndex index;
+
+	/**
+	 * The directory holding the resources served by this generator.
+	 */
+	private static final String RESOURCES_DIRECTORY = "resources";
+
+	/**
+	 * The path of the 404 html file, relative to the resources directory.
+	 */
+	private static final String SUBPATH_404 = "/404.html";
+
+}
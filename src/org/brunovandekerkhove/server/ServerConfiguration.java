@@ -0,0 +1,500 @@
+package org.brunovandekerkhove.server;
+
+/**
+ * A class of server configurations, holding the options a server is started with.
+ * 	Options are given on the command line after the port, formatted as '--name=value'.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public class ServerConfiguration {
+
+	/**
+	 * Initialize this new server configuration with given port and default options.
+	 *
+	 * @param 	port
+	 * 			The port for this new configuration.
+	 */
+	public ServerConfiguration(int port) {
+		if (port < 0)
+			throw new IllegalArgumentException("Invalid port number.");
+		this.port = port;
+	}
+
+	/**
+	 * Create a server configuration from the given command line arguments.
+	 *
+	 * @param 	args
+	 * 			The arguments, the first one being the port number.
+	 * @return	A configuration reflecting the given arguments.
+	 * @throws	IllegalArgumentException
+	 * 			One of the given arguments is invalid.
+	 */
+	public static ServerConfiguration fromArguments(String[] args) throws IllegalArgumentException {
+		if (args.length < 1)
+			throw new IllegalArgumentException("No port number given.");
+		ServerConfiguration configuration = new ServerConfiguration(Integer.parseInt(args[0]));
+		for (int i=1 ; i<args.length ; i++) {
+			String argument = args[i];
+			int equalsIndex = argument.indexOf('=');
+			if (!argument.startsWith("--") || equalsIndex < 0)
+				throw new IllegalArgumentException("Invalid option '" + argument + "'.");
+			configuration.setOption(argument.substring(2, equalsIndex), argument.substring(equalsIndex + 1));
+		}
+		return configuration;
+	}
+
+	/**
+	 * Set the option with given name to the given value.
+	 *
+	 * @param 	name
+	 * 			The name of the option.
+	 * @param 	value
+	 * 			The textual value of the option.
+	 * @throws	IllegalArgumentException
+	 * 			There is no such option or the value is invalid.
+	 */
+	public void setOption(String name, String value) throws IllegalArgumentException {
+		switch (name) {
+		case "mode":
+			ServerMode mode = ServerMode.modeForString(value);
+			if (mode == null)
+				throw new IllegalArgumentException("Unknown server mode '" + value + "'.");
+			setMode(mode);
+			break;
+		case "loops":
+			setEventLoopCount(Integer.parseInt(value));
+			break;
+		case "workers":
+			setWorkerCount(Integer.parseInt(value));
+			break;
+		case "queue":
+			setQueueCapacity(Integer.parseInt(value));
+			break;
+		case "mmap":
+			int dashIndex = value.indexOf('-');
+			if (dashIndex < 0)
+				throw new IllegalArgumentException("The mmap option should be formatted as <min>-<max>.");
+			setMappedFileRange(Long.parseLong(value.substring(0, dashIndex)), Long.parseLong(value.substring(dashIndex + 1)));
+			break;
+		case "cache":
+			setCacheCapacity(Long.parseLong(value));
+			break;
+		case "cache-offheap":
+			setCacheOffHeap(Boolean.parseBoolean(value));
+			break;
+		case "stats":
+			setStatisticsInterval(Integer.parseInt(value));
+			break;
+		case "compression":
+			setCompressionLevel(Integer.parseInt(value));
+			break;
+		case "nodelay":
+			setNoDelay(Boolean.parseBoolean(value));
+			break;
+		case "coalesce":
+			setCoalesceLimit(Integer.parseInt(value));
+			break;
+		case "fsync":
+			setFsync(Boolean.parseBoolean(value));
+			break;
+		case "storage":
+			StorageType storageType = StorageType.typeForString(value);
+			if (storageType == null)
+				throw new IllegalArgumentException("Unknown storage type '" + value + "'.");
+			setStorageType(storageType);
+			break;
+		default:
+			DeadlineType deadline = (name.endsWith(TIMEOUT_SUFFIX) ? DeadlineType.typeForString(name.substring(0, name.length() - TIMEOUT_SUFFIX.length())) : null);
+			if (deadline == null)
+				throw new IllegalArgumentException("Unknown option '" + name + "'.");
+			setTimeout(deadline, Integer.parseInt(value));
+			break;
+		}
+	}
+
+	/**
+	 * Returns the port the server listens on.
+	 */
+	public int getPort() {
+		return this.port;
+	}
+
+	/**
+	 * The port the server listens on.
+	 */
+	private final int port;
+
+	/**
+	 * Returns the way in which the server handles its connections.
+	 */
+	public ServerMode getMode() {
+		return this.mode;
+	}
+
+	/**
+	 * Set the way in which the server handles its connections.
+	 *
+	 * @param 	mode
+	 * 			The new mode for the server.
+	 */
+	public void setMode(ServerMode mode) {
+		if (mode == null)
+			throw new IllegalArgumentException("Invalid server mode.");
+		this.mode = mode;
+	}
+
+	/**
+	 * The way in which the server handles its connections.
+	 */
+	private ServerMode mode = ServerMode.THREADS;
+
+	/**
+	 * Returns the number of event loops (or shards) the server runs when it uses selectors.
+	 */
+	public int getEventLoopCount() {
+		return this.eventLoopCount;
+	}
+
+	/**
+	 * Set the number of event loops the server runs when it uses selectors.
+	 *
+	 * @param 	eventLoopCount
+	 * 			The new number of event loops.
+	 */
+	public void setEventLoopCount(int eventLoopCount) {
+		if (eventLoopCount < 1)
+			throw new IllegalArgumentException("Invalid number of event loops.");
+		this.eventLoopCount = eventLoopCount;
+	}
+
+	/**
+	 * The number of event loops the server runs when it uses selectors.
+	 * 	One per core by default.
+	 */
+	private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Returns the number of worker threads the server handles connections on in threads mode,
+	 * 	or 0 if it starts as many as there are connections.
+	 */
+	public int getWorkerCount() {
+		return this.workerCount;
+	}
+
+	/**
+	 * Set the number of worker threads the server handles connections on in threads mode.
+	 * 	Connections that can't get a worker soon enough are turned down with a 503 response.
+	 *
+	 * @param 	workerCount
+	 * 			The new number of workers, or 0 for a thread per connection without any limit.
+	 */
+	public void setWorkerCount(int workerCount) {
+		if (workerCount < 0)
+			throw new IllegalArgumentException("Invalid number of workers.");
+		this.workerCount = workerCount;
+	}
+
+	/**
+	 * The number of worker threads the server handles connections on in threads mode.
+	 */
+	private int workerCount = 256;
+
+	/**
+	 * Returns the maximum number of connections waiting for a worker.
+	 */
+	public int getQueueCapacity() {
+		return this.queueCapacity;
+	}
+
+	/**
+	 * Set the maximum number of connections waiting for a worker.
+	 * 	Connections that arrive while the queue is full are turned down right away.
+	 *
+	 * @param 	queueCapacity
+	 * 			The new capacity of the queue.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity < 1)
+			throw new IllegalArgumentException("Invalid queue capacity.");
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * The maximum number of connections waiting for a worker.
+	 */
+	private int queueCapacity = 1024;
+
+	/**
+	 * Returns the number of seconds between two statistics reports, or 0 if
+	 * 	the server doesn't report any statistics.
+	 */
+	public int getStatisticsInterval() {
+		return this.statisticsInterval;
+	}
+
+	/**
+	 * Set the number of seconds between two statistics reports.
+	 *
+	 * @param 	statisticsInterval
+	 * 			The new number of seconds between two reports, or 0 to disable them.
+	 */
+	public void setStatisticsInterval(int statisticsInterval) {
+		if (statisticsInterval < 0)
+			throw new IllegalArgumentException("Invalid statistics interval.");
+		this.statisticsInterval = statisticsInterval;
+	}
+
+	/**
+	 * The number of seconds between two statistics reports.
+	 */
+	private int statisticsInterval = 0;
+
+	/**
+	 * Returns the minimum size of files that are served from memory-mapped buffers.
+	 */
+	public long getMappedFileMinimum() {
+		return this.mappedFileMinimum;
+	}
+
+	/**
+	 * Returns the maximum size of files that are served from memory-mapped buffers,
+	 * 	or 0 if no files are served that way.
+	 */
+	public long getMappedFileMaximum() {
+		return this.mappedFileMaximum;
+	}
+
+	/**
+	 * Set the range of file sizes that are served from memory-mapped buffers.
+	 * 	Other files are sent with sendfile straight from disk.
+	 *
+	 * @param 	minimum
+	 * 			The minimum size of mapped files.
+	 * @param 	maximum
+	 * 			The maximum size of mapped files, or 0 to not map any files.
+	 */
+	public void setMappedFileRange(long minimum, long maximum) {
+		if (minimum < 0 || maximum < 0 || (maximum > 0 && maximum < minimum) || maximum > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid range of mapped file sizes.");
+		this.mappedFileMinimum = minimum;
+		this.mappedFileMaximum = maximum;
+	}
+
+	/**
+	 * The minimum size of files that are served from memory-mapped buffers.
+	 */
+	private long mappedFileMinimum = 0;
+
+	/**
+	 * The maximum size of files that are served from memory-mapped buffers.
+	 */
+	private long mappedFileMaximum = 0;
+
+	/**
+	 * Returns the maximum amount of bytes the response cache may hold.
+	 */
+	public long getCacheCapacity() {
+		return this.cacheCapacity;
+	}
+
+	/**
+	 * Set the maximum amount of bytes the response cache may hold.
+	 *
+	 * @param 	cacheCapacity
+	 * 			The new capacity of the response cache, or 0 to disable it.
+	 */
+	public void setCacheCapacity(long cacheCapacity) {
+		if (cacheCapacity < 0)
+			throw new IllegalArgumentException("Invalid cache capacity.");
+		this.cacheCapacity = cacheCapacity;
+	}
+
+	/**
+	 * The maximum amount of bytes the response cache may hold.
+	 */
+	private long cacheCapacity = 32 * 1024 * 1024;
+
+	/**
+	 * Returns whether the response cache keeps its responses outside of the heap.
+	 */
+	public boolean isCacheOffHeap() {
+		return this.cacheOffHeap;
+	}
+
+	/**
+	 * Set whether the response cache keeps its responses outside of the heap.
+	 *
+	 * @param 	cacheOffHeap
+	 * 			True if the responses are to be kept in direct buffers.
+	 */
+	public void setCacheOffHeap(boolean cacheOffHeap) {
+		this.cacheOffHeap = cacheOffHeap;
+	}
+
+	/**
+	 * Whether the response cache keeps its responses outside of the heap.
+	 */
+	private boolean cacheOffHeap = false;
+
+	/**
+	 * Returns the level at which responses are compressed, or 0 if they aren't.
+	 */
+	public int getCompressionLevel() {
+		return this.compressionLevel;
+	}
+
+	/**
+	 * Set the level at which responses are compressed for clients that accept it.
+	 *
+	 * @param 	compressionLevel
+	 * 			The new compression level, from 1 (fastest) to 9 (smallest), or 0 to disable compression.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if (compressionLevel < 0 || compressionLevel > 9)
+			throw new IllegalArgumentException("Invalid compression level.");
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * The level at which responses are compressed.
+	 */
+	private int compressionLevel = 6;
+
+	/**
+	 * Returns whether Nagle's algorithm is disabled (TCP_NODELAY) on the connections of the server.
+	 */
+	public boolean isNoDelay() {
+		return this.noDelay;
+	}
+
+	/**
+	 * Set whether Nagle's algorithm is disabled on the connections of the server.
+	 * 	With Nagle's algorithm a small write that follows another one is held back until
+	 * 	the first one is acknowledged, which clients with delayed acknowledgements only do
+	 * 	after some 40 ms.
+	 *
+	 * @param 	noDelay
+	 * 			True if every write is to be sent right away.
+	 * @note	https://tools.ietf.org/html/rfc896
+	 */
+	public void setNoDelay(boolean noDelay) {
+		this.noDelay = noDelay;
+	}
+
+	/**
+	 * Whether Nagle's algorithm is disabled on the connections of the server.
+	 */
+	private boolean noDelay = true;
+
+	/**
+	 * Returns the size up to which a response body is copied in after its header, so both are sent with a single write.
+	 */
+	public int getCoalesceLimit() {
+		return this.coalesceLimit;
+	}
+
+	/**
+	 * Set the size up to which a response body is copied in after its header.
+	 * 	Larger bodies are sent on their own (eg. with sendfile), after the header.
+	 *
+	 * @param 	coalesceLimit
+	 * 			The new size, including the header, or 0 to never copy bodies.
+	 */
+	public void setCoalesceLimit(int coalesceLimit) {
+		if (coalesceLimit < 0)
+			throw new IllegalArgumentException("Invalid coalesce limit.");
+		this.coalesceLimit = coalesceLimit;
+	}
+
+	/**
+	 * The size up to which a response body is copied in after its header.
+	 */
+	private int coalesceLimit = 16 * 1024;
+
+	/**
+	 * Returns whether appended bodies are forced to the disk (fsync) before they are acknowledged.
+	 */
+	public boolean isFsync() {
+		return this.fsync;
+	}
+
+	/**
+	 * Set whether appended bodies are forced to the disk before they are acknowledged.
+	 * 	Appends are written in batches, so there is a single fsync per batch rather than per request.
+	 *
+	 * @param 	fsync
+	 * 			True if an append is to be acknowledged only once it survives a crash.
+	 */
+	public void setFsync(boolean fsync) {
+		this.fsync = fsync;
+	}
+
+	/**
+	 * Whether appended bodies are forced to the disk before they are acknowledged.
+	 */
+	private boolean fsync = false;
+
+	/**
+	 * Returns the way in which the bodies of uploads are stored.
+	 */
+	public StorageType getStorageType() {
+		return this.storageType;
+	}
+
+	/**
+	 * Set the way in which the bodies of uploads are stored.
+	 *
+	 * @param 	storageType
+	 * 			The new storage type.
+	 */
+	public void setStorageType(StorageType storageType) {
+		if (storageType == null)
+			throw new IllegalArgumentException("Invalid storage type.");
+		this.storageType = storageType;
+	}
+
+	/**
+	 * The way in which the bodies of uploads are stored.
+	 */
+	private StorageType storageType = StorageType.FILES;
+
+	/**
+	 * Returns the time a connection is given for the phase of an exchange with the given deadline type, in seconds.
+	 *
+	 * @param 	type
+	 * 			The type of the deadline.
+	 * @return	The time before the deadline, or 0 if there is no such deadline.
+	 */
+	public int getTimeout(DeadlineType type) {
+		return this.timeouts[type.ordinal()];
+	}
+
+	/**
+	 * Set the time a connection is given for the phase of an exchange with the given deadline type.
+	 * 	Connections that miss a deadline are closed.
+	 *
+	 * @param 	type
+	 * 			The type of the deadline.
+	 * @param 	seconds
+	 * 			The time before the deadline, or 0 for no deadline.
+	 */
+	public void setTimeout(DeadlineType type, int seconds) {
+		if (seconds < 0)
+			throw new IllegalArgumentException("Invalid timeout.");
+		this.timeouts[type.ordinal()] = seconds;
+	}
+
+	/**
+	 * The time a connection is given for every phase of an exchange, in seconds, by deadline type.
+	 * 	A minute to start a request, 10 seconds to send its header, and 30 seconds without any
+	 * 	progress while its body is received or its response sent.
+	 */
+	private final int[] timeouts = {60, 10, 30, 30};
+
+	/**
+	 * The suffix of the names of the options setting a timeout.
+	 */
+	private static final String TIMEOUT_SUFFIX = "-timeout";
+
+}
@@ -1,10 +1,16 @@
 package org.brunovandekerkhove.server;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import org.brunovandekerkhove.utils.BufferPool;
 
 /**
  * A class of HTTP servers for responding to HTTP requests. The servers are multi-threaded.
@@ -16,6 +22,8 @@ import java.util.concurrent.Executors;
  * 	These are preferred over instantiating new threads for each task when there is a large number of 
  * 	short tasks to be done rather than a small number of long ones. This prevents having to incur the 
  * 	overhead of creating a thread a large number of times.
+ * 	Alternatively the servers can multiplex their connections over a few event loops
+ * 	(see ServerMode), which scales to far more idle keep-alive connections.
  */
 public class ServerHTTP {
 
@@ -30,24 +38,158 @@ public class ServerHTTP {
 	 * 			An I/O error occurred.
 	 */
 	public ServerHTTP(int port) throws IOException {
+		this(new ServerConfiguration(port));
+	}
+	
+	/**
+	 * Initialize this server with given configuration.
+	 * 	The server immediately start listening to incoming connections,
+	 * 	dealing with them as its configuration dictates.
+	 * 
+	 * @param 	configuration
+	 * 			The configuration for this new server.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	public ServerHTTP(ServerConfiguration configuration) throws IOException {
 		
-		if (port < 0)
-			throw new IllegalArgumentException("Invalid port number.");
-		this.port = port;
+		this.port = configuration.getPort();
+		this.generator = new ResponseGenerator(configuration);
+		ResponseCache cache = generator.getCache();
+		metrics.register("cache.bytes", cache::getSize);
+		metrics.register("cache.entries", cache::getEntryCount);
+		metrics.register("cache.hits", cache::getHitCount);
+		metrics.register("cache.misses", cache::getMissCount);
+		metrics.register("cache.evictions", cache::getEvictionCount);
+		metrics.register("index.entries", generator.getIndex()::getEntryCount);
+		SingleFlight<String, ResponseCache.Entry> loads = generator.getLoads();
+		metrics.register("loads.performed", loads::getLoadCount);
+		metrics.register("loads.coalesced", loads::getCoalescedCount);
+		metrics.register("loads.inflight", loads::getInFlightCount);
+		BufferPool pool = BufferPool.getDefaultPool();
+		for (int size : pool.getSizes()) {
+			metrics.register("buffers." + size + ".leased", () -> pool.getLeasedCount(size));
+			metrics.register("buffers." + size + ".idle", () -> pool.getIdleCount(size));
+			metrics.register("buffers." + size + ".allocated", () -> pool.getAllocatedCount(size));
+		}
+		metrics.register("buffers.oversized", pool::getOversizedCount);
+		AppendLog appends = generator.getAppends();
+		metrics.register("appends.written", appends::getAppendCount);
+		metrics.register("appends.batches", appends::getBatchCount);
+		if (generator.getStorage() instanceof ContentAddressedStorage) {
+			ContentAddressedStorage storage = (ContentAddressedStorage)generator.getStorage();
+			metrics.register("storage.stored", storage::getStoredCount);
+			metrics.register("storage.deduplicated", storage::getDeduplicatedCount);
+			metrics.register("storage.unchanged", storage::getUnchangedCount);
+			metrics.register("storage.collected", storage::getCollectedCount);
+		}
+		LogStore objects = generator.getObjects();
+		if (objects != null) {
+			metrics.register("log.keys", objects::getKeyCount);
+			metrics.register("log.segments", objects::getSegmentCount);
+			metrics.register("log.live", objects::getLiveSize);
+			metrics.register("log.compactions", objects::getCompactionCount);
+			metrics.register("log.reclaimed", objects::getReclaimedSize);
+		}
+		for (DeadlineType type : DeadlineType.values())
+			metrics.register("timeouts." + type.name().toLowerCase(), () -> wheel.getExpiredCount(type));
+		if (configuration.getStatisticsInterval() > 0)
+			metrics.startReporting(configuration.getStatisticsInterval());
+		
+		switch (configuration.getMode()) {
+		case SELECTOR:
+			serveWithEventLoops(configuration.getEventLoopCount());
+			break;
+		case SHARDED:
+			serveWithShards(configuration.getEventLoopCount());
+			break;
+		case VIRTUAL_THREADS:
+			serveWithThreads(newVirtualThreadExecutor());
+			break;
+		default:
+			if (configuration.getWorkerCount() > 0)
+				serveWithWorkers(configuration.getWorkerCount(), configuration.getQueueCapacity());
+			else
+				serveWithThreads(Executors.newCachedThreadPool());
+			break;
+		}
+		
+	}
+	
+	/**
+	 * Accept incoming connections and handle each of them on a thread of the given executor.
+	 * 
+	 * @param	executor
+	 * 			The executor to run the connection handlers on.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	private void serveWithThreads(ExecutorService executor) throws IOException {
+		serve(socket -> executor.execute(new ConnectionHandler(socket, generator, null, null, wheel))); // Execute thread (could be in thread pool)
+	}
+	
+	/**
+	 * Accept incoming connections and handle them on a bounded pool of workers.
+	 * 	Connections wait for a worker in a queue whose delay is kept short by shedding
+	 * 	connections once the pool is overloaded (see WorkerPool). Those are answered
+	 * 	with a quick 503 response instead of timing out. Keep-alive connections that wait
+	 * 	for their next request are parked with a selector, so they don't hold a worker.
+	 * 
+	 * @param 	workers
+	 * 			The number of workers.
+	 * @param 	capacity
+	 * 			The maximum number of connections waiting for a worker.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	private void serveWithWorkers(int workers, int capacity) throws IOException {
+		WorkerPool pool = new WorkerPool(workers, capacity, QUEUE_TARGET, QUEUE_INTERVAL);
+		metrics.register("workers.delay", pool::getQueueDelay);
+		metrics.register("workers.queued", pool::getQueuedCount);
+		metrics.register("workers.inflight", pool::getInFlightCount);
+		metrics.register("workers.shed", pool::getShedCount);
+		IdleSelector idle = new IdleSelector(pool);
+		metrics.register("workers.parked", idle::getParkedCount);
+		serve(socket -> {
+			ConnectionHandler handler = new ConnectionHandler(socket, generator, pool, idle, wheel);
+			pool.execute(handler, handler::reject);
+		});
+	}
+	
+	/**
+	 * The delay (in milliseconds) a connection may wait for a worker once the pool is overloaded.
+	 */
+	private static final long QUEUE_TARGET = 5;
+	
+	/**
+	 * The time (in milliseconds) after which a standing queue of connections counts as an overload.
+	 */
+	private static final long QUEUE_INTERVAL = 100;
+	
+	/**
+	 * Accept incoming connections, and hand each of them to the given dispatcher.
+	 * 
+	 * @param 	dispatcher
+	 * 			The dispatcher arranging for a connection to be handled.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	private void serve(Consumer<Socket> dispatcher) throws IOException {
 		
 		// Accept incoming connections, create thread for each one of them,
 		//	while listening to more incoming connections
 		// As stated in the course multi-threading can be done with thread pools
 		// https://docs.oracle.com/javase/tutorial/essential/concurrency/pools.html
 		// https://softwareengineering.stackexchange.com/questions/173575/what-is-a-thread-pool
-		ServerSocket socket = new ServerSocket(getPort());
+		// The listening socket is opened through a (blocking) channel so the accepted sockets
+		//	have channels too, which lets file bodies be sent with sendfile
+		ServerSocketChannel socket = ServerSocketChannel.open();
 		try {
-            ExecutorService executor = Executors.newCachedThreadPool();
+			socket.bind(new InetSocketAddress(getPort()), BACKLOG);
             while (true) {
                 // Accept the incoming connection
-                Socket incomingSocket = socket.accept();
-                Runnable connectionHandler = new ConnectionHandler(incomingSocket);
-                executor.execute(connectionHandler); // Execute thread (could be in thread pool)
+                Socket incomingSocket = socket.accept().socket();
+                dispatcher.accept(incomingSocket);
             }
         } finally {
             socket.close();
@@ -55,6 +197,160 @@ public class ServerHTTP {
 		
 	}
 	
+	/**
+	 * Create an executor that starts a new virtual thread for each task.
+	 * 	Virtual threads are cheap enough to have one per keep-alive connection, while
+	 * 	the connection handlers keep their simple blocking style. They were only
+	 * 	introduced in Java 21, hence the reflective lookup.
+	 * 
+	 * @return	An executor running every task on a new virtual thread.
+	 * @throws	UnsupportedOperationException
+	 * 			The running Java version doesn't support virtual threads.
+	 * @note	https://openjdk.org/jeps/444
+	 */
+	private static ExecutorService newVirtualThreadExecutor() throws UnsupportedOperationException {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+		}
+	}
+	
+	/**
+	 * Accept incoming connections and spread them over the given number of event loops.
+	 * 	Each event loop runs on its own thread and multiplexes all of its connections
+	 * 	with a selector, so idle keep-alive connections don't cost a thread.
+	 * 
+	 * @param 	loopCount
+	 * 			The number of event loops to start.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	private void serveWithEventLoops(int loopCount) throws IOException {
+		
+		EventLoop[] loops = new EventLoop[loopCount];
+		for (int i=0 ; i<loopCount ; i++) {
+			loops[i] = new EventLoop(generator, wheel);
+			registerMetrics("loop-" + i, loops[i]);
+			new Thread(loops[i], "event-loop-" + i).start();
+		}
+		
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(new InetSocketAddress(getPort()), BACKLOG);
+			int next = 0;
+			while (true) { // Hand connections to the event loops in turn
+				SocketChannel channel = serverChannel.accept();
+				loops[next].register(channel);
+				next = (next + 1) % loopCount;
+			}
+		} finally {
+			serverChannel.close();
+			for (EventLoop loop : loops)
+				loop.close();
+		}
+		
+	}
+	
+	/**
+	 * Start the given number of shards, each of which accepts and serves its own connections.
+	 * 	Every shard binds its own listening channel with SO_REUSEPORT so the kernel spreads
+	 * 	incoming connections over them. Where that option isn't supported, the shards share
+	 * 	a single listening channel and compete for its connections instead.
+	 * 
+	 * @param 	shardCount
+	 * 			The number of shards to start.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 * @note	https://lwn.net/Articles/542629/
+	 */
+	private void serveWithShards(int shardCount) throws IOException {
+		
+		boolean reusePort;
+		try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+			reusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		}
+		
+		EventLoop[] shards = new EventLoop[shardCount];
+		Thread[] threads = new Thread[shardCount];
+		ServerSocketChannel sharedChannel = null;
+		for (int i=0 ; i<shardCount ; i++) {
+			ServerSocketChannel serverChannel = sharedChannel;
+			if (serverChannel == null) {
+				serverChannel = ServerSocketChannel.open();
+				if (reusePort)
+					serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				serverChannel.bind(new InetSocketAddress(getPort()), BACKLOG);
+				if (!reusePort)
+					sharedChannel = serverChannel;
+			}
+			shards[i] = new EventLoop(generator, wheel);
+			shards[i].listen(serverChannel);
+			registerMetrics("shard-" + i, shards[i]);
+			threads[i] = new Thread(shards[i], "shard-" + i);
+			threads[i].start();
+		}
+		
+		try { // The shards serve until they die
+			for (Thread thread : threads)
+				thread.join();
+		} catch (InterruptedException e) {
+			for (EventLoop shard : shards)
+				shard.close();
+		}
+		
+	}
+	
+	/**
+	 * Register the metrics of the given event loop under the given name.
+	 * 
+	 * @param 	name
+	 * 			The name of the event loop.
+	 * @param 	loop
+	 * 			The event loop whose metrics are to be registered.
+	 */
+	private void registerMetrics(String name, EventLoop loop) {
+		metrics.register(name + ".connections", loop::getConnectionCount);
+		metrics.register(name + ".accepted", loop::getAcceptedCount);
+	}
+	
+	/**
+	 * Returns the metrics of this server.
+	 */
+	public ServerMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	/**
+	 * The metrics of this server.
+	 */
+	private final ServerMetrics metrics = new ServerMetrics();
+	
+	/**
+	 * The timing wheel keeping the deadlines of the connections of this server.
+	 */
+	private final TimingWheel wheel = new TimingWheel(WHEEL_TICK, WHEEL_SLOTS);
+	
+	/**
+	 * The time between two ticks of the timing wheel, in milliseconds.
+	 */
+	private static final long WHEEL_TICK = 100;
+	
+	/**
+	 * The number of slots of the timing wheel, which makes a turn last a little over a minute and a half.
+	 */
+	private static final int WHEEL_SLOTS = 1024;
+	
+	/**
+	 * The generator this server uses for responding to requests.
+	 */
+	private final ResponseGenerator generator;
+	
+	/**
+	 * The maximum number of pending connections on the listening socket.
+	 */
+	private static final int BACKLOG = 1024;
+	
 	/**
 	 * Returns the port this server listens on.
 	 */
@@ -65,7 +361,7 @@ public class ServerHTTP {
 	/**
 	 * The port this server listens on.
 	 */
-	private int port;
+	private final int port;
 	
 	/**
 	 * The entry point for the server.
@@ -78,14 +374,14 @@ public class ServerHTTP {
 		// Read input
 		boolean success = true;
 		if (args.length < 1) {
-			System.out.println("Invalid arguments. Format should be <port>.");
+			System.out.println("Invalid arguments. Format should be <port> [--option=value ...].");
 			success = false;
 		}
 		else {
 			try {
-				int port = Integer.parseInt(args[0]);
+				ServerConfiguration configuration = ServerConfiguration.fromArguments(args);
 				@SuppressWarnings("unused")
-				ServerHTTP server = new ServerHTTP(port);
+				ServerHTTP server = new ServerHTTP(configuration);
 			}
 			catch (Exception e) {
 				System.out.println("Failed to set up server.");
@@ -0,0 +1,75 @@
+package org.brunovandekerkhove.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A class of metric registries, collecting named gauges and counters of a server.
+ * 	The components of a server keep their own counts; a registry merely knows
+ * 	where to read them so they can be reported together.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public class ServerMetrics {
+
+	/**
+	 * Register a metric with given name, whose value is read from the given supplier.
+	 *
+	 * @param 	name
+	 * 			The name of the metric.
+	 * @param 	supplier
+	 * 			The supplier of the current value of the metric.
+	 */
+	public void register(String name, LongSupplier supplier) {
+		metrics.put(name, supplier);
+	}
+
+	/**
+	 * Returns the current value of the metric with given name.
+	 *
+	 * @param 	name
+	 * 			The name of the desired metric.
+	 * @return	The current value of the metric, or -1 if there is no such metric.
+	 */
+	public long getValue(String name) {
+		LongSupplier supplier = metrics.get(name);
+		return (supplier == null ? -1 : supplier.getAsLong());
+	}
+
+	/**
+	 * The registered metrics, sorted by name.
+	 */
+	private final Map<String, LongSupplier> metrics = new ConcurrentSkipListMap<String, LongSupplier>();
+
+	/**
+	 * Print a report of all metrics with the given interval.
+	 *
+	 * @param 	seconds
+	 * 			The number of seconds between two reports.
+	 */
+	public void startReporting(int seconds) {
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-reporter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reporter.scheduleAtFixedRate(() -> System.out.print("Metrics :\n" + this), seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Returns a textual representation of all metrics, one 'name = value' pair per line.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, LongSupplier> entry : metrics.entrySet())
+			builder.append(entry.getKey()).append(" = ").append(entry.getValue().getAsLong()).append("\n");
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,53 @@
+package org.brunovandekerkhove.server;
+
+/**
+ * An enumeration of the ways in which a server can handle its connections.
+ * 
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public enum ServerMode {
+	
+	/**
+	 * Every connection is handled by a blocking connection handler on a pooled thread.
+	 */
+	THREADS,
+	
+	/**
+	 * Every connection is handled by a blocking connection handler on its own virtual thread.
+	 */
+	VIRTUAL_THREADS,
+	
+	/**
+	 * Connections are multiplexed over a handful of non-blocking event loops.
+	 */
+	SELECTOR,
+	
+	/**
+	 * Every event loop accepts its own connections, so nothing is shared between
+	 * 	cores on the hot path.
+	 */
+	SHARDED;
+	
+	/**
+	 * Get the server mode represented by the given string.
+	 * 
+	 * @param 	modeString
+	 * 			The string representing a server mode.
+	 * @return	The server mode represented by the given string, or
+	 * 			null if the string does not represent any server mode.
+	 */
+	public static ServerMode modeForString(String modeString) {
+		if (modeString.equalsIgnoreCase("threads"))
+			return THREADS;
+		else if (modeString.equalsIgnoreCase("virtual"))
+			return VIRTUAL_THREADS;
+		else if (modeString.equalsIgnoreCase("nio")
+			|| modeString.equalsIgnoreCase("selector"))
+			return SELECTOR;
+		else if (modeString.equalsIgnoreCase("sharded"))
+			return SHARDED;
+		else return null;
+	}
+	
+}
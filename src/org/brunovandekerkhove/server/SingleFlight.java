@@ -0,0 +1,110 @@
+package org.brunovandekerkhove.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A class of request coalescers, making sure that a value is loaded only once
+ * 	no matter how many callers ask for it at the same time.
+ * 	The first caller for a key starts the load, which runs on an executor of its own
+ * 	so that no caller does the (blocking) work inline. Callers that arrive while it
+ * 	is in flight get the same future, so they can attach a callback to it (or wait
+ * 	for the result) instead of loading it again.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://pkg.go.dev/golang.org/x/sync/singleflight
+ */
+public class SingleFlight<K, V> {
+
+	/**
+	 * Initialize this new coalescer with given executor.
+	 *
+	 * @param 	executor
+	 * 			The executor the loads are run on, typically a bounded pool of I/O threads.
+	 */
+	public SingleFlight(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * The executor the loads are run on.
+	 */
+	private final Executor executor;
+
+	/**
+	 * Load the value for the given key, unless a load for it is already in flight.
+	 * 	The load stays in flight until it completes, so every caller in the meantime joins it.
+	 *
+	 * @param 	key
+	 * 			The key of the value.
+	 * @param 	loader
+	 * 			The loader of the value, called on the executor of this coalescer if no load is in flight.
+	 * @return	A future for the value, which completes exceptionally if the load failed.
+	 */
+	public CompletableFuture<V> load(K key, Callable<V> loader) {
+		CompletableFuture<V> future = new CompletableFuture<V>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+		if (existing != null) { // Someone else is loading it already
+			coalesced.increment();
+			return existing;
+		}
+		loads.increment();
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(loader.call());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				} finally {
+					inFlight.remove(key, future);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.remove(key, future);
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * The loads that are currently in flight.
+	 */
+	private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+
+	/**
+	 * Returns the number of loads that are currently in flight.
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Returns the number of loads that were performed.
+	 */
+	public long getLoadCount() {
+		return loads.sum();
+	}
+
+	/**
+	 * Returns the number of callers that joined a load in flight instead of performing their own.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * The number of loads that were performed.
+	 */
+	private final LongAdder loads = new LongAdder();
+
+	/**
+	 * The number of callers that joined a load in flight.
+	 */
+	private final LongAdder coalesced = new LongAdder();
+
+}
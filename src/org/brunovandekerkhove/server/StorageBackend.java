@@ -0,0 +1,63 @@
+package org.brunovandekerkhove.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.brunovandekerkhove.http.HTTPRequest;
+
+/**
+ * An interface of storage backends, storing the bodies of uploads as files in the resources directory.
+ * 	Files are always replaced atomically, so readers never need to lock them.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public interface StorageBackend {
+
+	/**
+	 * Store the body of the given request as the file at the given path, replacing the file if it exists.
+	 *
+	 * @param 	path
+	 * 			The path of the file.
+	 * @param 	request
+	 * 			The request whose body is to be stored. Its body is read by this method.
+	 * @return	Whether the file was created, replaced, or left as it was because it was identical.
+	 * @throws 	IOException
+	 * 			The body could not be read or stored. The file is left as it was.
+	 */
+	Outcome store(Path path, HTTPRequest request) throws IOException;
+
+	/**
+	 * Make sure the file at the given path can be appended to in place, without affecting any other file.
+	 * 	This is called while the lock of the file is being held.
+	 *
+	 * @param 	path
+	 * 			The path of the file, which may not exist.
+	 * @throws 	IOException
+	 * 			An I/O error occurred.
+	 */
+	void prepareAppend(Path path) throws IOException;
+
+	/**
+	 * An enumeration of the outcomes of storing a file.
+	 */
+	enum Outcome {
+
+		/**
+		 * The file didn't exist yet.
+		 */
+		CREATED,
+
+		/**
+		 * The file existed, and was replaced.
+		 */
+		REPLACED,
+
+		/**
+		 * The file existed with the same contents, and was left alone.
+		 */
+		UNCHANGED;
+
+	}
+
+}
@@ -0,0 +1,46 @@
+package org.brunovandekerkhove.server;
+
+/**
+ * An enumeration of the ways in which a server can store the bodies of uploads.
+ * 
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public enum StorageType {
+	
+	/**
+	 * Every upload is stored as a file of its own.
+	 */
+	FILES,
+	
+	/**
+	 * Every distinct body is stored once, by the hash of its contents, and
+	 * 	the uploaded files are links to it.
+	 */
+	CONTENT_ADDRESSED,
+	
+	/**
+	 * Every upload is appended to a log of segment files as a key-value record,
+	 * 	rather than stored as a file.
+	 */
+	LOG;
+	
+	/**
+	 * Get the storage type represented by the given string.
+	 * 
+	 * @param 	typeString
+	 * 			The string representing a storage type.
+	 * @return	The storage type represented by the given string, or
+	 * 			null if the string does not represent any storage type.
+	 */
+	public static StorageType typeForString(String typeString) {
+		if (typeString.equalsIgnoreCase("files"))
+			return FILES;
+		else if (typeString.equalsIgnoreCase("cas"))
+			return CONTENT_ADDRESSED;
+		else if (typeString.equalsIgnoreCase("log"))
+			return LOG;
+		else return null;
+	}
+	
+}
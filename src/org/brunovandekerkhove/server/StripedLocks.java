@@ -0,0 +1,52 @@
+package org.brunovandekerkhove.server;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A class of lock tables, serializing the work on any single key with a fixed number of locks.
+ * 	Every key maps to one of the locks (its stripe), so a table takes up the same memory no
+ * 	matter how many keys there are, at the cost of unrelated keys sharing a lock now and then.
+ * 	Only one lock of a table should be held at a time, or threads could deadlock. The locks
+ * 	aren't monitors, so virtual threads waiting for them don't pin their carrier.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public class StripedLocks {
+
+	/**
+	 * Initialize this new lock table with given number of locks.
+	 *
+	 * @param 	stripes
+	 * 			The minimum number of locks. It is rounded up to a power of two.
+	 */
+	public StripedLocks(int stripes) {
+		if (stripes < 1 || stripes > 1 << 16)
+			throw new IllegalArgumentException("Invalid number of stripes.");
+		int size = 1;
+		while (size < stripes)
+			size <<= 1;
+		this.locks = new ReentrantLock[size];
+		for (int i=0 ; i<locks.length ; i++)
+			locks[i] = new ReentrantLock();
+	}
+
+	/**
+	 * Returns the lock for the given key.
+	 *
+	 * @param 	key
+	 * 			The key, typically the path of a file.
+	 */
+	public Lock get(Object key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16); // Spread the high bits, as the table only looks at the low ones
+		return locks[hash & (locks.length - 1)];
+	}
+
+	/**
+	 * The locks of this table.
+	 */
+	private final ReentrantLock[] locks;
+
+}
@@ -0,0 +1,275 @@
+package org.brunovandekerkhove.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A class of hashed timing wheels, keeping track of the deadlines of any number of connections with a single thread.
+ * 	The wheel is a ring of slots, one per tick, which a thread visits in turn. A timeout sits
+ * 	in the slot of its deadline, so a tick only looks at the timeouts that are due around then,
+ * 	however many there are in total. Setting, moving or clearing a deadline merely updates the
+ * 	timeout : a timeout is only put in a slot when it isn't in one yet, and one whose deadline
+ * 	moved is put in the right slot once its old slot comes around. A timeout whose deadline
+ * 	passes has its expiration run on the thread of the wheel, so expirations should be quick.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	http://www.cs.columbia.edu/~nahum/w6998/papers/sosp87-timing-wheels.pdf
+ */
+public class TimingWheel {
+
+	/**
+	 * Initialize this new timing wheel with given tick and number of slots, and start its thread.
+	 *
+	 * @param 	tick
+	 * 			The time between two ticks, in milliseconds. Deadlines are met within a tick.
+	 * @param 	slots
+	 * 			The number of slots. Timeouts further away than a turn of the wheel are looked at once every turn.
+	 */
+	public TimingWheel(long tick, int slots) {
+		if (tick < 1 || slots < 1)
+			throw new IllegalArgumentException("Invalid timing wheel settings.");
+		this.tick = TimeUnit.MILLISECONDS.toNanos(tick);
+		@SuppressWarnings({"unchecked", "rawtypes"}) // Arrays of generic types can't be created
+		List<Timeout>[] wheel = new List[slots];
+		for (int i=0 ; i<slots ; i++)
+			wheel[i] = new ArrayList<Timeout>();
+		this.slots = wheel;
+		this.start = System.nanoTime();
+		Thread thread = new Thread(this::turn, "timing-wheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * The time between two ticks, in nanoseconds.
+	 */
+	private final long tick;
+
+	/**
+	 * The slots of this wheel, only touched by its thread.
+	 */
+	private final List<Timeout>[] slots;
+
+	/**
+	 * The time at which this wheel started, in nanoseconds.
+	 */
+	private final long start;
+
+	/**
+	 * The number of ticks that have been processed.
+	 */
+	private long ticks = 0;
+
+	/**
+	 * Create a new timeout on this wheel, which has no deadline yet.
+	 *
+	 * @param 	expiration
+	 * 			The task to run once a deadline of the timeout passes.
+	 */
+	public Timeout newTimeout(Runnable expiration) {
+		return new Timeout(expiration);
+	}
+
+	/**
+	 * Process the ticks, forever.
+	 */
+	private void turn() {
+		while (true) {
+			long now = System.nanoTime();
+			long due = (now - start) / tick;
+			for (Timeout timeout ; (timeout = added.poll()) != null ; )
+				place(timeout);
+			while (ticks < due) {
+				ticks++;
+				List<Timeout> slot = slots[(int)(ticks % slots.length)];
+				if (slot.isEmpty())
+					continue;
+				List<Timeout> visited = new ArrayList<Timeout>(slot);
+				slot.clear();
+				for (Timeout timeout : visited)
+					visit(timeout, now);
+			}
+			try {
+				Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(start + (due + 1) * tick - System.nanoTime()) + 1)); // Until the next tick
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Put the given timeout in the slot of its deadline, or in the next slot if that has passed.
+	 */
+	private void place(Timeout timeout) {
+		long due = Math.max(ticks + 1, Math.floorDiv(timeout.deadline - start + tick - 1, tick));
+		slots[(int)(due % slots.length)].add(timeout);
+	}
+
+	/**
+	 * Look at the given timeout, whose slot came around.
+	 */
+	private void visit(Timeout timeout, long now) {
+		Deadline current = timeout.current.get();
+		if (current == null) // Cleared, so it leaves the wheel unless it was set again in the meantime
+			unplace(timeout);
+		else if (now - timeout.deadline >= 0) {
+			if (!timeout.current.compareAndSet(current, null)) { // Set again in the meantime
+				place(timeout);
+				return;
+			}
+			unplace(timeout);
+			expired[current.type.ordinal()].increment();
+			try {
+				timeout.expiration.run();
+			} catch (RuntimeException e) {
+				System.out.println(e.getLocalizedMessage());
+			}
+		}
+		else // Moved, or due in a later turn
+			place(timeout);
+	}
+
+	/**
+	 * Take the given timeout, which has no deadline anymore, off the wheel, unless it was set again in the meantime.
+	 */
+	private void unplace(Timeout timeout) {
+		timeout.placed.set(false);
+		if (timeout.current.get() != null && timeout.placed.compareAndSet(false, true))
+			place(timeout);
+	}
+
+	/**
+	 * The timeouts that were set while they weren't in a slot, waiting to be placed by the thread of this wheel.
+	 */
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * Returns the number of deadlines of the given type that have passed.
+	 *
+	 * @param 	type
+	 * 			The type of the deadlines.
+	 */
+	public long getExpiredCount(DeadlineType type) {
+		return expired[type.ordinal()].sum();
+	}
+
+	/**
+	 * The number of deadlines that have passed, by type.
+	 */
+	private final LongAdder[] expired = newCounters();
+
+	/**
+	 * Create a counter for every deadline type.
+	 */
+	private static LongAdder[] newCounters() {
+		LongAdder[] counters = new LongAdder[DeadlineType.values().length];
+		for (int i=0 ; i<counters.length ; i++)
+			counters[i] = new LongAdder();
+		return counters;
+	}
+
+	/**
+	 * A class of timeouts, holding the current deadline of a single connection.
+	 * 	Deadlines can be set from any thread, cheaply enough to do so for every phase of every request.
+	 */
+	public class Timeout {
+
+		private Timeout(Runnable expiration) {
+			this.expiration = expiration;
+		}
+
+		/**
+		 * The task to run once a deadline of this timeout passes.
+		 */
+		private final Runnable expiration;
+
+		/**
+		 * The current deadline, or null if there is none.
+		 * 	Every deadline that is set is a new object, so the wheel only expires the deadline it looked at.
+		 */
+		private final AtomicReference<Deadline> current = new AtomicReference<Deadline>();
+
+		/**
+		 * The time of the current deadline, in nanoseconds.
+		 */
+		private volatile long deadline;
+
+		/**
+		 * Whether this timeout is in a slot of the wheel, or about to be put in one.
+		 */
+		private final AtomicBoolean placed = new AtomicBoolean();
+
+		/**
+		 * Set the deadline of this timeout, replacing the current one.
+		 *
+		 * @param 	type
+		 * 			The type of the deadline.
+		 * @param 	millis
+		 * 			The time until the deadline, in milliseconds, or 0 to clear the current deadline.
+		 */
+		public void set(DeadlineType type, long millis) {
+			if (millis <= 0) {
+				clear();
+				return;
+			}
+			long duration = TimeUnit.MILLISECONDS.toNanos(millis);
+			this.deadline = System.nanoTime() + duration;
+			current.set(new Deadline(type, duration)); // Last, so a wheel that sees the deadline sees its time too
+			if (!placed.get() && placed.compareAndSet(false, true))
+				added.add(this);
+		}
+
+		/**
+		 * Push the current deadline back, if it is of a type that is pushed back whenever there is progress.
+		 */
+		public void progress() {
+			Deadline current = this.current.get();
+			if (current != null && current.type.isProgressive())
+				this.deadline = System.nanoTime() + current.duration;
+		}
+
+		/**
+		 * Returns whether this timeout has a deadline, which is no longer the case once it has passed.
+		 */
+		public boolean isSet() {
+			return current.get() != null;
+		}
+
+		/**
+		 * Clear the current deadline of this timeout.
+		 */
+		public void clear() {
+			current.set(null);
+		}
+
+	}
+
+	/**
+	 * A class of deadlines, as set on a timeout.
+	 */
+	private static class Deadline {
+
+		private Deadline(DeadlineType type, long duration) {
+			this.type = type;
+			this.duration = duration;
+		}
+
+		/**
+		 * The type of this deadline.
+		 */
+		private final DeadlineType type;
+
+		/**
+		 * The time this deadline is set ahead of the last progress, in nanoseconds.
+		 */
+		private final long duration;
+
+	}
+
+}
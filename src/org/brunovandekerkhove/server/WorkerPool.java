@@ -0,0 +1,332 @@
+package org.brunovandekerkhove.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A class of bounded worker pools, whose queue is kept short by shedding load.
+ * 	A fixed number of workers take tasks from a bounded queue. How long a task may wait in
+ * 	the queue is decided by a controller in the style of CoDel : as long as the queue has
+ * 	been empty at some point during the last interval, it only absorbs a burst and a task
+ * 	may wait for a whole interval. Once the queue has been standing for longer than that, the
+ * 	pool is overloaded and a task that waited for more than the (much shorter) target delay
+ * 	is shed. So under overload the tasks that are served are served quickly, and the others
+ * 	are turned down right away rather than timing out. Tasks are shed from the head of the
+ * 	queue whenever a worker takes a task or a task is queued, and by a sweeper while the
+ * 	queue isn't empty, so tasks are shed in time even when every worker is busy for a while.
+ * 	A task that is shed, or that finds the queue full, has its rejection run instead.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ * @note	https://queue.acm.org/detail.cfm?id=2209336
+ */
+public class WorkerPool {
+
+	/**
+	 * Initialize this new pool with given number of workers and queue capacity, and start its workers.
+	 *
+	 * @param 	workers
+	 * 			The number of workers.
+	 * @param 	capacity
+	 * 			The maximum number of tasks waiting in the queue.
+	 * @param 	target
+	 * 			The delay in the queue (in milliseconds) above which tasks are shed once the pool is overloaded.
+	 * @param 	interval
+	 * 			The time (in milliseconds) the queue has to be standing before the pool counts as overloaded.
+	 * 			It is also the longest a task ever waits in the queue.
+	 */
+	public WorkerPool(int workers, int capacity, long target, long interval) {
+		if (workers < 1 || capacity < 1 || target < 1 || interval < target)
+			throw new IllegalArgumentException("Invalid worker pool settings.");
+		this.capacity = capacity;
+		this.target = TimeUnit.MILLISECONDS.toNanos(target);
+		this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+		this.lastEmpty = System.nanoTime();
+		for (int i=0 ; i<workers ; i++) {
+			Thread thread = new Thread(this::work, "worker-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		Thread sweeper = new Thread(this::sweep, "worker-sweeper");
+		sweeper.setDaemon(true);
+		sweeper.start();
+	}
+
+	/**
+	 * The maximum number of tasks waiting in the queue.
+	 */
+	private final int capacity;
+
+	/**
+	 * The delay in the queue above which tasks are shed once the pool is overloaded, in nanoseconds.
+	 */
+	private final long target;
+
+	/**
+	 * The time the queue has to be standing before the pool counts as overloaded, in nanoseconds.
+	 */
+	private final long interval;
+
+	/**
+	 * Queue the given task, or run its rejection right away if the queue is full.
+	 *
+	 * @param 	task
+	 * 			The task to run on a worker.
+	 * @param 	rejection
+	 * 			The task to run instead if the task is shed. It should be quick.
+	 */
+	public void execute(Runnable task, Runnable rejection) {
+		List<Task> rejected = new ArrayList<Task>();
+		boolean added = false;
+		lock.lock();
+		try {
+			long now = System.nanoTime();
+			if (queue.isEmpty()) { // It was empty up to now, so this doesn't count as a standing queue
+				lastEmpty = now;
+				notIdle.signal();
+			}
+			else
+				shed(now, rejected);
+			if (queue.size() < capacity) {
+				queue.add(new Task(task, rejection, now));
+				queued = queue.size();
+				notEmpty.signal();
+				added = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (Task expired : rejected) // Outside of the lock
+			expired.rejection.run();
+		if (!added) {
+			shed.increment();
+			rejection.run();
+		}
+	}
+
+	/**
+	 * Returns whether tasks are waiting for a worker.
+	 * 	Long-running tasks may use this to finish early, so that the others get their turn.
+	 */
+	public boolean isCongested() {
+		return queued > 0;
+	}
+
+	/**
+	 * Run tasks, forever.
+	 */
+	private void work() {
+		List<Task> rejected = new ArrayList<Task>();
+		while (true) {
+			Task task;
+			try {
+				task = next(rejected);
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (Task rejection : rejected) // Outside of the lock
+				rejection.rejection.run();
+			rejected.clear();
+			if (task == null)
+				continue;
+			inFlight.incrementAndGet();
+			try {
+				task.task.run();
+			} catch (RuntimeException e) {
+				System.out.println(e.getLocalizedMessage());
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Take the next task that is to be run, shedding the tasks that waited too long.
+	 *
+	 * @param 	rejected
+	 * 			The list the tasks that are shed are added to.
+	 * @return	The next task, or null if there is none after shedding.
+	 * @throws 	InterruptedException
+	 * 			The worker was interrupted while waiting for a task.
+	 */
+	private Task next(List<Task> rejected) throws InterruptedException {
+		lock.lock();
+		try {
+			while (queue.isEmpty()) {
+				lastEmpty = System.nanoTime();
+				notEmpty.await();
+			}
+			long now = System.nanoTime();
+			shed(now, rejected);
+			Task task = queue.poll();
+			if (task == null)
+				return null;
+			queued = queue.size();
+			if (queue.isEmpty())
+				lastEmpty = now;
+			this.delay = now - task.queued;
+			return task;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Shed the tasks at the head of the queue that have waited too long.
+	 * 	This is to be called while holding the lock.
+	 *
+	 * @param 	now
+	 * 			The current time, in nanoseconds.
+	 * @param 	rejected
+	 * 			The list the tasks that are shed are added to.
+	 */
+	private void shed(long now, List<Task> rejected) {
+		long limit = (now - lastEmpty > interval ? target : interval); // Standing queue, so only short waits are allowed
+		Task task;
+		while ((task = queue.peek()) != null && now - task.queued > limit) {
+			queue.poll();
+			rejected.add(task);
+			shed.increment();
+		}
+		queued = queue.size();
+		if (queue.isEmpty())
+			lastEmpty = now;
+	}
+
+	/**
+	 * Shed the tasks that have waited too long while the queue isn't empty, forever.
+	 * 	The queue is looked at once every target delay.
+	 */
+	private void sweep() {
+		List<Task> rejected = new ArrayList<Task>();
+		long pause = Math.max(1, TimeUnit.NANOSECONDS.toMillis(target));
+		while (true) {
+			try {
+				lock.lock();
+				try {
+					while (queue.isEmpty())
+						notIdle.await();
+					shed(System.nanoTime(), rejected);
+				} finally {
+					lock.unlock();
+				}
+				for (Task task : rejected) // Outside of the lock
+					task.rejection.run();
+				rejected.clear();
+				Thread.sleep(pause);
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				System.out.println(e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * The tasks waiting for a worker, oldest first.
+	 */
+	private final ArrayDeque<Task> queue = new ArrayDeque<Task>();
+
+	/**
+	 * The lock guarding the queue.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * The condition workers wait for when the queue is empty.
+	 */
+	private final Condition notEmpty = lock.newCondition();
+
+	/**
+	 * The condition the sweeper waits for when the queue is empty, which is signalled once it isn't anymore.
+	 */
+	private final Condition notIdle = lock.newCondition();
+
+	/**
+	 * The number of tasks in the queue, which can be read without taking the lock.
+	 */
+	private volatile int queued = 0;
+
+	/**
+	 * The last time the queue was found empty, in nanoseconds.
+	 */
+	private long lastEmpty;
+
+	/**
+	 * A class of queued tasks.
+	 */
+	private static class Task {
+
+		private Task(Runnable task, Runnable rejection, long queued) {
+			this.task = task;
+			this.rejection = rejection;
+			this.queued = queued;
+		}
+
+		/**
+		 * The task to run.
+		 */
+		private final Runnable task;
+
+		/**
+		 * The task to run if the task is shed.
+		 */
+		private final Runnable rejection;
+
+		/**
+		 * The time at which the task was queued, in nanoseconds.
+		 */
+		private final long queued;
+
+	}
+
+	/**
+	 * Returns the time the most recently dequeued task spent in the queue, in microseconds.
+	 */
+	public long getQueueDelay() {
+		return TimeUnit.NANOSECONDS.toMicros(delay);
+	}
+
+	/**
+	 * Returns the number of tasks waiting in the queue.
+	 */
+	public long getQueuedCount() {
+		return queued;
+	}
+
+	/**
+	 * Returns the number of tasks being run.
+	 */
+	public long getInFlightCount() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Returns the number of tasks that have been shed.
+	 */
+	public long getShedCount() {
+		return shed.sum();
+	}
+
+	/**
+	 * The time the most recently dequeued task spent in the queue, in nanoseconds.
+	 */
+	private volatile long delay = 0;
+
+	/**
+	 * The number of tasks being run.
+	 */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * The number of tasks that have been shed.
+	 */
+	private final LongAdder shed = new LongAdder();
+
+}
@@ -0,0 +1,220 @@
+package org.brunovandekerkhove.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A class of pools of direct byte buffers, used for socket I/O.
+ * 	Buffers come in a few size classes. They are leased by connections while they
+ * 	are reading or writing, and released when they're done with them.
+ * 	Threads that lease and release a lot (event loops) can get a cache of their own,
+ * 	so they rarely touch the shared pool.
+ *
+ * @author 	Bruno Vandekerkhove
+ * @version	1.0
+ */
+public class BufferPool {
+
+	/**
+	 * Initialize this new buffer pool with given size classes.
+	 *
+	 * @param 	sizes
+	 * 			The sizes of the buffers in this pool, in ascending order.
+	 * @param 	maximumIdle
+	 * 			The maximum number of idle buffers kept for each size.
+	 */
+	public BufferPool(int[] sizes, int maximumIdle) {
+		this.sizeClasses = new SizeClass[sizes.length];
+		for (int i=0 ; i<sizes.length ; i++) {
+			if (sizes[i] <= 0 || (i > 0 && sizes[i] <= sizes[i-1]))
+				throw new IllegalArgumentException("Invalid buffer sizes.");
+			this.sizeClasses[i] = new SizeClass(sizes[i], i);
+		}
+		this.maximumIdle = maximumIdle;
+	}
+
+	/**
+	 * Get the default buffer pool, with buffers of 4, 16 and 64 KB.
+	 */
+	public static BufferPool getDefaultPool() {
+		return defaultPool;
+	}
+
+	/**
+	 * The default buffer pool.
+	 */
+	private static final BufferPool defaultPool = new BufferPool(new int[] {4 * 1024, 16 * 1024, 64 * 1024}, 1024);
+
+	/**
+	 * The size classes of this pool, smallest first.
+	 */
+	private final SizeClass[] sizeClasses;
+
+	/**
+	 * The maximum number of idle buffers kept for each size.
+	 */
+	private final int maximumIdle;
+
+	/**
+	 * Lease a buffer that can hold at least the given amount of bytes.
+	 * 	The buffer is cleared. Buffers larger than the largest size class aren't pooled.
+	 *
+	 * @param 	size
+	 * 			The amount of bytes the buffer should be able to hold.
+	 * @return	A cleared direct buffer with a capacity of at least the given size.
+	 */
+	public ByteBuffer lease(int size) {
+		SizeClass sizeClass = sizeClassFor(size);
+		if (sizeClass == null) { // Too large to pool
+			oversized.increment();
+			return ByteBuffer.allocateDirect(size);
+		}
+		ByteBuffer buffer = null;
+		ArrayDeque<ByteBuffer>[] cache = threadCache.get();
+		if (cache != null)
+			buffer = cache[sizeClass.index].poll();
+		if (buffer == null)
+			buffer = sizeClass.idle.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(sizeClass.size);
+			sizeClass.allocated.increment();
+		}
+		else
+			sizeClass.idleCount.decrementAndGet();
+		sizeClass.leased.increment();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Return the given buffer to this pool. It should not be used anymore afterwards.
+	 *
+	 * @param 	buffer
+	 * 			A buffer that was leased from this pool.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect())
+			return;
+		SizeClass sizeClass = sizeClassFor(buffer.capacity());
+		if (sizeClass == null || sizeClass.size != buffer.capacity())
+			return; // Not pooled, left to the garbage collector
+		sizeClass.leased.decrement();
+		ArrayDeque<ByteBuffer>[] cache = threadCache.get();
+		if (cache != null && cache[sizeClass.index].size() < THREAD_CACHE_SIZE) {
+			cache[sizeClass.index].push(buffer);
+			sizeClass.idleCount.incrementAndGet();
+		}
+		else if (sizeClass.idleCount.get() < maximumIdle) {
+			sizeClass.idle.add(buffer);
+			sizeClass.idleCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the smallest size class that holds the given amount of bytes, or null if there is none.
+	 */
+	private SizeClass sizeClassFor(int size) {
+		for (SizeClass sizeClass : sizeClasses) {
+			if (size <= sizeClass.size)
+				return sizeClass;
+		}
+		return null;
+	}
+
+	/**
+	 * Give the current thread a cache of idle buffers of its own.
+	 * 	This is meant for long-lived threads that lease and release a lot, like event loops.
+	 * 	Buffers released on such a thread are kept for it first.
+	 */
+	public void enableThreadCache() {
+		@SuppressWarnings({"unchecked", "rawtypes"}) // Arrays of generic types can't be created
+		ArrayDeque<ByteBuffer>[] cache = new ArrayDeque[sizeClasses.length];
+		for (int i=0 ; i<cache.length ; i++)
+			cache[i] = new ArrayDeque<ByteBuffer>();
+		threadCache.set(cache);
+	}
+
+	/**
+	 * The idle buffers of threads that have a cache of their own, by size class.
+	 */
+	private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCache = new ThreadLocal<ArrayDeque<ByteBuffer>[]>();
+
+	/**
+	 * Returns the sizes of the buffers in this pool.
+	 */
+	public int[] getSizes() {
+		int[] sizes = new int[sizeClasses.length];
+		for (int i=0 ; i<sizes.length ; i++)
+			sizes[i] = sizeClasses[i].size;
+		return sizes;
+	}
+
+	/**
+	 * Returns the number of buffers of the given size that are currently leased.
+	 */
+	public long getLeasedCount(int size) {
+		SizeClass sizeClass = sizeClassFor(size);
+		return (sizeClass == null ? 0 : sizeClass.leased.sum());
+	}
+
+	/**
+	 * Returns the number of buffers of the given size that are idle in this pool.
+	 */
+	public long getIdleCount(int size) {
+		SizeClass sizeClass = sizeClassFor(size);
+		return (sizeClass == null ? 0 : sizeClass.idleCount.get());
+	}
+
+	/**
+	 * Returns the number of buffers of the given size that were ever allocated by this pool.
+	 */
+	public long getAllocatedCount(int size) {
+		SizeClass sizeClass = sizeClassFor(size);
+		return (sizeClass == null ? 0 : sizeClass.allocated.sum());
+	}
+
+	/**
+	 * Returns the number of buffers that were too large to be pooled.
+	 */
+	public long getOversizedCount() {
+		return oversized.sum();
+	}
+
+	/**
+	 * The number of buffers that were too large to be pooled.
+	 */
+	private final LongAdder oversized = new LongAdder();
+
+	/**
+	 * The size of the buffer cache of a single thread, for each size class.
+	 */
+	private static final int THREAD_CACHE_SIZE = 64;
+
+	/**
+	 * A class of buffer size classes, with their idle buffers and counts.
+	 */
+	private static class SizeClass {
+
+		SizeClass(int size, int index) {
+			this.size = size;
+			this.index = index;
+		}
+
+		final int size;
+
+		final int index;
+
+		final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		final AtomicInteger idleCount = new AtomicInteger();
+
+		final LongAdder leased = new LongAdder();
+
+		final LongAdder allocated = new LongAdder();
+
+	}
+
+}
@@ -2,12 +2,13 @@ package org.brunovandekerkhove.utils;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * A class with utility methods for working with sockets.
@@ -29,8 +30,8 @@ public class SocketUtils {
      * @note		https://stackoverflow.com/questions/10673684/send-http-request-manually-via-socket
      */
     public static void writeString(Socket socket, String string) throws IOException {
-    		DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-    		outputStream.writeBytes(string);
+    		// One write for the whole string (like DataOutputStream.writeBytes, every char becomes a byte)
+    		socket.getOutputStream().write(string.getBytes(StandardCharsets.ISO_8859_1));
     }
     
     /**
@@ -50,7 +51,21 @@ public class SocketUtils {
     		input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
     		return input.readLine();
     		*/
-    		InputStream inputStream = socket.getInputStream();
+    		return nextLine(socket.getInputStream());
+    }
+    
+    /**
+     * Fetches bytes from the given input stream until a new line is started.
+     * 
+     * @param	inputStream
+     * 			The input stream to read from.
+     * @return 	A string representing a line that was just read.
+     * @throws 	IOException
+     * 			An I/O error occurred.
+     * @throws	ClosedSocketException 
+     * 			The stream ended before anything could be read.
+     */
+    public static String nextLine(InputStream inputStream) throws IOException, ClosedSocketException {
     		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
         int currentByte = 0;
         while (true) {
@@ -58,7 +73,6 @@ public class SocketUtils {
             if (currentByte == -1)
                 break;
             if (currentByte == '\r') {
-            	inputStream.mark(2);
                 currentByte = inputStream.read();
                 if (currentByte == '\n')
                 		break;
@@ -84,15 +98,25 @@ public class SocketUtils {
      * 			An I/O error occurred 
      */
     public static byte[] getBytes(Socket socket, int length) throws IOException, ClosedSocketException {
+    		return getBytes(socket.getInputStream(), length);
+    }
+    
+    /**
+     * Read a given amount of bytes from the given input stream, in bulk.
+     * 
+     * @param	inputStream
+     * 			The input stream to read from.
+     * @param 	length
+     * 			The amount of bytes to be read from the stream.
+     * @return	An array of n bytes read from the stream. Bytes that could not be read
+     * 			because the stream ended are -1, as they used to be when reading byte by byte.
+     * @throws 	IOException
+     * 			An I/O error occurred 
+     */
+    public static byte[] getBytes(InputStream inputStream, int length) throws IOException {
         byte[] bytes = new byte[length];
-        InputStream inputStream = socket.getInputStream();
-        for (int i=0 ; i<length; ++i) {
-        		byte newByte = (byte)(inputStream.read());
-        		// Could be doing something when bytes become invalid (== -1)
-        		// if (newByte == -1)
-        			// break;
-            bytes[i] = newByte;   
-        }
+        int count = inputStream.readNBytes(bytes, 0, length);
+        Arrays.fill(bytes, count, length, (byte)-1);
         return bytes;
     }
 	